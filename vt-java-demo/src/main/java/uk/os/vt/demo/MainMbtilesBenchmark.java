@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.demo;
+
+import static uk.os.vt.demo.util.ResourceUtil.getFile;
+
+import io.reactivex.Observable;
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import uk.os.vt.Entry;
+import uk.os.vt.mbtiles.StorageImpl;
+
+/**
+ * Compare the simple and clustered mbtiles layouts.
+ *
+ * <p>Tiles of a source tileset are repeated over a square block of a single zoom level, written
+ * to a tileset of each layout, then read back by random point lookups and by full scans.
+ */
+public class MainMbtilesBenchmark {
+
+  private static final String SOURCE_MBTILES = "Boundary-line-historic-counties_regionz5.mbtiles";
+  private static final int ZOOM = 14;
+  private static final int DEFAULT_TILES = 10000;
+  private static final int LOOKUPS = 10000;
+  private static final int SCANS = 3;
+
+  private MainMbtilesBenchmark() {}
+
+  /**
+   * Benchmark the mbtiles layouts.
+   *
+   * @param args optionally the source mbtiles and the number of tiles to write
+   * @throws Exception thrown on IO or database error
+   */
+  public static void main(String[] args) throws Exception {
+    final File source = getFile(args.length > 0 ? args[0] : SOURCE_MBTILES);
+    final int tiles = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TILES;
+
+    final StorageImpl sourceStorage = new StorageImpl.Builder(source).readOnly().build();
+    final List<Entry> samples = sourceStorage.getEntries().toList().blockingGet();
+    sourceStorage.close();
+    if (samples.isEmpty()) {
+      System.err.println("No tiles in " + source.getAbsolutePath());
+      return;
+    }
+    System.out.println(String.format("Repeating %d tiles of %s as %d tiles at zoom %d",
+        samples.size(), source.getName(), tiles, ZOOM));
+
+    for (boolean clustered : new boolean[] {false, true}) {
+      final File file = File.createTempFile(clustered ? "clustered" : "simple", ".mbtiles");
+      if (!file.delete()) {
+        System.err.println("Problem deleting temporary file " + file);
+        return;
+      }
+      try {
+        run(file, clustered, samples, tiles);
+      } finally {
+        for (String suffix : new String[] {"", "-wal", "-shm"}) {
+          new File(file.getPath() + suffix).delete();
+        }
+      }
+    }
+  }
+
+  private static void run(File file, boolean clustered, List<Entry> samples, int tiles)
+      throws Exception {
+    final int side = (int) Math.ceil(Math.sqrt(tiles));
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setClustered(clustered).setBatchSize(10000).build();
+    final String name = clustered ? "clustered" : "simple";
+
+    long start = System.nanoTime();
+    storage.putEntries(Observable.range(0, tiles).map(i -> new Entry(ZOOM, i / side, i % side,
+        samples.get(i % samples.size()).getVector())));
+    report(name, "write", tiles, start);
+
+    final Random random = new Random(42);
+    start = System.nanoTime();
+    int found = 0;
+    for (int i = 0; i < LOOKUPS; i++) {
+      final int key = random.nextInt(tiles);
+      if (storage.getTileData(ZOOM, key / side, key % side) != null) {
+        found++;
+      }
+    }
+    report(name, "point lookup", LOOKUPS, start);
+    if (found != LOOKUPS) {
+      System.err.println(String.format("%s: %d of %d lookups missed", name, LOOKUPS - found,
+          LOOKUPS));
+    }
+
+    for (int i = 0; i < SCANS; i++) {
+      start = System.nanoTime();
+      final long scanned = storage.getEntries().count().blockingGet();
+      report(name, "scan", scanned, start);
+      start = System.nanoTime();
+      final long ordered = storage.scanEntries(null).count().blockingGet();
+      report(name, "key ordered scan", ordered, start);
+    }
+    System.out.println(String.format("%s: %d bytes", name, file.length()));
+    storage.close();
+  }
+
+  private static void report(String name, String operation, long count, long startNanos) {
+    final double millis = (System.nanoTime() - startNanos) / 1e6;
+    System.out.println(String.format("%s: %s of %d tiles in %.1f ms (%.2f us per tile)", name,
+        operation, count, millis, millis * 1000 / Math.max(1, count)));
+  }
+}
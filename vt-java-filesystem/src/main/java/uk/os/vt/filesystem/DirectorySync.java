@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.filesystem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directories synced to disk, so the renames and deletes made in them are durable.
+ *
+ * <p>With a group commit period, directories of concurrent writes are gathered for that period
+ * and synced together by a background thread, each once however many writes changed it.  Each
+ * writer waits for the group holding its directories.  Without a period every write syncs its
+ * own directories.
+ */
+final class DirectorySync implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DirectorySync.class.getSimpleName());
+
+  /**
+   * Directories synced together.
+   */
+  private static final class Group {
+
+    private final Set<File> directories = new LinkedHashSet<>();
+    private final CountDownLatch synced = new CountDownLatch(1);
+    private volatile IOException failure;
+  }
+
+  private final long periodMillis;
+  private final Thread thread;
+  private Group pending = new Group();
+  private boolean isClosed;
+
+  /**
+   * @param periodMillis the group commit period, or zero to sync each write alone
+   */
+  DirectorySync(long periodMillis) {
+    this.periodMillis = periodMillis;
+    if (periodMillis > 0) {
+      thread = new Thread(this::run, "filesystem-sync");
+      thread.setDaemon(true);
+      thread.start();
+    } else {
+      thread = null;
+    }
+  }
+
+  /**
+   * Sync directories, returning once they are durable.
+   *
+   * @param directories the directories
+   * @throws IOException thrown if a directory of the group cannot be synced
+   */
+  void sync(Collection<File> directories) throws IOException {
+    if (thread == null) {
+      for (File directory : directories) {
+        FilesystemUtil.syncDirectory(directory);
+      }
+      return;
+    }
+    final Group group;
+    synchronized (this) {
+      if (isClosed) {
+        throw new IOException("closed");
+      }
+      group = pending;
+      group.directories.addAll(directories);
+      notifyAll();
+    }
+    try {
+      group.synced.await();
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for sync");
+    }
+    if (group.failure != null) {
+      throw new IOException("cannot sync directories", group.failure);
+    }
+  }
+
+  /**
+   * Sync what is pending and stop.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      isClosed = true;
+      notifyAll();
+    }
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void run() {
+    while (true) {
+      synchronized (this) {
+        while (pending.directories.isEmpty() && !isClosed) {
+          try {
+            wait();
+          } catch (final InterruptedException ex) {
+            return;
+          }
+        }
+        if (pending.directories.isEmpty()) {
+          return;
+        }
+      }
+      try {
+        // let the group gather
+        Thread.sleep(periodMillis);
+      } catch (final InterruptedException ex) {
+        return;
+      }
+      final Group group;
+      synchronized (this) {
+        group = pending;
+        pending = new Group();
+      }
+      for (File directory : group.directories) {
+        try {
+          FilesystemUtil.syncDirectory(directory);
+        } catch (final IOException ex) {
+          LOG.error("cannot sync " + directory, ex);
+          group.failure = ex;
+        }
+      }
+      group.synced.countDown();
+    }
+  }
+}
@@ -16,22 +16,26 @@
 
 package uk.os.vt.filesystem;
 
-import io.reactivex.BackpressureStrategy;
-import io.reactivex.Flowable;
-import io.reactivex.FlowableEmitter;
-import io.reactivex.FlowableOnSubscribe;
 import io.reactivex.Observable;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.FileUtils;
-
 import uk.os.vt.Entry;
+import uk.os.vt.LazyEntry;
 import uk.os.vt.common.CompressUtil;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
 
 class FilesystemUtil {
 
@@ -43,36 +47,118 @@ class FilesystemUtil {
   private static final int PATTERN_X = 2;
   private static final int PATTERN_Y = 3;
 
-  private static final String DEFAULT_FILE_EXTENSION = ".pbf";
+  static final String DEFAULT_FILE_EXTENSION = ".pbf";
 
   private FilesystemUtil() {}
 
   public static void addEntry(File baseDirectory, Entry entry, boolean useGzipCompression)
       throws IOException {
+    addEntry(baseDirectory, entry, useGzipCompression ? TileCodecs.gzip() : TileCodecs.none());
+  }
+
+  /**
+   * @param baseDirectory the tileset
+   * @param entry the entry
+   * @param codec the codec to compress the tile with
+   * @return the tile as written
+   * @throws IOException thrown on IO error
+   */
+  public static byte[] addEntry(File baseDirectory, Entry entry, TileCodec codec)
+      throws IOException {
     // TODO establish if "limit tiles to 500K bytes" is raw size or
     // compressed size. Suspect former.
 
-    final File destination = getEntryLocationOnDisk(baseDirectory, entry);
+    final byte[] data = codec.encode(entry.getVector());
+    write(getEntryLocationOnDisk(baseDirectory, entry), data, false);
+    return data;
+  }
 
-    byte[] data;
-    if (useGzipCompression) {
-      final byte[] compressed = CompressUtil.getCompressedAsGzip(entry.getVector());
-      data = compressed;
-    } else {
-      data = entry.getVector();
+  /**
+   * Write a file through a temporary file renamed into place, so the file is never seen part
+   * written and concurrent writes of it do not interleave.
+   *
+   * @param destination the file
+   * @param data the contents
+   * @param isDurable true to sync the contents to disk before the rename
+   * @return the directories changed, to be synced for the write itself to be durable
+   * @throws IOException thrown on IO error
+   */
+  static List<File> write(File destination, byte[] data, boolean isDurable) throws IOException {
+    final File parent = destination.getAbsoluteFile().getParentFile();
+    final List<File> changed = new ArrayList<>(1);
+    makeDirectories(parent, changed);
+    changed.add(parent);
+    // hidden, and not named as a tile, so never walked
+    final File temporary = File.createTempFile("." + destination.getName() + "-", ".tmp", parent);
+    try {
+      try (FileOutputStream out = new FileOutputStream(temporary)) {
+        out.write(data);
+        if (isDurable) {
+          out.getFD().sync();
+        }
+      }
+      Files.move(temporary.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (final IOException ex) {
+      if (temporary.exists() && !temporary.delete()) {
+        ex.addSuppressed(new IOException("cannot delete " + temporary));
+      }
+      throw ex;
     }
+    return changed;
+  }
 
-    FileUtils.writeByteArrayToFile(destination, data);
+  /**
+   * Sync a directory, so the files created, renamed or deleted in it are durable.
+   *
+   * @param directory the directory
+   * @throws IOException thrown on IO error, or if the platform cannot open directories
+   */
+  static void syncDirectory(File directory) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    }
   }
 
-  public static void removeEntry(File baseDirectory, Entry entry) throws IOException {
-    final File source = getEntryLocationOnDisk(baseDirectory, entry);
-    if (source.exists() && !source.delete()) {
+  /**
+   * @param baseDirectory the tileset
+   * @param entry the entry
+   * @return true if there was a tile to delete
+   * @throws IOException thrown if the tile cannot be deleted
+   */
+  public static boolean removeEntry(File baseDirectory, Entry entry) throws IOException {
+    return removeEntry(baseDirectory, Layout.FLAT, entry);
+  }
+
+  /**
+   * @param baseDirectory the tileset
+   * @param layout the layout of the tileset
+   * @param entry the entry
+   * @return true if there was a tile to delete
+   * @throws IOException thrown if the tile cannot be deleted
+   */
+  public static boolean removeEntry(File baseDirectory, Layout layout, Entry entry)
+      throws IOException {
+    final File source = getEntryLocationOnDisk(baseDirectory, layout, entry);
+    if (!source.exists()) {
+      return false;
+    }
+    if (!source.delete()) {
       throw new IOException("cannot delete");
     }
+    return true;
   }
 
   public static Entry toEntry(File file) throws IOException {
+    return toEntry(file, null);
+  }
+
+  /**
+   * @param file the tile file
+   * @param codec the codec the tile was written with, null to detect gzip compression
+   * @return the entry, uncompressed on first access
+   * @throws IOException thrown on IO error
+   */
+  public static Entry toEntry(File file, TileCodec codec) throws IOException {
 
     final boolean isValidVtSize = file.length() <= 512 * KILOBYTE;
     if (!isValidVtSize) {
@@ -81,165 +167,145 @@ class FilesystemUtil {
 
     final Matcher m = PATTERN.matcher(file.getAbsolutePath());
     if (m.matches()) {
-      // Android API 26 - byte[] bytes = Files.readAllBytes(file.toPath());
-      byte[] bytes = read(file);
-
-      final boolean isCompressed = CompressUtil.isGzipStream(bytes);
-      bytes = isCompressed ? CompressUtil.getUncompressedFromGzip(bytes) : bytes;
+      final byte[] bytes = read(file);
 
       final int z = Integer.parseInt(m.group(PATTERN_Z));
       final int x = Integer.parseInt(m.group(PATTERN_X));
       final int y = Integer.parseInt(m.group(PATTERN_Y));
-      return new Entry(z, x, y, bytes);
+      // uncompressed, if need be, on first access
+      return new LazyEntry(z, x, y, bytes, codec);
     } else {
       throw new IllegalStateException("file does not match: " + file.getAbsolutePath());
     }
   }
 
   /**
-   * @param path the root directory containing files to be emitted
-   * @param depth offset, where 1 == data directory, 2 == zoom directory, 3 == row, 4 == column
-   * @return a stream of file references to data structured as the Google tiling scheme.
+   * Read a single tile from its known location.
+   *
+   * <p>The coordinates are known, so the directory tree is neither walked nor the path matched.
+   * Where no codec is given gzip compression is detected here, once, from the magic bytes.
+   *
+   * @param baseDirectory the tileset
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @param codec the codec the tile was written with, null to detect gzip compression
+   * @return the entry, uncompressed on first access, or null if there is no such tile
+   * @throws IOException thrown on IO error
    */
-  public static Observable<File> getTiles(String path, int depth) {
-    // programmer's note:
-    // https://medium.com/we-are-yammer/converting-callback-async-calls-to-rxjava-ebc68bde5831
-    // http://vlkan.com/blog/post/2016/07/20/rxjava-backpressure/
-    // Essentially lots of way to skin this cat - e.g. onBackpressureBlock /
-    // reactive pull
-
-    return Flowable.create(new FlowableOnSubscribe<File>() {
-      @Override
-      public void subscribe(FlowableEmitter<File> subscriber) throws Exception {
-        try {
-          // warning: depth 4 is not really walking (semantics)
-          walk(path, depth, subscriber);
-          if (!subscriber.isCancelled()) {
-            subscriber.onComplete();
-          }
-        } catch (final Exception ex) {
-          if (!subscriber.isCancelled()) {
-            subscriber.onError(ex);
-          }
-        }
-      }
-    }, BackpressureStrategy.BUFFER).toObservable();
+  public static Entry readEntry(File baseDirectory, int zoom, int col, int row, TileCodec codec)
+      throws IOException {
+    return readEntry(baseDirectory, Layout.FLAT, zoom, col, row, codec);
   }
 
-  public static Observable<File> getTiles(String path) {
-    // programmer's note:
-    // https://medium.com/we-are-yammer/converting-callback-async-calls-to-rxjava-ebc68bde5831
-    // http://vlkan.com/blog/post/2016/07/20/rxjava-backpressure/
-    // Essentially lots of way to skin this cat - e.g. onBackpressureBlock /
-    // reactive pull
-
-    return Flowable.create(new FlowableOnSubscribe<File>() {
-      @Override
-      public void subscribe(FlowableEmitter<File> subscriber) throws Exception {
-        try {
-          walk(path, 1, subscriber);
-          if (!subscriber.isCancelled()) {
-            subscriber.onComplete();
-          }
-        } catch (final Exception ex) {
-          if (!subscriber.isCancelled()) {
-            subscriber.onError(ex);
-          }
-        }
-      }
-    }, BackpressureStrategy.BUFFER).toObservable();
+  /**
+   * Read a tile directly by its coordinates, without listing or walking directories.
+   *
+   * @param baseDirectory the tileset
+   * @param layout the layout of the tileset
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @param codec the codec the tile was written with, null to detect gzip compression
+   * @return the entry, uncompressed on first access, or null if there is no such tile
+   * @throws IOException thrown on IO error
+   */
+  public static Entry readEntry(File baseDirectory, Layout layout, int zoom, int col, int row,
+      TileCodec codec) throws IOException {
+    final File file = layout.getFile(baseDirectory, zoom, col, row);
+    final byte[] bytes;
+    try {
+      bytes = read(file);
+    } catch (final NoSuchFileException ex) {
+      // cheaper than asking first, as the file is looked up in the same call
+      return null;
+    }
+    return toEntry(zoom, col, row, bytes, codec);
   }
 
-  public static int[] toZxy(File file) {
-    final Matcher m = PATTERN.matcher(file.getAbsolutePath());
-    if (m.matches()) {
-
-      final int z = Integer.parseInt(m.group(PATTERN_Z));
-      final int x = Integer.parseInt(m.group(PATTERN_X));
-      final int y = Integer.parseInt(m.group(PATTERN_Y));
-      return new int[] {z, x, y};
-    } else {
-      throw new IllegalStateException("file does not match: " + file.getAbsolutePath());
-    }
+  /**
+   * Read a tile found by walking the tileset, its coordinates already parsed from the path.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @param file the tile file
+   * @param codec the codec the tile was written with, null to detect gzip compression
+   * @return the entry, uncompressed on first access
+   * @throws IOException thrown on IO error
+   */
+  public static Entry toEntry(int zoom, int col, int row, File file, TileCodec codec)
+      throws IOException {
+    return toEntry(zoom, col, row, read(file), codec);
   }
 
-  private static File getEntryLocationOnDisk(File baseDirectory, Entry entry) {
-    final String relativePath = entry.getZoomLevel() + File.separator + entry.getColumn()
-        + File.separator + entry.getRow() + DEFAULT_FILE_EXTENSION;
-    return new File(baseDirectory, relativePath);
+  private static Entry toEntry(int zoom, int col, int row, byte[] bytes, TileCodec codec) {
+    final TileCodec resolved = codec != null ? codec
+        : bytes.length > 1 && CompressUtil.isGzipStream(bytes) ? TileCodecs.gzip()
+            : TileCodecs.none();
+    return new LazyEntry(zoom, col, row, bytes, resolved);
   }
 
-  // normally this would be "byte[] bytes = Files.readAllBytes(file.toPath());"
-  private static byte[] read(File file) throws IOException {
-    if (file.length() > 512 * KILOBYTE) {
-      throw new IOException("file too big");
+  /**
+   * @param path the root directory containing files to be emitted
+   * @param depth offset, where 1 == data directory, 2 == zoom directory, 3 == row, 4 == column
+   * @return a stream of file references to data structured as the Google tiling scheme.
+   * @see TileWalker
+   */
+  public static Observable<File> getTiles(String path, int depth) {
+    if (depth == 4) {
+      // not walking, the full coordinate is known
+      return Observable.fromArray(getSingleMatchOrEmpty(new File(path)));
     }
+    return TileWalker.walk(new File(path), depth, (zoom, col, row, file) -> file.toFile())
+        .toObservable();
+  }
 
-    byte[] buffer = new byte[(int) file.length()];
-    InputStream ios = null;
-    try {
-      ios = new FileInputStream(file);
-      if (ios.read(buffer) == -1) {
-        throw new IOException(
-            "EOF reached while trying to read the whole file");
-      }
-    } finally {
-      try {
-        if (ios != null) {
-          ios.close();
-        }
-      } catch (IOException expected) { }
-    }
-    return buffer;
+  public static Observable<File> getTiles(String path) {
+    return getTiles(path, 1);
   }
 
   /**
-   * Walk the directory tree.
+   * Create a directory and any missing parents.
    *
-   * @param path the starting path
-   * @param depth offset, where 1 == data directory, 2 == zoom directory, 3 == row, 4 == column
-   * @param subscriber to provide feedback and terminate according to
+   * @param directory the directory
+   * @return the directories changed, to be synced for the creation to be durable
+   * @throws IOException thrown on IO error
    */
-  private static void walk(String path, int depth, FlowableEmitter<File> subscriber) {
-
-    final File root = new File(path);
-
-    File[] list;
-    switch (depth) {
-      case 1:
-      case 2:
-        list = root.listFiles(File::isDirectory);
-        break;
-      case 3:
-        list = root.listFiles(file -> file.isFile() && PATTERN.matcher(file.toString()).matches());
-        break;
-      case 4:
-        // consider removing out of walk
-        list = getSingleMatchOrEmpty(root);
-        break;
-      default:
-        throw new IllegalArgumentException("unsupported depth");
-    }
+  static List<File> makeDirectories(File directory) throws IOException {
+    final List<File> changed = new ArrayList<>(0);
+    makeDirectories(directory.getAbsoluteFile(), changed);
+    return changed;
+  }
 
-    if (list == null) {
+  private static void makeDirectories(File directory, List<File> changed) throws IOException {
+    if (directory == null || directory.isDirectory()) {
       return;
     }
+    makeDirectories(directory.getParentFile(), changed);
+    // another writer may have created it meanwhile
+    if (!directory.mkdir() && !directory.isDirectory()) {
+      throw new IOException("cannot create directory " + directory);
+    }
+    changed.add(directory.getParentFile());
+  }
 
-    for (final File f : list) {
-      if (subscriber.isCancelled()) {
-        return;
-      }
+  static File getEntryLocationOnDisk(File baseDirectory, Entry entry) {
+    return getEntryLocationOnDisk(baseDirectory, Layout.FLAT, entry);
+  }
 
-      if (f.isDirectory()) {
-        walk(f.getAbsolutePath(), depth + 1, subscriber);
-      } else {
-        // move close as possible - but no guarantee!
-        final boolean isSubscribed = !subscriber.isCancelled();
-        if (isSubscribed) {
-          subscriber.onNext(f);
-        }
-      }
+  static File getEntryLocationOnDisk(File baseDirectory, Layout layout, Entry entry) {
+    return layout.getFile(baseDirectory, entry.getZoomLevel(), entry.getColumn(),
+        entry.getRow());
+  }
+
+  static byte[] read(File file) throws IOException {
+    final Path path = file.toPath();
+    if (Files.size(path) > 512 * KILOBYTE) {
+      throw new IOException("Illegal vector tile - file exceeds 500kb! "
+          + file.getAbsolutePath());
     }
+    return Files.readAllBytes(path);
   }
 
   /**
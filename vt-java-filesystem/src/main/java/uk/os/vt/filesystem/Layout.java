@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * How tile files are arranged under the tileset directory.
+ */
+public enum Layout {
+
+  /**
+   * z/x/y.pbf, as written and served by most tools.  The default.
+   */
+  FLAT,
+
+  /**
+   * z/(x / 256)/x/(y / 256)/y.pbf, so no directory holds more than 256 entries below the zoom
+   * level, however many tiles it has.  Suits zoom levels of 16 and above, whose column
+   * directories would otherwise hold tens of thousands of tiles, slowing lookups and listings.
+   */
+  SHARDED;
+
+  private static final String FILENAME = "layout.json";
+  private static final String KEY = "layout";
+  private static final int SHARD_BITS = 8;
+
+  /**
+   * The file of a tile.
+   *
+   * @param directory the tileset
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @return the file
+   */
+  File getFile(File directory, int zoom, int col, int row) {
+    final String path;
+    if (this == FLAT) {
+      path = zoom + File.separator + col + File.separator + row
+          + FilesystemUtil.DEFAULT_FILE_EXTENSION;
+    } else {
+      path = zoom + File.separator + shardOf(col) + File.separator + col + File.separator
+          + shardOf(row) + File.separator + row + FilesystemUtil.DEFAULT_FILE_EXTENSION;
+    }
+    return new File(directory, path);
+  }
+
+  /**
+   * The shard directory of a column or row.
+   *
+   * @param coordinate the column or row
+   * @return the name of the shard directory
+   */
+  static int shardOf(int coordinate) {
+    return coordinate >>> SHARD_BITS;
+  }
+
+  /**
+   * The layout recorded with a tileset.
+   *
+   * @param directory the tileset
+   * @return the layout, {@link #FLAT} if none is recorded
+   * @throws IOException thrown if the record cannot be read
+   */
+  static Layout read(File directory) throws IOException {
+    final File file = new File(directory, FILENAME);
+    if (!file.exists()) {
+      return FLAT;
+    }
+    try {
+      final JSONObject json = new JSONObject(
+          new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+      return valueOf(json.getString(KEY).toUpperCase(Locale.ROOT));
+    } catch (final JSONException | IllegalArgumentException ex) {
+      throw new IOException(String.format("cannot read '%s'", file), ex);
+    }
+  }
+
+  /**
+   * Record this layout with a tileset.  Nothing is recorded for {@link #FLAT}, so tilesets
+   * keep to the files other tools expect.
+   *
+   * @param directory the tileset
+   * @throws IOException thrown if the record cannot be written
+   */
+  void record(File directory) throws IOException {
+    final File file = new File(directory, FILENAME);
+    if (this == FLAT) {
+      Files.deleteIfExists(file.toPath());
+      return;
+    }
+    final JSONObject json = new JSONObject();
+    try {
+      json.put(KEY, name().toLowerCase(Locale.ROOT));
+    } catch (final JSONException ex) {
+      throw new IOException("cannot record layout", ex);
+    }
+    FilesystemUtil.write(file, json.toString().getBytes(StandardCharsets.UTF_8), false);
+  }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.filesystem;
+
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the tiles of a tileset, so the tileset need not be listed or walked to be
+ * described.
+ *
+ * <p>The file is a header followed by fixed size records, each a put or delete of a packed tile
+ * id with the size and hash of the tile as stored.  Records are only ever appended.  Once most
+ * records are superseded the file is compacted, rewritten with a put per tile and swapped into
+ * place.  A record torn by a crash is discarded on open, and a manifest that cannot be read at
+ * all is rebuilt.  The compacted file is synced before it is swapped into place, and records are
+ * synced as they are appended when writes are durable.
+ *
+ * <p>The tiles are held in memory, at some tens of bytes each.  Tiles written to the directory
+ * by anything else are not seen until the manifest is rebuilt.
+ */
+final class Manifest implements Closeable {
+
+  static final String FILENAME = "manifest.bin";
+  static final int MAX_ZOOM_LEVEL = 22;
+
+  private static final Logger LOG = LoggerFactory.getLogger(Manifest.class.getSimpleName());
+
+  private static final int MAGIC = 0x56544d46; // VTMF
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 8;
+  private static final int RECORD_BYTES = 1 + 8 + 4 + 8;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int COORDINATE_BITS = MAX_ZOOM_LEVEL;
+  private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+  private static final long MIN_COMPACTION_RECORDS = 10000;
+
+  /**
+   * The size and hash of a tile as stored.
+   */
+  static final class Tile {
+
+    private final int size;
+    private final long hash;
+
+    Tile(byte[] data) {
+      this(data.length, hash(data));
+    }
+
+    Tile(int size, long hash) {
+      this.size = size;
+      this.hash = hash;
+    }
+
+    int getSize() {
+      return size;
+    }
+
+    long getHash() {
+      return hash;
+    }
+
+    private static long hash(byte[] data) {
+      return Hashing.farmHashFingerprint64().hashBytes(data).asLong();
+    }
+  }
+
+  private final File directory;
+  private final Layout layout;
+  private final File file;
+  private final boolean isDurable;
+  private final Map<Long, Tile> tiles = new HashMap<>();
+  private final int[] counts = new int[MAX_ZOOM_LEVEL + 1];
+  private DataOutputStream out;
+  // the channel appended to by out
+  private FileChannel channel;
+  private long records;
+
+  private Manifest(File directory, Layout layout, boolean isDurable) {
+    this.directory = directory;
+    this.layout = layout;
+    this.file = new File(directory, FILENAME);
+    this.isDurable = isDurable;
+  }
+
+  /**
+   * Open the manifest of a tileset, building one from the tiles in the directory if there is
+   * none.
+   *
+   * <p>A manifest is only written once built, so a build that fails or is interrupted leaves
+   * none behind, and the next open builds it again.
+   *
+   * <p>A manifest that cannot be read, left empty or corrupt by a crash, is rebuilt.
+   *
+   * @param directory the tileset
+   * @param layout the layout of the tileset, walked to build the manifest
+   * @param isDurable true to sync each record as it is appended
+   * @return the manifest
+   * @throws IOException thrown if the manifest cannot be built
+   */
+  static Manifest open(File directory, Layout layout, boolean isDurable) throws IOException {
+    final Manifest manifest = new Manifest(directory, layout, isDurable);
+    if (manifest.file.exists()) {
+      try {
+        manifest.load();
+        manifest.append();
+        return manifest;
+      } catch (final IOException ex) {
+        LOG.warn("cannot read " + manifest.file + " - rebuilding", ex);
+      }
+    }
+    manifest.rebuild();
+    return manifest;
+  }
+
+  static boolean exists(File directory) {
+    return new File(directory, FILENAME).exists();
+  }
+
+  /**
+   * Whether a tile can be held, its zoom level and coordinates being in range.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @return true if the tile can be held
+   */
+  static boolean isIndexable(int zoom, int col, int row) {
+    return 0 <= zoom && zoom <= MAX_ZOOM_LEVEL && 0 <= col && col < 1 << zoom && 0 <= row
+        && row < 1 << zoom;
+  }
+
+  static long pack(int zoom, int col, int row) {
+    return (long) zoom << 2 * COORDINATE_BITS | (long) col << COORDINATE_BITS | row;
+  }
+
+  static int zoomOf(long id) {
+    return (int) (id >>> 2 * COORDINATE_BITS);
+  }
+
+  static int columnOf(long id) {
+    return (int) (id >>> COORDINATE_BITS & COORDINATE_MASK);
+  }
+
+  static int rowOf(long id) {
+    return (int) (id & COORDINATE_MASK);
+  }
+
+  /**
+   * Record a tile as written.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @param tile the tile as stored
+   * @throws IOException thrown if the record cannot be written
+   */
+  synchronized void put(int zoom, int col, int row, Tile tile) throws IOException {
+    if (!isIndexable(zoom, col, row)) {
+      return;
+    }
+    final long id = pack(zoom, col, row);
+    write(PUT, id, tile);
+    if (tiles.put(id, tile) == null) {
+      counts[zoom]++;
+    }
+    compactIfSparse();
+  }
+
+  /**
+   * Record a tile as deleted.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @throws IOException thrown if the record cannot be written
+   */
+  synchronized void remove(int zoom, int col, int row) throws IOException {
+    if (!isIndexable(zoom, col, row)) {
+      return;
+    }
+    final long id = pack(zoom, col, row);
+    if (tiles.containsKey(id)) {
+      write(DELETE, id, null);
+      tiles.remove(id);
+      counts[zoom]--;
+      compactIfSparse();
+    }
+  }
+
+  synchronized boolean contains(int zoom, int col, int row) {
+    return isIndexable(zoom, col, row) && tiles.containsKey(pack(zoom, col, row));
+  }
+
+  synchronized Tile get(int zoom, int col, int row) {
+    return isIndexable(zoom, col, row) ? tiles.get(pack(zoom, col, row)) : null;
+  }
+
+  synchronized int size() {
+    return tiles.size();
+  }
+
+  /**
+   * The zoom levels holding tiles.
+   *
+   * @return the zoom levels, in ascending order
+   */
+  synchronized int[] getZoomLevels() {
+    int length = 0;
+    final int[] result = new int[counts.length];
+    for (int zoom = 0; zoom < counts.length; zoom++) {
+      if (counts[zoom] > 0) {
+        result[length++] = zoom;
+      }
+    }
+    return Arrays.copyOf(result, length);
+  }
+
+  /**
+   * The ids of the tiles held, in zoom level, column then row order.
+   *
+   * @param zoom the zoom level, or -1 for all
+   * @return the packed tile ids
+   */
+  synchronized long[] getIds(int zoom) {
+    final long[] result = new long[zoom < 0 ? tiles.size()
+        : zoom <= MAX_ZOOM_LEVEL ? counts[zoom] : 0];
+    int length = 0;
+    for (long id : tiles.keySet()) {
+      if (zoom < 0 || zoomOf(id) == zoom) {
+        result[length++] = id;
+      }
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * Rebuild the manifest from the tiles in the directory.
+   *
+   * <p>The directory is walked without holding up writes, so tiles written meanwhile may be
+   * missed.
+   *
+   * @return the number of tiles found
+   * @throws IOException thrown if the directory cannot be walked or the manifest rewritten
+   */
+  int rebuild() throws IOException {
+    final Map<Long, Tile> found = new HashMap<>();
+    try {
+      TileWalker.walk(directory, layout, 1, (zoom, col, row, path) ->
+          isIndexable(zoom, col, row)
+              ? new SimpleImmutableEntry<>(pack(zoom, col, row),
+                  new Tile(FilesystemUtil.read(path.toFile())))
+              : new SimpleImmutableEntry<Long, Tile>(-1L, null))
+          .filter(entry -> entry.getValue() != null)
+          .blockingForEach(entry -> found.put(entry.getKey(), entry.getValue()));
+    } catch (final RuntimeException ex) {
+      throw new IOException("cannot rebuild manifest of " + directory, ex);
+    }
+    replace(found);
+    LOG.info(String.format("rebuilt manifest of '%s' - %d tiles", directory, found.size()));
+    return found.size();
+  }
+
+  private synchronized void replace(Map<Long, Tile> replacement) throws IOException {
+    tiles.clear();
+    Arrays.fill(counts, 0);
+    for (Map.Entry<Long, Tile> entry : replacement.entrySet()) {
+      tiles.put(entry.getKey(), entry.getValue());
+      counts[zoomOf(entry.getKey())]++;
+    }
+    rewrite();
+  }
+
+  /**
+   * Rewrite the manifest with a record per tile.
+   *
+   * @throws IOException thrown if the manifest cannot be rewritten
+   */
+  synchronized void compact() throws IOException {
+    rewrite();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+      channel = null;
+    }
+  }
+
+  private void compactIfSparse() throws IOException {
+    if (records > MIN_COMPACTION_RECORDS && records > 2L * tiles.size()) {
+      rewrite();
+    }
+  }
+
+  private void write(byte op, long id, Tile tile) throws IOException {
+    if (out == null) {
+      throw new IOException("manifest is closed");
+    }
+    out.writeByte(op);
+    out.writeLong(id);
+    out.writeInt(tile == null ? 0 : tile.size);
+    out.writeLong(tile == null ? 0 : tile.hash);
+    // one write per record, a record is never left buffered
+    out.flush();
+    if (isDurable) {
+      channel.force(false);
+    }
+    records++;
+  }
+
+  private void rewrite() throws IOException {
+    close();
+    final File temporary = new File(file.getPath() + ".tmp");
+    try {
+      try (FileOutputStream stream = new FileOutputStream(temporary);
+          DataOutputStream copy = new DataOutputStream(new BufferedOutputStream(stream))) {
+        copy.writeInt(MAGIC);
+        copy.writeInt(VERSION);
+        for (Map.Entry<Long, Tile> entry : tiles.entrySet()) {
+          copy.writeByte(PUT);
+          copy.writeLong(entry.getKey());
+          copy.writeInt(entry.getValue().size);
+          copy.writeLong(entry.getValue().hash);
+        }
+        // synced before the swap, so a crash cannot leave the manifest empty or part written
+        copy.flush();
+        stream.getChannel().force(true);
+      }
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (final IOException ex) {
+      if (temporary.exists() && !temporary.delete()) {
+        LOG.warn("cannot delete " + temporary);
+      }
+      throw ex;
+    }
+    records = tiles.size();
+    append();
+    FilesystemUtil.syncDirectory(directory);
+  }
+
+  private void load() throws IOException {
+    long length = HEADER_BYTES;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("not a manifest, or an unsupported version: " + file);
+      }
+      final byte[] record = new byte[RECORD_BYTES];
+      while (true) {
+        try {
+          in.readFully(record);
+        } catch (final EOFException ex) {
+          break;
+        }
+        apply(record);
+        length += RECORD_BYTES;
+        records++;
+      }
+    } catch (final EOFException ex) {
+      throw new IOException("not a manifest: " + file, ex);
+    }
+    if (length < file.length()) {
+      LOG.warn("discarding a torn record at the end of " + file);
+      try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+        truncate.setLength(length);
+      }
+    }
+  }
+
+  private void apply(byte[] record) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(record);
+    final byte op = buffer.get();
+    final long id = buffer.getLong();
+    final Tile tile = new Tile(buffer.getInt(), buffer.getLong());
+    final int zoom = zoomOf(id);
+    if (zoom > MAX_ZOOM_LEVEL) {
+      throw new IOException("corrupt manifest: " + file);
+    }
+    if (op == PUT) {
+      if (tiles.put(id, tile) == null) {
+        counts[zoom]++;
+      }
+    } else if (op == DELETE) {
+      if (tiles.remove(id) != null) {
+        counts[zoom]--;
+      }
+    } else {
+      throw new IOException("corrupt manifest: " + file);
+    }
+  }
+
+  private void append() throws IOException {
+    final FileOutputStream stream = new FileOutputStream(file, true);
+    channel = stream.getChannel();
+    out = new DataOutputStream(new BufferedOutputStream(stream, RECORD_BYTES));
+  }
+}
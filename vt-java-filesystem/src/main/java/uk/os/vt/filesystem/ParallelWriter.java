@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.filesystem;
+
+import io.reactivex.Observable;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.os.vt.Entry;
+import uk.os.vt.common.TileCodec;
+
+/**
+ * Writes tiles in parallel, compressing them on a pool of threads sized to the processors and
+ * writing them on a pool sized to the parallelism.
+ *
+ * <p>Tiles are taken from the source on its own thread, which waits whilst twice the
+ * parallelism are in flight, so memory is bounded however fast the source.  Writes of the same
+ * tile are made in the order emitted.  The first failure stops the write, tiles written
+ * meanwhile remain.
+ *
+ * <p>The pools are shared by every write, their threads started as first needed, until closed.
+ */
+final class ParallelWriter implements AutoCloseable {
+
+  private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+  private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+  private final TileCodec codec;
+  private final int parallelism;
+  private final TileSink sink;
+  private final ExecutorService compressors;
+  private final ExecutorService writers;
+
+  /**
+   * @param codec the codec to compress tiles with
+   * @param parallelism the number of tiles written at once
+   * @param sink writes the compressed tiles
+   */
+  ParallelWriter(TileCodec codec, int parallelism, TileSink sink) {
+    this.codec = codec;
+    this.parallelism = parallelism;
+    this.sink = sink;
+    this.compressors = newPool("filesystem-compress", Math.min(parallelism, PROCESSORS));
+    this.writers = newPool("filesystem-write", parallelism);
+  }
+
+  /**
+   * Write tiles, returning once every tile is written or the write has failed.
+   *
+   * @param entries the tiles
+   * @return the number of tiles written
+   * @throws IOException the first problem encountered, from the source or writing a tile,
+   *     unchecked problems being thrown as they are
+   */
+  long write(Observable<Entry> entries) throws IOException {
+    final Run run = new Run();
+    final CountDownLatch isTerminated = new CountDownLatch(1);
+    entries.subscribe(new Observer<Entry>() {
+      private Disposable upstream;
+
+      @Override
+      public void onSubscribe(Disposable disposable) {
+        upstream = disposable;
+      }
+
+      @Override
+      public void onNext(Entry entry) {
+        if (!run.submit(entry)) {
+          upstream.dispose();
+          isTerminated.countDown();
+        }
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        run.fail(throwable);
+        isTerminated.countDown();
+      }
+
+      @Override
+      public void onComplete() {
+        isTerminated.countDown();
+      }
+    });
+    try {
+      isTerminated.await();
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      run.fail(ex);
+    }
+    return run.finish();
+  }
+
+  /**
+   * Stop the pools, abandoning any write still in flight.
+   */
+  @Override
+  public void close() {
+    compressors.shutdownNow();
+    writers.shutdownNow();
+  }
+
+  private static ExecutorService newPool(String name, int threads) {
+    return Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * The tiles in flight of a single write.
+   */
+  private final class Run {
+
+    private final int maxInFlight = parallelism * 2;
+    private final Semaphore permits = new Semaphore(maxInFlight);
+    // the last write in flight of each tile
+    private final ConcurrentMap<Long, CompletableFuture<Void>> lastWrites =
+        new ConcurrentHashMap<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * Submit a tile, waiting whilst too many are in flight.
+     *
+     * @param entry the tile
+     * @return false if the write has failed
+     */
+    boolean submit(Entry entry) {
+      if (failure.get() != null) {
+        return false;
+      }
+      try {
+        permits.acquire();
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        fail(ex);
+        return false;
+      }
+      final long key = Manifest.pack(entry.getZoomLevel(), entry.getColumn(), entry.getRow());
+      final CompletableFuture<Void> previous = lastWrites.getOrDefault(key, DONE);
+      final CompletableFuture<Void> write;
+      try {
+        write = CompletableFuture
+            .supplyAsync(() -> compress(entry), compressors)
+            // an earlier write of the same tile goes first, so the last emitted wins
+            .thenCombine(previous, (data, ignored) -> data)
+            .thenAcceptAsync(data -> store(entry, data), writers);
+      } catch (final RejectedExecutionException ex) {
+        permits.release();
+        fail(new IOException("storage is closed", ex));
+        return false;
+      }
+      lastWrites.put(key, write);
+      write.whenComplete((ignored, throwable) -> {
+        lastWrites.remove(key, write);
+        if (throwable == null) {
+          written.incrementAndGet();
+        } else {
+          fail(throwable);
+        }
+        permits.release();
+      });
+      return true;
+    }
+
+    private byte[] compress(Entry entry) {
+      checkNotFailed();
+      try {
+        return codec.encode(entry.getVector());
+      } catch (final IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+
+    private void store(Entry entry, byte[] data) {
+      checkNotFailed();
+      try {
+        sink.write(entry, data);
+      } catch (final IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+
+    private void checkNotFailed() {
+      if (failure.get() != null) {
+        throw new CancellationException();
+      }
+    }
+
+    void fail(Throwable throwable) {
+      Throwable cause = throwable;
+      while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+          && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      // tiles skipped after the failure are not failures of their own
+      if (!(cause instanceof CancellationException)) {
+        failure.compareAndSet(null, cause);
+      }
+    }
+
+    /**
+     * Wait for the tiles in flight.
+     *
+     * @return the number of tiles written
+     * @throws IOException the first problem encountered, unless unchecked
+     */
+    long finish() throws IOException {
+      permits.acquireUninterruptibly(maxInFlight);
+      final Throwable cause = failure.get();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (IOException) new InterruptedIOException("interrupted writing tiles")
+            .initCause(cause);
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      if (cause != null) {
+        throw new IOException("cannot write tiles", cause);
+      }
+      return written.get();
+    }
+  }
+
+  /**
+   * Writes compressed tiles.
+   */
+  interface TileSink {
+
+    /**
+     * Write a tile.
+     *
+     * @param entry the tile
+     * @param data the compressed tile
+     * @throws IOException thrown on IO error
+     */
+    void write(Entry entry, byte[] data) throws IOException;
+  }
+}
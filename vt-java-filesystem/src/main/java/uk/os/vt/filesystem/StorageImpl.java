@@ -16,9 +16,10 @@
 
 package uk.os.vt.filesystem;
 
+import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Ints;
-
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Striped;
 
 import io.reactivex.Observable;
 import io.reactivex.Single;
@@ -28,38 +29,72 @@ import io.reactivex.functions.BiFunction;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.AbstractFileFilter;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.os.vt.Entry;
+import uk.os.vt.Key;
 import uk.os.vt.Metadata;
 import uk.os.vt.MetadataProvider;
 import uk.os.vt.Storage;
 import uk.os.vt.StorageResult;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
 
 public final class StorageImpl implements Storage, MetadataProvider {
 
   private static final int[] UNDEFINED_ZXY = new int[]{};
+  private static final int ALL_ZOOM_LEVELS = -1;
+  private static final int LOCK_STRIPES = 256;
+  private static final int DEFAULT_WRITE_PARALLELISM = 4;
 
   private final File directory;
-  private final boolean gzipEnabled;
+  private final Layout layout;
+  private final TileCodec writeCodec;
+  private final TileCodec readCodec;
+  // null if the tileset has no manifest
+  private final Manifest manifest;
+  // null unless writes are durable
+  private final DirectorySync directorySync;
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+  private final ParallelWriter parallelWriter;
 
   private static final Logger LOG = LoggerFactory.getLogger(StorageImpl.class);
 
   @Override
   public Single<Metadata> generateDefault() {
+    if (manifest != null) {
+      return Single.fromCallable(() -> {
+        final int[] zoomLevels = manifest.getZoomLevels();
+        return zoomLevels.length == 0 ? new Metadata.Builder().build()
+            : new Metadata.Builder().setMinZoom(zoomLevels[0])
+                .setMaxZoom(zoomLevels[zoomLevels.length - 1]).build();
+      });
+    }
     final int[] zMinMax = getMaxMin(tileFilenames(directory));
-    return FilesystemUtil
-        .getTiles(new File(directory, String.valueOf(zMinMax[1])).getAbsolutePath(), 2)
-        .map(FilesystemUtil::toZxy).reduce(UNDEFINED_ZXY, new BiFunction<int[], int[], int[]>() {
+    return TileWalker
+        .walk(new File(directory, String.valueOf(zMinMax[1])), layout, 2,
+            (zoom, col, row, file) -> new int[] {zoom, col, row})
+        .reduce(UNDEFINED_ZXY, new BiFunction<int[], int[], int[]>() {
           @Override
           public int[] apply(int[] aa, int[] bb) throws Exception {
             return aa == UNDEFINED_ZXY ? (bb == UNDEFINED_ZXY ? UNDEFINED_ZXY : bb)
@@ -88,14 +123,27 @@ public final class StorageImpl implements Storage, MetadataProvider {
     });
   }
 
-  private StorageImpl(File directory, boolean gzipEnabled) {
+  private StorageImpl(File directory, Layout layout, TileCodec codec, Manifest manifest,
+      DirectorySync directorySync, int writeParallelism) {
     this.directory = directory;
-    this.gzipEnabled = gzipEnabled;
+    this.layout = layout;
+    this.writeCodec = codec;
+    // gzip and uncompressed tiles are told apart by sniffing, so either may be read
+    this.readCodec = CodecConcern.isSniffable(codec) ? null : codec;
+    this.manifest = manifest;
+    this.directorySync = directorySync;
+    this.parallelWriter = new ParallelWriter(codec, writeParallelism, this::add);
   }
 
   @Override
   public void close() throws Exception {
-    // no resources to free
+    parallelWriter.close();
+    if (directorySync != null) {
+      directorySync.close();
+    }
+    if (manifest != null) {
+      manifest.close();
+    }
   }
 
   @Override
@@ -103,38 +151,86 @@ public final class StorageImpl implements Storage, MetadataProvider {
     return getEntries(directory);
   }
 
-  private static Observable<Entry> getEntries(File directory) {
-    return FilesystemUtil.getTiles(directory.getPath()).map(file -> {
-      try {
-        return FilesystemUtil.toEntry(file);
-      } catch (final IOException ex) {
-        throw Exceptions.propagate(ex);
-      }
-    });
+  private Observable<Entry> getEntries(File directory) {
+    return walkEntries(directory, 1);
   }
 
   @Override
   public Observable<Entry> getEntries(int zoom) {
-    return FilesystemUtil.getTiles(directory.getPath() + File.separator + zoom, 2).map(file -> {
-      try {
-        return FilesystemUtil.toEntry(file);
-      } catch (final IOException ex) {
-        throw Exceptions.propagate(ex);
-      }
-    });
+    return walkEntries(new File(directory, String.valueOf(zoom)), 2);
+  }
+
+  private Observable<Entry> walkEntries(File start, int depth) {
+    // tiles are read on the threads of the walk
+    return TileWalker.walk(start, layout, depth, (zoom, col, row, file) ->
+        FilesystemUtil.toEntry(zoom, col, row, file.toFile(), readCodec)).toObservable();
   }
 
   @Override
   public Observable<Entry> getEntry(int zoom, int col, int row) {
-    return FilesystemUtil.getTiles(
-        directory.getPath() + File.separator + zoom + File.separator + col + File.separator + row,
-        4).map(file -> {
-          try {
-            return FilesystemUtil.toEntry(file);
-          } catch (final IOException ex) {
-            throw Exceptions.propagate(ex);
-          }
-        });
+    return Observable.defer(() -> {
+      final Entry entry = FilesystemUtil.readEntry(directory, layout, zoom, col, row,
+          readCodec);
+      return entry == null ? Observable.empty() : Observable.just(entry);
+    });
+  }
+
+  /**
+   * Get the keys of the tiles held, answered from the manifest if there is one.
+   *
+   * @return the keys, in zoom level, column then row order if answered from the manifest
+   */
+  public Observable<Key> getKeys() {
+    return keys(ALL_ZOOM_LEVELS);
+  }
+
+  /**
+   * Get the keys of the tiles held at a zoom level, answered from the manifest if there is one.
+   *
+   * @param zoom the zoom level
+   * @return the keys, in column then row order if answered from the manifest
+   */
+  public Observable<Key> getKeys(int zoom) {
+    return zoom < 0 ? Observable.empty() : keys(zoom);
+  }
+
+  private Observable<Key> keys(int zoom) {
+    if (manifest == null) {
+      final File start = zoom == ALL_ZOOM_LEVELS ? directory
+          : new File(directory, String.valueOf(zoom));
+      return TileWalker.walk(start, layout, zoom == ALL_ZOOM_LEVELS ? 1 : 2,
+          (z, col, row, file) -> new Key(z, col, row)).toObservable();
+    }
+    return Observable.defer(() -> Observable.fromIterable(Longs.asList(manifest.getIds(zoom))))
+        .map(id -> new Key(Manifest.zoomOf(id), Manifest.columnOf(id), Manifest.rowOf(id)));
+  }
+
+  /**
+   * Whether a tile is held, answered from the manifest if there is one.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @return true if the tile is held
+   */
+  public boolean contains(int zoom, int col, int row) {
+    return manifest != null ? manifest.contains(zoom, col, row)
+        : layout.getFile(directory, zoom, col, row).isFile();
+  }
+
+  /**
+   * Rebuild the manifest from the tiles in the directory, as after tiles are written by other
+   * tools.  Tiles written by this storage meanwhile may be missed.
+   *
+   * @return the number of tiles found
+   * @throws IOException thrown if the manifest cannot be rebuilt
+   * @throws IllegalStateException thrown if the tileset has no manifest
+   */
+  public int rebuildManifest() throws IOException {
+    if (manifest == null) {
+      throw new IllegalStateException("tileset has no manifest");
+    }
+    return manifest.rebuild();
   }
 
   @Override
@@ -154,23 +250,39 @@ public final class StorageImpl implements Storage, MetadataProvider {
     });
   }
 
+  /**
+   * Write entries in parallel, see {@link Builder#setWriteParallelism(int)}.
+   *
+   * @param entries the entries to write
+   * @throws RuntimeException thrown if an entry cannot be written, or the entries fail
+   */
   @Override
-  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED")
   public void putEntries(Observable<Entry> entries) {
-    entries.subscribe(entry -> {
-      try {
-        FilesystemUtil.addEntry(directory, entry, gzipEnabled);
-      } catch (final IOException ex) {
-        throw Exceptions.propagate(ex);
-      }
-    });
+    final long count = putEntriesInParallel(entries).blockingGet();
+    LOG.debug("put {} entries", count);
+  }
+
+  /**
+   * Write entries in parallel, tiles compressed on a pool of threads sized to the processors
+   * and written on a pool sized to the write parallelism.
+   *
+   * <p>The entries are subscribed to on the subscribing thread, which waits whilst twice the
+   * write parallelism are in flight.  Should a tile fail to be written, or the entries fail, no
+   * more are written and those written meanwhile remain.
+   *
+   * @param entries the entries to write
+   * @return the number of entries written, once all are, or the first problem encountered
+   * @see Builder#setWriteParallelism(int)
+   */
+  public Single<Long> putEntriesInParallel(Observable<Entry> entries) {
+    return Single.fromCallable(() -> parallelWriter.write(entries));
   }
 
   @Override
   public Observable<StorageResult> put(Observable<Entry> entries) {
     return entries.map(entry -> {
       try {
-        FilesystemUtil.addEntry(directory, entry, gzipEnabled);
+        add(entry);
         return new StorageResult(entry);
       } catch (final IOException ex) {
         return new StorageResult(entry, new IOException("cannot put entry", ex));
@@ -199,7 +311,7 @@ public final class StorageImpl implements Storage, MetadataProvider {
   public Observable<StorageResult> delete(Observable<Entry> entries) {
     return entries.map(entry -> {
       try {
-        FilesystemUtil.removeEntry(directory, entry);
+        remove(entry);
         return new StorageResult(entry);
       } catch (final IOException ex) {
         return new StorageResult(entry, new IOException("cannot delete entry", ex));
@@ -207,6 +319,114 @@ public final class StorageImpl implements Storage, MetadataProvider {
     });
   }
 
+  private void add(Entry entry) throws IOException {
+    add(entry, writeCodec.encode(entry.getVector()));
+  }
+
+  private void add(Entry entry, byte[] data) throws IOException {
+    final File destination = FilesystemUtil.getEntryLocationOnDisk(directory, layout, entry);
+    final List<File> changed;
+    // the manifest records writes of a tile in the order they reach the disk
+    final Lock lock = lockOf(entry);
+    lock.lock();
+    try {
+      changed = FilesystemUtil.write(destination, data, directorySync != null);
+      if (manifest != null) {
+        manifest.put(entry.getZoomLevel(), entry.getColumn(), entry.getRow(),
+            new Manifest.Tile(data));
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (directorySync != null) {
+      directorySync.sync(changed);
+    }
+  }
+
+  private void remove(Entry entry) throws IOException {
+    final boolean isRemoved;
+    final Lock lock = lockOf(entry);
+    lock.lock();
+    try {
+      isRemoved = FilesystemUtil.removeEntry(directory, layout, entry);
+      if (manifest != null) {
+        manifest.remove(entry.getZoomLevel(), entry.getColumn(), entry.getRow());
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (isRemoved && directorySync != null) {
+      directorySync.sync(Collections.singletonList(
+          FilesystemUtil.getEntryLocationOnDisk(directory, layout, entry).getAbsoluteFile()
+              .getParentFile()));
+    }
+  }
+
+  /**
+   * Move the tiles of a tileset into another layout, recording it with the tileset.
+   *
+   * <p>The tileset must not be open meanwhile.  Tiles are moved rather than copied, so no more
+   * space is needed, and the new layout is only recorded once every tile is moved.  Should the
+   * migration be interrupted, tiles already moved are not seen until it is run again.  A
+   * manifest is unaffected, tiles keeping their coordinates.
+   *
+   * @param directory the tileset
+   * @param layout the layout to move to
+   * @return the number of tiles moved
+   * @throws IOException thrown if a tile cannot be moved, or the layout recorded
+   */
+  public static long migrate(File directory, Layout layout) throws IOException {
+    if (!directory.isDirectory()) {
+      throw new IOException(String.format("not a directory: '%s'", directory));
+    }
+    final Layout current = Layout.read(directory);
+    if (current == layout) {
+      return 0;
+    }
+    final long count;
+    try {
+      // the names of the two layouts never collide, so tiles moved are not walked again
+      count = TileWalker.walk(directory, current, 1, (zoom, col, row, file) -> {
+        final File target = layout.getFile(directory, zoom, col, row);
+        FilesystemUtil.makeDirectories(target.getAbsoluteFile().getParentFile());
+        Files.move(file, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return target;
+      }).count().blockingGet();
+    } catch (final RuntimeException ex) {
+      throw new IOException(String.format("cannot migrate '%s' to %s", directory, layout), ex);
+    }
+    for (String zoom : tileFilenames(directory)) {
+      removeEmptyDirectories(new File(directory, zoom).toPath());
+    }
+    layout.record(directory);
+    LOG.info(String.format("migrated %d tiles of '%s' from %s to %s", count, directory, current,
+        layout));
+    return count;
+  }
+
+  private static void removeEmptyDirectories(Path zoom) throws IOException {
+    Files.walkFileTree(zoom, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+        if (ex != null) {
+          throw ex;
+        }
+        if (!dir.equals(zoom)) {
+          try {
+            Files.delete(dir);
+          } catch (final DirectoryNotEmptyException notEmpty) {
+            // still holds tiles
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private Lock lockOf(Entry entry) {
+    return locks.get(Manifest.pack(entry.getZoomLevel(), entry.getColumn(), entry.getRow()));
+  }
+
   private int[] getMaxMin(String[] value) {
     int max = Integer.MIN_VALUE;
     int min = Integer.MAX_VALUE;
@@ -236,6 +456,9 @@ public final class StorageImpl implements Storage, MetadataProvider {
   }
 
   private int[] getZoomLevels() {
+    if (manifest != null) {
+      return manifest.getZoomLevels();
+    }
     final List<Integer> zoomLevels = new ArrayList<>();
     final File[] files = directory.listFiles();
 
@@ -257,11 +480,83 @@ public final class StorageImpl implements Storage, MetadataProvider {
     return result;
   }
 
+  /**
+   * Tiles written with a codec that cannot be detected from the file contents are recorded in a
+   * file alongside config.json, so metadata written by users is left alone.
+   */
+  private static class CodecConcern {
+
+    private static final String FILENAME = "compression.json";
+
+    private static boolean isSniffable(TileCodec codec) {
+      return codec.getName().equals(TileCodecs.GZIP) || codec.getName().equals(TileCodecs.NONE);
+    }
+
+    /**
+     * Establish the codec of a tileset, recording the requested codec where need be.
+     *
+     * @param directory the tileset
+     * @param requested the codec requested by the user, or the default
+     * @param isRequested false if the user left the codec as the default
+     * @param isPopulated true if the tileset already holds tiles
+     * @return the codec
+     * @throws IOException thrown on IO error, or if the codec of a populated tileset would change
+     */
+    private static TileCodec resolve(File directory, TileCodec requested, boolean isRequested,
+        boolean isPopulated) throws IOException {
+      final File file = new File(directory, FILENAME);
+      if (file.exists()) {
+        final TileCodec codec;
+        try {
+          final JSONObject json = new JSONObject(FileUtils.readFileToString(file, "UTF-8"));
+          codec = TileCodecs.forName(json.getString(TileCodecs.METADATA_COMPRESSION),
+              BaseEncoding.base64().decode(json.optString(TileCodecs.METADATA_DICTIONARY)));
+        } catch (final JSONException | IllegalArgumentException ex) {
+          throw new IOException(String.format("cannot read '%s'", file), ex);
+        }
+        final boolean isRequestedCompatible = requested.getName().equals(codec.getName())
+            && Arrays.equals(requested.getDictionary(), codec.getDictionary());
+        if (!isRequestedCompatible && isRequested) {
+          LOG.warn("ignoring codec '{}' - tileset records '{}'", requested.getName(),
+              codec.getName());
+        }
+        // a compatible requested codec may differ in compression level
+        return isRequestedCompatible ? requested : codec;
+      }
+
+      if (isSniffable(requested)) {
+        return requested;
+      }
+
+      if (isPopulated) {
+        throw new IOException("cannot change the codec of a populated tileset");
+      }
+
+      final JSONObject json = new JSONObject();
+      try {
+        json.put(TileCodecs.METADATA_COMPRESSION, requested.getName());
+        json.put(TileCodecs.METADATA_DICTIONARY,
+            BaseEncoding.base64().encode(requested.getDictionary()));
+      } catch (final JSONException ex) {
+        throw new IOException("cannot record codec", ex);
+      }
+      FileUtils.writeStringToFile(file, json.toString(), "UTF-8");
+      return requested;
+    }
+  }
+
   public static final class Builder {
 
     private final File directory;
     private boolean createIfNotExist;
-    private boolean gzipEnabled = true;
+    private TileCodec codec = TileCodecs.gzip();
+    private boolean isCodecSet;
+    private boolean isManifested;
+    private boolean isDurable;
+    private long groupCommitPeriodMillis;
+    private int writeParallelism = DEFAULT_WRITE_PARALLELISM;
+    // null to keep the layout of the tileset
+    private Layout layout;
 
     public Builder(String directory) throws IOException {
       this.directory = new File(directory);
@@ -283,7 +578,101 @@ public final class StorageImpl implements Storage, MetadataProvider {
      * @return this builder
      */
     public Builder setGzipCompression(boolean gzipEnabled) {
-      this.gzipEnabled = gzipEnabled;
+      this.codec = gzipEnabled ? TileCodecs.gzip() : TileCodecs.none();
+      this.isCodecSet = true;
+      return this;
+    }
+
+    /**
+     * Set the codec individual files are compressed with, gzip by default.
+     *
+     * <p>Codecs other than gzip are recorded with the tileset and used when it is reopened.
+     *
+     * @param codec the codec
+     * @return this builder
+     */
+    public Builder setCodec(TileCodec codec) {
+      this.codec = codec;
+      this.isCodecSet = true;
+      return this;
+    }
+
+    /**
+     * Maintain a manifest of the tiles held.
+     *
+     * <p>Zoom levels, keys and whether a tile is held are then answered from the manifest rather
+     * than by listing or walking the directory.  A manifest is built for a populated tileset
+     * when first opened with one, and once a tileset has a manifest it is always maintained.
+     *
+     * @return this builder
+     * @see StorageImpl#rebuildManifest()
+     */
+    public Builder useManifest() {
+      isManifested = true;
+      return this;
+    }
+
+    /**
+     * Make each write durable before it returns.
+     *
+     * <p>Tiles are always written to a temporary file and renamed into place, so are never seen
+     * part written.  Durable writes also sync the tile to disk before the rename, and the
+     * directories changed after it, so a written tile survives a crash.  Directories cannot be
+     * synced on every platform, Windows being the exception.
+     *
+     * @return this builder
+     */
+    public Builder durable() {
+      isDurable = true;
+      return this;
+    }
+
+    /**
+     * Set how long durable writes gather, to have their directories synced together.
+     *
+     * <p>Concurrent writes to the same directories then share a sync of each directory, at the
+     * cost of up to this much added latency per write.
+     *
+     * @param duration the period, zero to sync the directories of each write alone, the default
+     * @param unit the unit of the period
+     * @return this builder
+     */
+    public Builder setGroupCommitPeriod(long duration, TimeUnit unit) {
+      this.groupCommitPeriodMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Set how tile files are arranged, by default as recorded with the tileset, or
+     * {@link Layout#FLAT} for a new tileset.
+     *
+     * <p>Layouts other than {@link Layout#FLAT} are recorded with the tileset and used when it
+     * is reopened.  The layout of a populated tileset only changes through
+     * {@link StorageImpl#migrate(File, Layout)}.
+     *
+     * @param layout the layout
+     * @return this builder
+     */
+    public Builder setLayout(Layout layout) {
+      this.layout = layout;
+      return this;
+    }
+
+    /**
+     * Set the number of tiles {@link StorageImpl#putEntries(Observable)} writes at once.
+     *
+     * <p>A single thread leaves most of the bandwidth of a disk unused, each write waiting on
+     * the file system in turn.
+     *
+     * @param parallelism tiles written at once, defaults to 4
+     * @return this builder
+     * @see StorageImpl#putEntriesInParallel(Observable)
+     */
+    public Builder setWriteParallelism(int parallelism) {
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("write parallelism must be at least 1");
+      }
+      this.writeParallelism = parallelism;
       return this;
     }
 
@@ -305,7 +694,25 @@ public final class StorageImpl implements Storage, MetadataProvider {
       if (!directory.isDirectory()) {
         throw new IOException(String.format("not a directory: '%s'", directory));
       }
-      return new StorageImpl(directory, gzipEnabled);
+      final boolean isPopulated = tileFilenames(directory).length > 0;
+      final TileCodec resolved = CodecConcern.resolve(directory, codec, isCodecSet,
+          isPopulated);
+      final Layout recordedLayout = Layout.read(directory);
+      final Layout resolvedLayout = layout == null ? recordedLayout : layout;
+      if (resolvedLayout != recordedLayout) {
+        if (isPopulated) {
+          throw new IOException(String.format(
+              "cannot change the layout of a populated tileset from %s to %s - migrate it",
+              recordedLayout, resolvedLayout));
+        }
+        resolvedLayout.record(directory);
+      }
+      Manifest manifest = null;
+      if (isManifested || Manifest.exists(directory)) {
+        manifest = Manifest.open(directory, resolvedLayout, isDurable);
+      }
+      return new StorageImpl(directory, resolvedLayout, resolved, manifest,
+          isDurable ? new DirectorySync(groupCommitPeriodMillis) : null, writeParallelism);
     }
   }
 }
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.filesystem;
+
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import io.reactivex.functions.BiConsumer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A parallel walk of a z/x/y.pbf directory tree, or of its {@link Layout#SHARDED} equivalent.
+ *
+ * <p>Directories are streamed, not listed in full, and each is walked as its own task on a fork
+ * join pool.  Coordinates are parsed from the names of the path
+ * segments as they are met.  Results are handed to the subscriber through a bounded queue, so a
+ * slow subscriber holds the walk back and memory stays constant however large the tree.
+ *
+ * @param <T> the type each tile is mapped to
+ */
+final class TileWalker<T> {
+
+  /**
+   * Maps a tile found by the walk.  Called concurrently, on the threads of the walk.
+   *
+   * @param <T> the type mapped to
+   */
+  interface TileMapper<T> {
+
+    /**
+     * @param zoom the zoom level
+     * @param col the column
+     * @param row the row
+     * @param file the tile file
+     * @return the result, not null
+     * @throws IOException thrown on IO error, failing the walk
+     */
+    T apply(int zoom, int col, int row, Path file) throws IOException;
+  }
+
+  private static final int QUEUE_CAPACITY = 1024;
+  private static final long OFFER_TIMEOUT_MILLIS = 100;
+  private static final int UNKNOWN = -1;
+  private static final Object END = new Object();
+
+  private final Path start;
+  private final Layout layout;
+  private final int depth;
+  private final TileMapper<T> mapper;
+  private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final AtomicReference<Throwable> error = new AtomicReference<>();
+  private final ForkJoinPool pool =
+      new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  private volatile boolean isStopped;
+  private volatile boolean isCancelled;
+
+  private TileWalker(Path start, Layout layout, int depth, TileMapper<T> mapper) {
+    this.start = start;
+    this.layout = layout;
+    this.depth = depth;
+    this.mapper = mapper;
+  }
+
+  /**
+   * Walk the directory tree.
+   *
+   * <p>Tiles are emitted in no particular order.
+   *
+   * @param start the starting directory
+   * @param depth offset, where 1 == data directory, 2 == zoom directory, 3 == column directory
+   * @param mapper maps each tile found
+   * @param <T> the type each tile is mapped to
+   * @return the mapped tiles
+   */
+  static <T> Flowable<T> walk(File start, int depth, TileMapper<T> mapper) {
+    return walk(start, Layout.FLAT, depth, mapper);
+  }
+
+  /**
+   * Walk the directory tree of a layout.
+   *
+   * <p>Tiles are emitted in no particular order.
+   *
+   * @param start the starting directory
+   * @param layout the layout of the tileset
+   * @param depth offset, where 1 == data directory, 2 == zoom directory, 3 == column directory,
+   *     only of the {@link Layout#FLAT} layout
+   * @param mapper maps each tile found
+   * @param <T> the type each tile is mapped to
+   * @return the mapped tiles
+   */
+  static <T> Flowable<T> walk(File start, Layout layout, int depth, TileMapper<T> mapper) {
+    if (depth < 1 || depth > (layout == Layout.FLAT ? 3 : 2)) {
+      throw new IllegalArgumentException("unsupported depth");
+    }
+    final BiConsumer<TileWalker<T>, Emitter<T>> next = TileWalker::next;
+    return Flowable.generate(
+        () -> new TileWalker<>(start.toPath(), layout, depth, mapper).begin(), next,
+        TileWalker::cancel);
+  }
+
+  private TileWalker<T> begin() {
+    final Path absolute = start.toAbsolutePath();
+    final RecursiveAction root;
+    switch (depth) {
+      case 1:
+        root = new DataTask(absolute);
+        break;
+      case 2:
+        root = new ZoomTask(absolute, parse(absolute.getFileName()));
+        break;
+      default:
+        final Path parent = absolute.getParent();
+        root = new ColumnTask(absolute, parent == null ? UNKNOWN : parse(parent.getFileName()),
+            parse(absolute.getFileName()));
+        break;
+    }
+    pool.execute(() -> {
+      try {
+        root.invoke();
+      } catch (final RuntimeException ex) {
+        fail(ex);
+      } finally {
+        pool.shutdown();
+        offer(END);
+      }
+    });
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void next(Emitter<T> emitter) {
+    final Object item;
+    try {
+      item = queue.take();
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      emitter.onError(ex);
+      return;
+    }
+    if (item != END) {
+      emitter.onNext((T) item);
+    } else if (error.get() != null) {
+      emitter.onError(error.get());
+    } else {
+      emitter.onComplete();
+    }
+  }
+
+  private void cancel() {
+    isCancelled = true;
+    isStopped = true;
+    pool.shutdownNow();
+    queue.clear();
+  }
+
+  private void fail(Throwable throwable) {
+    error.compareAndSet(null, throwable);
+    // stop the rest of the walk, what has been found is still emitted
+    isStopped = true;
+  }
+
+  private void offer(Object item) {
+    try {
+      // a cancelled walk is no longer drained, so must not wait on the queue
+      while (!isCancelled) {
+        if (queue.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      }
+    } catch (final InterruptedException ex) {
+      isCancelled = true;
+      isStopped = true;
+    }
+  }
+
+  /**
+   * Parse a path segment of digits.
+   *
+   * @param name the segment
+   * @return the value, or {@link #UNKNOWN} if not a coordinate
+   */
+  private static int parse(Path name) {
+    return name == null ? UNKNOWN : parse(name.toString(), name.toString().length());
+  }
+
+  private static int parse(String name, int end) {
+    if (end == 0 || end > 9) {
+      return UNKNOWN;
+    }
+    int result = 0;
+    for (int i = 0; i < end; i++) {
+      final char c = name.charAt(i);
+      if (c < '0' || c > '9') {
+        return UNKNOWN;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  /**
+   * Parse the row of a tile file, named as the row with a .pbf, or .pb, extension.
+   *
+   * @param name the file name
+   * @return the row, or {@link #UNKNOWN} if not a tile
+   */
+  private static int parseRow(String name) {
+    if (name.endsWith(".pbf")) {
+      return parse(name, name.length() - 4);
+    }
+    if (name.endsWith(".pb")) {
+      return parse(name, name.length() - 3);
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * A task per directory, failing the walk on IO error.  A missing directory, or a file where a
+   * directory was expected, holds no tiles.
+   */
+  private abstract class DirectoryTask extends RecursiveAction {
+
+    private final Path directory;
+
+    DirectoryTask(Path directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    protected final void compute() {
+      final List<DirectoryTask> forked = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (Path child : stream) {
+          if (isStopped) {
+            break;
+          }
+          final DirectoryTask task = visit(child, child.getFileName().toString());
+          if (task != null) {
+            task.fork();
+            forked.add(task);
+          }
+        }
+      } catch (NoSuchFileException | NotDirectoryException ex) {
+        // nothing to walk
+      } catch (final IOException | RuntimeException ex) {
+        fail(ex);
+      }
+      for (DirectoryTask task : forked) {
+        task.join();
+      }
+    }
+
+    /**
+     * @param child an entry of the directory
+     * @param name the name of the entry
+     * @return a task to walk the entry, or null
+     * @throws IOException thrown on IO error
+     */
+    abstract DirectoryTask visit(Path child, String name) throws IOException;
+  }
+
+  private final class DataTask extends DirectoryTask {
+
+    DataTask(Path directory) {
+      super(directory);
+    }
+
+    @Override
+    DirectoryTask visit(Path child, String name) {
+      final int zoom = parse(name, name.length());
+      return zoom == UNKNOWN ? null : new ZoomTask(child, zoom);
+    }
+  }
+
+  private final class ZoomTask extends DirectoryTask {
+
+    private final int zoom;
+
+    ZoomTask(Path directory, int zoom) {
+      super(directory);
+      this.zoom = zoom;
+    }
+
+    @Override
+    DirectoryTask visit(Path child, String name) {
+      final int value = parse(name, name.length());
+      if (zoom == UNKNOWN || value == UNKNOWN) {
+        return null;
+      }
+      return layout == Layout.FLAT ? new ColumnTask(child, zoom, value)
+          : new ColumnShardTask(child, zoom, value);
+    }
+  }
+
+  private final class ColumnShardTask extends DirectoryTask {
+
+    private final int zoom;
+    private final int shard;
+
+    ColumnShardTask(Path directory, int zoom, int shard) {
+      super(directory);
+      this.zoom = zoom;
+      this.shard = shard;
+    }
+
+    @Override
+    DirectoryTask visit(Path child, String name) {
+      final int col = parse(name, name.length());
+      return col == UNKNOWN || Layout.shardOf(col) != shard ? null
+          : new ColumnTask(child, zoom, col);
+    }
+  }
+
+  private final class ColumnTask extends DirectoryTask {
+
+    private final int zoom;
+    private final int col;
+
+    ColumnTask(Path directory, int zoom, int col) {
+      super(directory);
+      this.zoom = zoom;
+      this.col = col;
+    }
+
+    @Override
+    DirectoryTask visit(Path child, String name) throws IOException {
+      if (layout == Layout.FLAT) {
+        visitTile(child, name, zoom, col, UNKNOWN);
+        return null;
+      }
+      final int shard = parse(name, name.length());
+      return shard == UNKNOWN ? null : new RowShardTask(child, zoom, col, shard);
+    }
+  }
+
+  private final class RowShardTask extends DirectoryTask {
+
+    private final int zoom;
+    private final int col;
+    private final int shard;
+
+    RowShardTask(Path directory, int zoom, int col, int shard) {
+      super(directory);
+      this.zoom = zoom;
+      this.col = col;
+      this.shard = shard;
+    }
+
+    @Override
+    DirectoryTask visit(Path child, String name) throws IOException {
+      visitTile(child, name, zoom, col, shard);
+      return null;
+    }
+  }
+
+  /**
+   * Map a tile file, should it be named as one in the right place.
+   *
+   * @param file the file
+   * @param name the name of the file
+   * @param zoom the zoom level
+   * @param col the column
+   * @param shard the shard of the row, or {@link #UNKNOWN} if not sharded
+   * @throws IOException thrown by the mapper
+   */
+  private void visitTile(Path file, String name, int zoom, int col, int shard)
+      throws IOException {
+    final int row = parseRow(name);
+    final boolean isInShard = shard == UNKNOWN || Layout.shardOf(row) == shard;
+    if (zoom != UNKNOWN && col != UNKNOWN && row != UNKNOWN && isInShard) {
+      offer(mapper.apply(zoom, col, row, file));
+    }
+  }
+}
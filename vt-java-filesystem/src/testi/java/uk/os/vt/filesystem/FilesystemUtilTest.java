@@ -20,12 +20,15 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import io.reactivex.Observable;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -160,6 +163,50 @@ public class FilesystemUtilTest {
     assertEquals(getGarbageBytes().length, results.get(0).length());
   }
 
+  @Test
+  public void walkTilesInParallelTest() throws IOException {
+    // GIVEN
+    final File baseDirectory = testFolder.newFolder("testdir");
+    final Set<String> expected = new HashSet<>();
+    for (int col = 0; col < 32; col++) {
+      for (int row = 0; row < 32; row++) {
+        FilesystemUtil.addEntry(baseDirectory, new Entry(5, col, row, getGarbageBytes()), true);
+        expected.add(5 + "/" + col + "/" + row);
+      }
+    }
+    // not tiles
+    assertTrue(new File(baseDirectory, "5/0/notes.txt").createNewFile());
+    assertTrue(new File(baseDirectory, "5/x").mkdirs());
+    assertTrue(new File(baseDirectory, "config.json").createNewFile());
+
+    // WHEN
+    final List<String> results = TileWalker.walk(baseDirectory, 1,
+        (zoom, col, row, file) -> zoom + "/" + col + "/" + row).toList().blockingGet();
+
+    // THEN
+    assertEquals(expected.size(), results.size());
+    assertEquals(expected, new HashSet<>(results));
+    assertEquals(3, TileWalker.walk(baseDirectory, 1, (zoom, col, row, file) -> file)
+        .take(3).count().blockingGet().intValue());
+    assertEquals(32, TileWalker.walk(new File(baseDirectory, "5/7"), 3,
+        (zoom, col, row, file) -> col).filter(col -> col == 7).count().blockingGet()
+        .intValue());
+  }
+
+  @Test(expected = IOException.class)
+  public void walkTilesFailsOnMapperErrorTest() throws Throwable {
+    final File baseDirectory = testFolder.newFolder("testdir");
+    FilesystemUtil.addEntry(baseDirectory, new Entry(3, 4, 5, getGarbageBytes()), false);
+    try {
+      TileWalker.walk(baseDirectory, 1, (zoom, col, row, file) -> {
+        throw new IOException("test");
+      }).toList().blockingGet();
+      fail();
+    } catch (final RuntimeException ex) {
+      throw ex.getCause();
+    }
+  }
+
   private byte[] getGarbageBytes() {
     try {
       return "test".getBytes("UTF-8");
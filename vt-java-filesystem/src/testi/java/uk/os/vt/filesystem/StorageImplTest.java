@@ -17,8 +17,10 @@
 package uk.os.vt.filesystem;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import io.reactivex.Observable;
 import io.reactivex.Single;
@@ -27,14 +29,24 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 import org.json.JSONException;
 import org.junit.AfterClass;
 import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 import uk.os.vt.Entry;
+import uk.os.vt.Key;
 import uk.os.vt.Metadata;
 import uk.os.vt.StorageResult;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
 
 public class StorageImplTest {
 
@@ -178,6 +190,331 @@ public class StorageImplTest {
     assertEquals(expectedValue, actualValue);
   }
 
+  @Test
+  public void testCodecIsRecordedAndUsedOnReopen() throws IOException {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final TileCodec codec = TileCodecs.deflate(9, getGarbageBytes("dictionary test"));
+    final Entry in = new Entry(3, 4, 5, getGarbageBytes());
+
+    final StorageImpl writer = new StorageImpl.Builder(file).createIfNotExist().setCodec(codec)
+        .build();
+    writer.putEntries(Observable.just(in));
+
+    // gzip requested - the recorded codec must be used
+    final StorageImpl reader = new StorageImpl.Builder(file).build();
+    assertEquals(in, reader.getEntry(3, 4, 5).blockingFirst());
+    assertEquals(1L, (long) reader.getEntries().count().blockingGet());
+  }
+
+  @Test
+  public void testGetEntryReadsGzipAndUncompressedTiles() throws IOException {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final Entry gzipped = new Entry(3, 4, 5, getGarbageBytes("gzipped"));
+    final Entry uncompressed = new Entry(3, 4, 6, getGarbageBytes("uncompressed"));
+    new StorageImpl.Builder(file).createIfNotExist().build().putEntries(Observable.just(gzipped));
+    new StorageImpl.Builder(file).setGzipCompression(false).build()
+        .putEntries(Observable.just(uncompressed));
+
+    final StorageImpl storage = new StorageImpl.Builder(file).build();
+    assertEquals(gzipped, storage.getEntry(3, 4, 5).blockingFirst());
+    assertEquals(uncompressed, storage.getEntry(3, 4, 6).blockingFirst());
+    assertEquals(0L, (long) storage.getEntry(3, 4, 7).count().blockingGet());
+    assertEquals(0L, (long) storage.getEntry(4, 4, 5).count().blockingGet());
+  }
+
+  @Test
+  public void testManifestAnswersZoomLevelsKeysAndCoverage() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().useManifest()
+        .build();
+    storage.putEntries(Observable.just(new Entry(4, 3, 2, getGarbageBytes()),
+        new Entry(2, 1, 0, getGarbageBytes()), new Entry(4, 1, 9, getGarbageBytes()),
+        new Entry(6, 0, 0, getGarbageBytes())));
+    storage.delete(Observable.just(new Entry(6, 0, 0, getGarbageBytes()))).blockingLast();
+
+    final List<Key> expected = Arrays.asList(new Key(2, 1, 0), new Key(4, 1, 9),
+        new Key(4, 3, 2));
+    assertEquals(expected, storage.getKeys().toList().blockingGet());
+    assertEquals(expected.subList(1, 3), storage.getKeys(4).toList().blockingGet());
+    assertTrue(storage.contains(4, 1, 9));
+    assertFalse(storage.contains(6, 0, 0));
+    assertEquals(2, (int) storage.getMinZoomLevel().blockingFirst());
+    assertEquals(4, (int) storage.getMaxZoomLevel().blockingFirst());
+    assertEquals(4, storage.generateDefault().blockingGet().getMaxZoom());
+    storage.close();
+
+    // the manifest is kept once there is one, and a torn record is discarded
+    FileUtils.writeByteArrayToFile(new File(file, "manifest.bin"), new byte[] {1, 2, 3}, true);
+    final StorageImpl reopened = new StorageImpl.Builder(file).build();
+    assertEquals(expected, reopened.getKeys().toList().blockingGet());
+    reopened.putEntries(Observable.just(new Entry(5, 5, 5, getGarbageBytes())));
+    assertEquals(5, (int) reopened.getMaxZoomLevel().blockingFirst());
+    reopened.close();
+  }
+
+  @Test
+  public void testManifestIsBuiltForAndRebuiltFromTilesWrittenElsewhere() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    assertTrue(file.mkdirs());
+    FilesystemUtil.addEntry(file, new Entry(3, 4, 5, getGarbageBytes()), true);
+
+    final StorageImpl storage = new StorageImpl.Builder(file).useManifest().build();
+    assertTrue(storage.contains(3, 4, 5));
+
+    FilesystemUtil.addEntry(file, new Entry(7, 8, 9, getGarbageBytes()), true);
+    assertFalse(storage.contains(7, 8, 9));
+    assertEquals(2, storage.rebuildManifest());
+    assertTrue(storage.contains(7, 8, 9));
+    assertEquals(7, (int) storage.getMaxZoomLevel().blockingFirst());
+    storage.close();
+  }
+
+  @Test
+  public void testManifestIsNotLeftBehindWhenTheFirstBuildFails() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    assertTrue(file.mkdirs());
+    FilesystemUtil.addEntry(file, new Entry(3, 4, 5, getGarbageBytes()), true);
+    final File oversized = FilesystemUtil.getEntryLocationOnDisk(file,
+        new Entry(3, 1, 2, new byte[0]));
+    assertTrue(oversized.getParentFile().mkdirs());
+    FileUtils.writeByteArrayToFile(oversized, new byte[600 * 1024]);
+
+    try {
+      new StorageImpl.Builder(file).useManifest().build();
+      fail("an unreadable tile should fail the build of the manifest");
+    } catch (final IOException expected) {
+      // expected
+    }
+    assertFalse(Manifest.exists(file));
+
+    assertTrue(oversized.delete());
+    final StorageImpl storage = new StorageImpl.Builder(file).useManifest().build();
+    assertTrue(storage.contains(3, 4, 5));
+    storage.close();
+  }
+
+  @Test
+  public void testUnreadableManifestIsRebuiltOnOpen() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().useManifest()
+        .durable().build();
+    storage.putEntries(Observable.just(new Entry(3, 4, 5, getGarbageBytes()),
+        new Entry(6, 7, 8, getGarbageBytes())));
+    storage.close();
+
+    // left empty, as a crash during a rewrite might
+    final File manifestFile = new File(file, Manifest.FILENAME);
+    FileUtils.writeByteArrayToFile(manifestFile, new byte[0]);
+    final StorageImpl emptied = new StorageImpl.Builder(file).build();
+    assertTrue(emptied.contains(3, 4, 5));
+    assertTrue(emptied.contains(6, 7, 8));
+    emptied.close();
+
+    FileUtils.writeByteArrayToFile(manifestFile, getGarbageBytes("not a manifest"));
+    final StorageImpl corrupted = new StorageImpl.Builder(file).build();
+    assertEquals(Arrays.asList(new Key(3, 4, 5), new Key(6, 7, 8)),
+        corrupted.getKeys().toList().blockingGet());
+    corrupted.close();
+  }
+
+  @Test
+  public void testManifestIsCompactedOnceMostlySuperseded() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    assertTrue(file.mkdirs());
+    final Manifest manifest = Manifest.open(file, Layout.FLAT, false);
+    final Manifest.Tile tile = new Manifest.Tile(getGarbageBytes());
+    for (int i = 0; i < 20000; i++) {
+      manifest.put(10, i % 10, 0, tile);
+    }
+    manifest.close();
+    final File manifestFile = new File(file, Manifest.FILENAME);
+    assertTrue(manifestFile.length() < 8 + 21 * 10001);
+
+    final Manifest reopened = Manifest.open(file, Layout.FLAT, false);
+    assertEquals(10, reopened.size());
+    assertEquals(tile.getHash(), reopened.get(10, 3, 0).getHash());
+    reopened.close();
+  }
+
+  @Test
+  public void testConcurrentDurableWritesAreNeverSeenPartWritten() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().useManifest()
+        .durable().setGroupCommitPeriod(5, TimeUnit.MILLISECONDS).build();
+    final byte[] small = getGarbageBytes("small");
+    final byte[] large = new byte[200 * 1024];
+    Arrays.fill(large, (byte) 7);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    final List<Future<?>> writers = new ArrayList<>();
+    for (int thread = 0; thread < 8; thread++) {
+      final int id = thread;
+      writers.add(executor.submit(() -> {
+        for (int i = 0; i < 20; i++) {
+          // every thread writes the same tile, and one of its own
+          storage.putEntries(Observable.just(new Entry(8, 1, 1, i % 2 == 0 ? small : large),
+              new Entry(8, 2, id * 20 + i, small)));
+        }
+      }));
+    }
+    boolean isDone = false;
+    while (!isDone) {
+      final List<Entry> read = storage.getEntry(8, 1, 1).toList().blockingGet();
+      if (!read.isEmpty()) {
+        final int length = read.get(0).getVector().length;
+        assertTrue(length == small.length || length == large.length);
+      }
+      isDone = writers.stream().allMatch(Future::isDone);
+    }
+    for (Future<?> writer : writers) {
+      writer.get();
+    }
+    executor.shutdown();
+
+    assertEquals(1 + 8 * 20, (long) storage.getEntries().count().blockingGet());
+    assertEquals(1 + 8 * 20, (long) storage.getKeys().count().blockingGet());
+    // no temporary files are left behind
+    assertEquals(1, new File(file, "8/1").list().length);
+    storage.close();
+  }
+
+  @Test
+  public void testParallelWritesKeepTheLastWriteOfEachTile() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setWriteParallelism(8).build();
+    final List<Entry> entries = new ArrayList<>();
+    for (int col = 0; col < 32; col++) {
+      for (int row = 0; row < 32; row++) {
+        entries.add(new Entry(5, col, row, getGarbageBytes(col + "/" + row)));
+      }
+    }
+    for (int i = 0; i < 50; i++) {
+      entries.add(new Entry(5, 3, 3, getGarbageBytes("write " + i)));
+    }
+
+    final long count = storage.putEntriesInParallel(Observable.fromIterable(entries))
+        .blockingGet();
+
+    assertEquals(entries.size(), count);
+    assertEquals(32 * 32, (long) storage.getEntries(5).count().blockingGet());
+    assertEquals(new Entry(5, 3, 3, getGarbageBytes("write 49")),
+        storage.getEntry(5, 3, 3).blockingFirst());
+    assertEquals(new Entry(5, 31, 30, getGarbageBytes("31/30")),
+        storage.getEntry(5, 31, 30).blockingFirst());
+  }
+
+  @Test
+  public void testParallelWriteFailuresAreReported() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build();
+    // a file where the directory of a column belongs
+    FileUtils.writeStringToFile(new File(file, "5/2"), "not a directory", "UTF-8");
+    final Observable<Entry> entries = Observable.range(0, 32)
+        .map(col -> new Entry(5, col, 0, getGarbageBytes()));
+
+    final TestObserver<Long> observer = storage.putEntriesInParallel(entries).test();
+    observer.await(10, TimeUnit.SECONDS);
+    observer.assertError(IOException.class);
+
+    final IllegalStateException failure = new IllegalStateException("broken source");
+    try {
+      // clear of the broken column, so only the source can fail
+      storage.putEntries(Observable.concat(entries.skip(8).take(4), Observable.error(failure)));
+      fail("expected the failure of the source");
+    } catch (final RuntimeException ex) {
+      assertEquals(failure, ex);
+    }
+
+    // the write pools are the storage's, stopped on close
+    storage.close();
+    storage.putEntriesInParallel(entries).test().assertError(IOException.class);
+  }
+
+  @Test
+  public void testShardedLayoutIsRecordedAndUsedOnReopen() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final List<Entry> entries = new ArrayList<>();
+    for (int col = 250; col < 262; col++) {
+      for (int row = 510; row < 514; row++) {
+        entries.add(new Entry(16, col, row, getGarbageBytes(col + "/" + row)));
+      }
+    }
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setLayout(Layout.SHARDED).build();
+    storage.putEntries(Observable.fromIterable(entries));
+    storage.close();
+    assertTrue(new File(file, "16/1/257/2/513.pbf").isFile());
+    assertFalse(new File(file, "16/257").exists());
+
+    final StorageImpl reopened = new StorageImpl.Builder(file).build();
+    assertEquals(new Entry(16, 257, 513, getGarbageBytes("257/513")),
+        reopened.getEntry(16, 257, 513).blockingFirst());
+    assertTrue(reopened.contains(16, 250, 510));
+    assertEquals(entries.size(), (long) reopened.getEntries(16).count().blockingGet());
+    assertEquals(entries.size(), (long) reopened.getKeys().count().blockingGet());
+    assertEquals(16, (int) reopened.getMaxZoomLevel().blockingFirst());
+    assertTrue(reopened.delete(Observable.just(entries.get(0))).blockingFirst().isCompleted());
+    assertFalse(reopened.contains(16, 250, 510));
+    reopened.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testLayoutOfPopulatedTilesetCannotChange() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final StorageImpl writer = new StorageImpl.Builder(file).createIfNotExist().build();
+    writer.putEntries(Observable.just(new Entry(3, 4, 5, getGarbageBytes())));
+    writer.close();
+
+    new StorageImpl.Builder(file).setLayout(Layout.SHARDED).build();
+  }
+
+  @Test
+  public void testMigrateBetweenLayouts() throws Exception {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final List<Entry> entries = new ArrayList<>();
+    for (int col = 0; col < 600; col += 7) {
+      entries.add(new Entry(12, col, 4095 - col, getGarbageBytes(String.valueOf(col))));
+    }
+    entries.add(new Entry(0, 0, 0, getGarbageBytes()));
+    final StorageImpl flat = new StorageImpl.Builder(file).createIfNotExist().useManifest()
+        .build();
+    flat.putEntries(Observable.fromIterable(entries));
+    flat.close();
+
+    assertEquals(entries.size(), StorageImpl.migrate(file, Layout.SHARDED));
+    assertFalse(new File(file, "12/7/4088.pbf").exists());
+    assertFalse(new File(file, "12/14").exists());
+    assertTrue(new File(file, "12/0/7/15/4088.pbf").isFile());
+    assertEquals(0, StorageImpl.migrate(file, Layout.SHARDED));
+
+    final StorageImpl sharded = new StorageImpl.Builder(file).build();
+    assertEquals(entries.size(), (long) sharded.getEntries().count().blockingGet());
+    for (Entry entry : entries) {
+      assertEquals(entry, sharded.getEntry(entry.getZoomLevel(), entry.getColumn(),
+          entry.getRow()).blockingFirst());
+    }
+    assertEquals(entries.size(), sharded.rebuildManifest());
+    sharded.close();
+
+    assertEquals(entries.size(), StorageImpl.migrate(file, Layout.FLAT));
+    assertTrue(new File(file, "12/7/4088.pbf").isFile());
+    assertFalse(new File(file, "12/0/7").exists());
+    assertFalse(new File(file, "layout.json").exists());
+    final StorageImpl reopened = new StorageImpl.Builder(file).build();
+    assertEquals(entries.size(), (long) reopened.getEntries().count().blockingGet());
+    reopened.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testCodecOfPopulatedTilesetCannotChange() throws IOException {
+    final File file = provideNonExistentTestDirectoryOrBlow();
+    final StorageImpl writer = new StorageImpl.Builder(file).createIfNotExist().build();
+    writer.putEntries(Observable.just(new Entry(3, 4, 5, getGarbageBytes())));
+
+    new StorageImpl.Builder(file).setCodec(TileCodecs.deflate(9)).build();
+  }
+
   @Test(expected = IOException.class)
   public void testWhenNoSuchFileDefaultBehaviourIsToBlowUp() throws IOException {
     final File file = provideNonExistentTestDirectoryOrBlow();
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Returns the free pages of a tileset to the file system.
+ *
+ * <p>Deleting or replacing tiles leaves free pages behind, which SQLite reuses but never returns.
+ * A tileset created with incremental auto vacuum can release them a slice at a time, without
+ * rebuilding the file.  When scheduled, slices run in the background whilst no write is waiting
+ * for the write connection, so writes are held up by one slice at most.
+ *
+ * <p>A full compaction copies the live pages to a new file, in order, and swaps it into place.
+ * Reads continue during the copy, writes wait for it, and both wait for the swap.
+ */
+final class Compactor implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Compactor.class.getSimpleName());
+
+  private static final int SLICE_PAGES = 256;
+  private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+  private final File file;
+  private final ConnectionPool writers;
+  private final ConnectionPool readers;
+  private ScheduledExecutorService scheduler;
+  // null until read
+  private volatile Boolean isIncremental;
+
+  Compactor(File file, ConnectionPool writers, ConnectionPool readers) {
+    this.file = file;
+    this.writers = writers;
+    this.readers = readers;
+  }
+
+  /**
+   * Vacuum in the background, if the tileset was created with incremental auto vacuum.
+   *
+   * @param periodMillis the interval between attempts
+   * @throws SQLException thrown if the auto vacuum mode cannot be read
+   */
+  void schedule(long periodMillis) throws SQLException {
+    if (!isIncremental()) {
+      LOG.debug("not scheduling vacuum - auto vacuum is not incremental");
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mbtiles-vacuum");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        final int freed = vacuumIncrementally();
+        if (freed > 0) {
+          LOG.debug("vacuum released {} pages", freed);
+        }
+      } catch (final SQLException ex) {
+        LOG.warn("problem vacuuming", ex);
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Release free pages, a slice at a time, until none remain or a write is waiting.
+   *
+   * @return the number of pages released
+   * @throws SQLException thrown on database error
+   */
+  int vacuumIncrementally() throws SQLException {
+    int freed = 0;
+    while (isIncremental() && !writers.hasWaiters() && !Thread.currentThread().isInterrupted()) {
+      try (Connection connection = writers.tryGet()) {
+        if (connection == null) {
+          break;
+        }
+        try (Statement statement = connection.createStatement()) {
+          final long free = queryLong(statement, "PRAGMA freelist_count");
+          if (free == 0) {
+            break;
+          }
+          // execute would step the vacuum a page at a time
+          statement.executeUpdate("PRAGMA incremental_vacuum(" + SLICE_PAGES + ")");
+          final long released = free - queryLong(statement, "PRAGMA freelist_count");
+          if (released <= 0) {
+            break;
+          }
+          freed += (int) released;
+        }
+      }
+    }
+    return freed;
+  }
+
+  /**
+   * Copy the tileset to a new file and swap it into place.
+   *
+   * @throws IOException thrown if the copy or swap fails, in which case the tileset is unchanged
+   */
+  void compact() throws IOException {
+    final File copy = new File(file.getPath() + ".compacting");
+    delete(copy);
+    try {
+      writers.suspend();
+    } catch (final SQLException ex) {
+      throw new IOException("cannot compact - writes in progress", ex);
+    }
+    try {
+      copy(copy);
+      try {
+        readers.suspend();
+      } catch (final SQLException ex) {
+        throw new IOException("cannot compact - reads in progress", ex);
+      }
+      try {
+        // every connection is closed, so the WAL should have been checkpointed and removed
+        final File wal = new File(file.getPath() + "-wal");
+        if (wal.length() > 0) {
+          throw new IOException("cannot compact - tileset is open elsewhere");
+        }
+        Files.move(copy.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        readers.resume();
+      }
+    } finally {
+      writers.resume();
+      delete(copy);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      try {
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean isIncremental() throws SQLException {
+    if (isIncremental == null) {
+      // fixed when the tileset is created, and kept by a compaction
+      isIncremental = readers.withStatement("PRAGMA auto_vacuum", statement -> {
+        try (ResultSet rs = statement.executeQuery()) {
+          return rs.next() && rs.getLong(1) == AUTO_VACUUM_INCREMENTAL;
+        }
+      });
+    }
+    return isIncremental;
+  }
+
+  private void copy(File copy) throws IOException {
+    try (Connection connection = DriverManager.getConnection(
+        "jdbc:sqlite:" + copy.getAbsolutePath());
+        Statement statement = connection.createStatement()) {
+      try (PreparedStatement attach = connection.prepareStatement(
+          "ATTACH DATABASE ? AS source")) {
+        attach.setString(1, file.getAbsolutePath());
+        attach.executeUpdate();
+      }
+      // set before the first table is created
+      statement.executeUpdate("PRAGMA page_size = "
+          + queryLong(statement, "PRAGMA source.page_size"));
+      statement.executeUpdate("PRAGMA auto_vacuum = "
+          + queryLong(statement, "PRAGMA source.auto_vacuum"));
+
+      final List<String> tables = new ArrayList<>();
+      final List<String> tableSql = new ArrayList<>();
+      final List<String> otherSql = new ArrayList<>();
+      try (ResultSet rs = statement.executeQuery("SELECT type, name, sql FROM source.sqlite_master"
+          + " WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%'")) {
+        while (rs.next()) {
+          if (rs.getString("type").equals("table")) {
+            tables.add(rs.getString("name"));
+            tableSql.add(rs.getString("sql"));
+          } else {
+            otherSql.add(rs.getString("sql"));
+          }
+        }
+      }
+
+      connection.setAutoCommit(false);
+      for (String sql : tableSql) {
+        statement.executeUpdate(sql);
+      }
+      for (String table : tables) {
+        final String quoted = "\"" + table.replace("\"", "\"\"") + "\"";
+        statement.executeUpdate("INSERT INTO main." + quoted + " SELECT * FROM source." + quoted);
+      }
+      // indexes are built once filled, and triggers not fired by the copy
+      for (String sql : otherSql) {
+        statement.executeUpdate(sql);
+      }
+      connection.commit();
+      connection.setAutoCommit(true);
+      statement.executeUpdate("DETACH DATABASE source");
+    } catch (final SQLException ex) {
+      throw new IOException("cannot copy " + file, ex);
+    }
+  }
+
+  private static long queryLong(Statement statement, String sql) throws SQLException {
+    try (ResultSet rs = statement.executeQuery(sql)) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  private static void delete(File copy) throws IOException {
+    for (String suffix : new String[] {"", "-journal", "-wal", "-shm"}) {
+      Files.deleteIfExists(new File(copy.getPath() + suffix).toPath());
+    }
+  }
+}
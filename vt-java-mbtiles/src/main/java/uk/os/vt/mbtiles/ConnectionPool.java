@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.davidmoten.rx.jdbc.ConnectionProvider;
+import org.davidmoten.rx.jdbc.exceptions.SQLRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed size pool of SQLite connections.
+ *
+ * <p>rxjava2-jdbc closes a connection once a query completes or is cancelled.  Connections
+ * handed out here return to the pool on close rather than being closed, so the cost of opening
+ * the database and warming its page cache is paid once per connection rather than per query.
+ *
+ * <p>Each connection is configured on creation by the supplied PRAGMA statements.  Connections
+ * are opened lazily, up to the pool size.  When all are in use callers wait, up to the timeout.
+ *
+ * <p>The pool can be suspended, closing every connection once returned, e.g. whilst the database
+ * file is replaced.  Callers wait for it to resume, again up to the timeout.
+ */
+final class ConnectionPool implements ConnectionProvider {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class.getSimpleName());
+
+  private final String url;
+  private final int size;
+  private final long timeoutMillis;
+  private final List<String> pragmas;
+  private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+  private final List<Connection> all = new ArrayList<>();
+  private final Map<Connection, Map<String, PreparedStatement>> statements =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private volatile boolean isClosed;
+  // guarded by all
+  private boolean isSuspended;
+  private int lentCount;
+
+  interface StatementFunction<T> {
+    T apply(PreparedStatement statement) throws SQLException;
+  }
+
+  /**
+   * @param url the JDBC url
+   * @param size the maximum number of connections
+   * @param timeoutMillis how long to wait for a connection when all are in use
+   * @param pragmas statements run against each new connection, e.g. "PRAGMA cache_size = -2000"
+   */
+  ConnectionPool(String url, int size, long timeoutMillis, List<String> pragmas) {
+    if (size < 1) {
+      throw new IllegalArgumentException("pool size must be at least 1");
+    }
+    this.url = url;
+    this.size = size;
+    this.timeoutMillis = timeoutMillis;
+    this.pragmas = new ArrayList<>(pragmas);
+  }
+
+  /**
+   * Open a connection now rather than on first use.
+   *
+   * @throws SQLException thrown if the connection cannot be opened or configured
+   */
+  void warm() throws SQLException {
+    final Connection connection = open();
+    if (connection != null) {
+      idle.add(connection);
+    }
+  }
+
+  @Override
+  public Connection get() {
+    try {
+      return take();
+    } catch (final SQLException ex) {
+      throw new SQLRuntimeException(ex);
+    }
+  }
+
+  /**
+   * Get a connection, waiting for one to be free.
+   *
+   * @return the connection, to be closed after use
+   * @throws SQLException thrown if none is free in time or a new connection cannot be opened
+   */
+  Connection take() throws SQLException {
+    return lend(acquire());
+  }
+
+  /**
+   * Get a connection only if one is free now.
+   *
+   * @return the connection, to be closed after use, or null if none is free or the pool is
+   *     suspended
+   * @throws SQLException thrown if a new connection cannot be opened
+   */
+  Connection tryGet() throws SQLException {
+    synchronized (all) {
+      if (isClosed || isSuspended) {
+        return null;
+      }
+      lentCount++;
+    }
+    Connection connection = null;
+    try {
+      connection = idle.poll();
+      if (connection == null) {
+        connection = open();
+      }
+    } finally {
+      if (connection == null) {
+        returned();
+      }
+    }
+    return connection == null ? null : lend(connection);
+  }
+
+  /**
+   * Whether any caller is waiting for a connection.
+   *
+   * @return true if a caller is waiting
+   */
+  boolean hasWaiters() {
+    return waiting.get() > 0;
+  }
+
+  /**
+   * Wait for every connection to be returned, then close them all.  Until resumed, callers wait
+   * for a connection.
+   *
+   * @throws SQLException thrown if a connection is not returned within the timeout, in which case
+   *     the pool is not suspended
+   */
+  void suspend() throws SQLException {
+    final List<Connection> toClose;
+    synchronized (all) {
+      isSuspended = true;
+      try {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (lentCount > 0) {
+          final long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new SQLException(String.format(
+                "cannot suspend pool - %d connections still in use", lentCount));
+          }
+          TimeUnit.NANOSECONDS.timedWait(all, remaining);
+        }
+      } catch (final InterruptedException | SQLException ex) {
+        isSuspended = false;
+        all.notifyAll();
+        if (ex instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("interrupted suspending pool", ex);
+        }
+        throw (SQLException) ex;
+      }
+      toClose = new ArrayList<>(all);
+      all.clear();
+      idle.clear();
+      statements.clear();
+    }
+    for (Connection connection : toClose) {
+      try {
+        connection.close();
+      } catch (final SQLException ex) {
+        LOG.error("cannot close connection", ex);
+      }
+    }
+  }
+
+  /**
+   * Resume a suspended pool, connections being opened again as needed.
+   */
+  void resume() {
+    synchronized (all) {
+      isSuspended = false;
+      all.notifyAll();
+    }
+  }
+
+  /**
+   * Run a statement on a pooled connection, bypassing rxjava2-jdbc.
+   *
+   * <p>The statement is prepared once per connection and reused by later calls, so only binding
+   * and execution remain.  It must not be closed or used after the function returns.
+   *
+   * @param sql the statement
+   * @param function the work to do with the statement
+   * @param <T> the result type
+   * @return the result of the function
+   * @throws SQLException thrown on database error or if no connection becomes available
+   */
+  <T> T withStatement(String sql, StatementFunction<T> function) throws SQLException {
+    final Connection connection = acquire();
+    try {
+      Map<String, PreparedStatement> prepared = statements.get(connection);
+      if (prepared == null) {
+        prepared = new HashMap<>();
+        statements.put(connection, prepared);
+      }
+      PreparedStatement statement = prepared.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        prepared.put(sql, statement);
+      }
+      return function.apply(statement);
+    } finally {
+      release(connection);
+    }
+  }
+
+  @Override
+  public void close() {
+    final List<Connection> toClose;
+    synchronized (all) {
+      isClosed = true;
+      toClose = new ArrayList<>(all);
+      all.clear();
+    }
+    idle.clear();
+    // statements are closed along with their connection
+    statements.clear();
+    for (Connection connection : toClose) {
+      try {
+        connection.close();
+      } catch (final SQLException ex) {
+        LOG.error("cannot close connection", ex);
+      }
+    }
+  }
+
+  private Connection acquire() throws SQLException {
+    if (isClosed) {
+      throw new SQLException("connection pool closed");
+    }
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    synchronized (all) {
+      waiting.incrementAndGet();
+      try {
+        while (isSuspended) {
+          final long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new SQLException(String.format(
+                "no connection available after %dms - pool suspended", timeoutMillis));
+          }
+          TimeUnit.NANOSECONDS.timedWait(all, remaining);
+        }
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("interrupted waiting for a connection", ex);
+      } finally {
+        waiting.decrementAndGet();
+      }
+      lentCount++;
+    }
+    Connection connection = null;
+    try {
+      connection = idle.poll();
+      if (connection == null) {
+        connection = open();
+      }
+      if (connection == null) {
+        waiting.incrementAndGet();
+        try {
+          connection = idle.poll(Math.max(0, deadline - System.nanoTime()),
+              TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("interrupted waiting for a connection", ex);
+        } finally {
+          waiting.decrementAndGet();
+        }
+      }
+      if (connection == null) {
+        throw new SQLException(String.format(
+            "no connection available after %dms - all %d in use", timeoutMillis, size));
+      }
+      return connection;
+    } finally {
+      if (connection == null) {
+        returned();
+      }
+    }
+  }
+
+  private void returned() {
+    synchronized (all) {
+      lentCount--;
+      all.notifyAll();
+    }
+  }
+
+  /**
+   * Open a new connection if the pool has room.
+   *
+   * @return the connection, or null if the pool is full
+   */
+  private Connection open() throws SQLException {
+    synchronized (all) {
+      if (isClosed || all.size() >= size) {
+        return null;
+      }
+      final Connection connection = DriverManager.getConnection(url);
+      try (Statement statement = connection.createStatement()) {
+        for (String pragma : pragmas) {
+          statement.execute(pragma);
+        }
+      } catch (final SQLException ex) {
+        connection.close();
+        throw ex;
+      }
+      all.add(connection);
+      return connection;
+    }
+  }
+
+  private void release(Connection connection) {
+    try {
+      if (!connection.getAutoCommit()) {
+        // never hand on a half finished transaction
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      if (isClosed) {
+        discard(connection);
+      } else {
+        idle.add(connection);
+      }
+    } catch (final SQLException ex) {
+      LOG.error("discarding connection", ex);
+      discard(connection);
+    } finally {
+      returned();
+    }
+  }
+
+  private void discard(Connection connection) {
+    synchronized (all) {
+      all.remove(connection);
+    }
+    statements.remove(connection);
+    try {
+      connection.close();
+    } catch (final SQLException ex) {
+      LOG.error("cannot close connection", ex);
+    }
+  }
+
+  /**
+   * Wrap a connection so closing it returns it to the pool, at most once.
+   */
+  private Connection lend(Connection connection) {
+    final AtomicBoolean isReturned = new AtomicBoolean();
+    final Connection[] lent = new Connection[1];
+    lent[0] = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "close":
+              if (isReturned.compareAndSet(false, true)) {
+                release(connection);
+              }
+              return null;
+            case "isClosed":
+              return isReturned.get() || connection.isClosed();
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "toString":
+              return "pooled " + connection;
+            default:
+              if (isReturned.get()) {
+                throw new SQLException("connection returned to pool");
+              }
+              final Object result = invoke(connection, method, args);
+              // rxjava2-jdbc closes connections via their statements so those must lead back here
+              return result instanceof Statement
+                  ? wrap((Statement) result, method.getReturnType(), lent[0]) : result;
+          }
+        });
+    return lent[0];
+  }
+
+  private static Object wrap(Statement statement, Class<?> type, Connection connection) {
+    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getConnection":
+              return connection;
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            default:
+              return invoke(statement, method, args);
+          }
+        });
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (final InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+}
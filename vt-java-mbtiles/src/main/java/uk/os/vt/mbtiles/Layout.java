@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import java.util.Locale;
+import org.davidmoten.rx.jdbc.Database;
+
+/**
+ * How tiles are stored.  Either way tiles are read through 'tiles'.
+ */
+enum Layout {
+
+  /**
+   * A 'tiles' table holding every tile.
+   */
+  SIMPLE("mbtiles_schema.sql", "tiles"),
+
+  /**
+   * Identical tile data held once in 'images', referenced by 'map' and read through the 'tiles'
+   * view.
+   */
+  DEDUPLICATED("mbtiles_schema_full.sql", "map"),
+
+  /**
+   * A 'tiles' table without rowids, clustered on zoom_level, tile_column and tile_row, so a
+   * lookup searches a single B-tree rather than an index and then the table.
+   */
+  CLUSTERED("mbtiles_schema_clustered.sql", "tiles");
+
+  private final String schemaResource;
+  private final String keyTable;
+
+  Layout(String schemaResource, String keyTable) {
+    this.schemaResource = schemaResource;
+    this.keyTable = keyTable;
+  }
+
+  String getSchemaResource() {
+    return schemaResource;
+  }
+
+  /**
+   * The table indexed by zoom_level, tile_column and tile_row - to query keys without the join
+   * of the 'tiles' view.
+   *
+   * @return the table name
+   */
+  String getKeyTable() {
+    return keyTable;
+  }
+
+  String getDeleteStatement() {
+    return "DELETE FROM " + keyTable
+        + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+  }
+
+  /**
+   * Establish the layout of an existing tileset.
+   *
+   * @param dataSource the tileset
+   * @return the layout
+   */
+  static Layout detect(Database dataSource) {
+    final String[] tiles = dataSource
+        .select("SELECT type, sql FROM sqlite_master WHERE name = 'tiles'")
+        .get(rs -> new String[] {rs.getString(1), rs.getString(2)})
+        .blockingFirst(new String[] {"table", ""});
+    if (tiles[0].equals("view")) {
+      return DEDUPLICATED;
+    }
+    final boolean isWithoutRowid = tiles[1] != null
+        && tiles[1].toUpperCase(Locale.ROOT).replaceAll("\\s+", " ").contains("WITHOUT ROWID");
+    return isWithoutRowid ? CLUSTERED : SIMPLE;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+/**
+ * Assigns each tile of a {@link ShardedMbtilesStorage} to one of its shards.
+ *
+ * <p>Implementations must be thread safe and deterministic - a tileset must be reopened with the
+ * partitioner it was written with.  See {@link ShardPartitioners} for the available partitioners.
+ */
+public interface ShardPartitioner {
+
+  /**
+   * The number of shards.
+   *
+   * @return the number of shards, at least one
+   */
+  int getShardCount();
+
+  /**
+   * The shard holding a tile.
+   *
+   * @param zoom the zoom level
+   * @param col the tile in x direction
+   * @param row the tile in y direction, Google tiling scheme
+   * @return the shard, from zero to {@link #getShardCount()} exclusive
+   */
+  int getShard(int zoom, int col, int row);
+
+  /**
+   * Whether a shard may hold tiles of a zoom level, so scans can skip those that cannot.
+   *
+   * @param shard the shard
+   * @param zoom the zoom level
+   * @return false if the shard holds no tiles of the zoom level
+   */
+  default boolean mayHold(int shard, int zoom) {
+    return true;
+  }
+}
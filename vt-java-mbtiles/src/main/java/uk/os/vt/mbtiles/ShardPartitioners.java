@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import java.util.Arrays;
+
+/**
+ * Factory methods for {@link ShardPartitioner}s.
+ *
+ * <p>Zoom bands keep each file to a range of zoom levels, which suits builds that render a zoom
+ * at a time.  A hash spreads every zoom evenly over all shards, which suits builds that render
+ * everywhere at once.  A curve range keeps each file to a region, at every zoom, which suits
+ * builds that render region by region.
+ */
+public final class ShardPartitioners {
+
+  private static final int MAX_ZOOM_LEVEL = 22;
+  private static final int MAX_SHARDS = 1 << 16;
+
+  private ShardPartitioners() {}
+
+  /**
+   * Partition by bands of zoom levels.
+   *
+   * <p>For example {@code byZoom(0, 10, 14)} gives three shards: zoom 0 to 9, 10 to 13 and 14 up.
+   *
+   * @param firstZooms the first zoom level of each band, ascending and starting at zero
+   * @return the partitioner
+   */
+  public static ShardPartitioner byZoom(int... firstZooms) {
+    boolean isValid = firstZooms.length > 0 && firstZooms[0] == 0;
+    for (int i = 1; isValid && i < firstZooms.length; i++) {
+      isValid = firstZooms[i - 1] < firstZooms[i] && firstZooms[i] <= MAX_ZOOM_LEVEL;
+    }
+    if (!isValid) {
+      throw new IllegalArgumentException(
+          "zoom bands must ascend from zero: " + Arrays.toString(firstZooms));
+    }
+
+    final int[] shards = new int[MAX_ZOOM_LEVEL + 1];
+    for (int zoom = 0, band = 0; zoom <= MAX_ZOOM_LEVEL; zoom++) {
+      if (band + 1 < firstZooms.length && zoom == firstZooms[band + 1]) {
+        band++;
+      }
+      shards[zoom] = band;
+    }
+    final int count = firstZooms.length;
+    return new ShardPartitioner() {
+      @Override
+      public int getShardCount() {
+        return count;
+      }
+
+      @Override
+      public int getShard(int zoom, int col, int row) {
+        return shards[zoom];
+      }
+
+      @Override
+      public boolean mayHold(int shard, int zoom) {
+        return shards[zoom] == shard;
+      }
+    };
+  }
+
+  /**
+   * Partition by a hash of the tile coordinates.
+   *
+   * @param count the number of shards
+   * @return the partitioner
+   */
+  public static ShardPartitioner byHash(int count) {
+    validateCount(count);
+    return new ShardPartitioner() {
+      @Override
+      public int getShardCount() {
+        return count;
+      }
+
+      @Override
+      public int getShard(int zoom, int col, int row) {
+        // the finalizer of MurmurHash3 - neighbouring tiles land on different shards
+        long hash = (long) zoom << 44 | (long) col << 22 | row;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) ((hash >>> 1) % count);
+      }
+    };
+  }
+
+  /**
+   * Partition by equal ranges of a Z-order (Morton) curve.
+   *
+   * <p>A tile and all of its descendants share a shard, as the curve position is taken relative to
+   * the zoom level, so each shard covers the same region at every zoom.  Zoom levels with fewer
+   * tiles than shards only use some of the shards.
+   *
+   * @param count the number of shards
+   * @return the partitioner
+   */
+  public static ShardPartitioner byCurve(int count) {
+    validateCount(count);
+    return new ShardPartitioner() {
+      @Override
+      public int getShardCount() {
+        return count;
+      }
+
+      @Override
+      public int getShard(int zoom, int col, int row) {
+        // the curve position as a fraction of the 4^zoom tiles, scaled to the number of shards
+        return (int) (interleave(col, row) * count >>> 2 * zoom);
+      }
+    };
+  }
+
+  private static void validateCount(int count) {
+    if (count < 1 || count > MAX_SHARDS) {
+      throw new IllegalArgumentException("shard count must be from 1 to " + MAX_SHARDS);
+    }
+  }
+
+  /**
+   * Interleave the bits of column and row, column first.
+   */
+  private static long interleave(int col, int row) {
+    return spread(col) << 1 | spread(row);
+  }
+
+  private static long spread(int value) {
+    long result = value & 0xffffffffL;
+    result = (result | result << 16) & 0x0000ffff0000ffffL;
+    result = (result | result << 8) & 0x00ff00ff00ff00ffL;
+    result = (result | result << 4) & 0x0f0f0f0f0f0f0f0fL;
+    result = (result | result << 2) & 0x3333333333333333L;
+    result = (result | result << 1) & 0x5555555555555555L;
+    return result;
+  }
+}
@@ -0,0 +1,636 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.Observer;
+import io.reactivex.Single;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.os.vt.Entry;
+import uk.os.vt.Key;
+import uk.os.vt.Metadata;
+import uk.os.vt.MetadataProvider;
+import uk.os.vt.ScanProvider;
+import uk.os.vt.Storage;
+import uk.os.vt.StorageResult;
+import uk.os.vt.common.KeyOrderedMerge;
+import uk.os.vt.common.TileCodec;
+
+/**
+ * A {@link Storage} partitioning tiles over several MBTiles files in one directory.
+ *
+ * <p>SQLite allows a single writer per file.  Here each shard is written by its own thread so
+ * {@link #putEntries(Observable)} scales with the number of shards.  Reads of a tile go to the
+ * shard holding it, and scans merge the shards in key order - by zoom level, column then row.
+ *
+ * <p>Each shard is a complete MBTiles file holding a copy of the metadata.  The directory must
+ * always be opened with the same {@link ShardPartitioner}.
+ */
+public final class ShardedMbtilesStorage implements Storage, MetadataProvider, ScanProvider {
+
+  public static final class Builder {
+
+    private final File directory;
+    private ShardPartitioner partitioner;
+    private boolean createIfNotExist;
+    private TileCodec codec;
+    private boolean deduplicate;
+    private boolean clustered;
+    private int batchSize = 1000;
+    private int queueSize = 1000;
+    private boolean readOnly;
+
+    public Builder(String directoryPath) {
+      this(new File(directoryPath));
+    }
+
+    public Builder(File directory) {
+      this.directory = directory;
+    }
+
+    /**
+     * Set how tiles are assigned to shards.  Required.
+     *
+     * @param partitioner the partitioner, see {@link ShardPartitioners}
+     * @return this builder
+     */
+    public Builder setPartitioner(ShardPartitioner partitioner) {
+      this.partitioner = partitioner;
+      return this;
+    }
+
+    public Builder createIfNotExist() {
+      createIfNotExist = true;
+      return this;
+    }
+
+    /**
+     * Set the compression for tiles of every shard.
+     *
+     * @param codec the codec
+     * @return this builder
+     * @see StorageImpl.Builder#setCodec(TileCodec)
+     */
+    public Builder setCodec(TileCodec codec) {
+      this.codec = codec;
+      return this;
+    }
+
+    /**
+     * Store identical tiles once within each shard.
+     *
+     * @param deduplicate true to store identical tiles once, defaults to false
+     * @return this builder
+     * @see StorageImpl.Builder#setDeduplication(boolean)
+     */
+    public Builder setDeduplication(boolean deduplicate) {
+      this.deduplicate = deduplicate;
+      return this;
+    }
+
+    /**
+     * Store tiles of every shard clustered on their key.
+     *
+     * @param clustered true to cluster tiles on their key, defaults to false
+     * @return this builder
+     * @see StorageImpl.Builder#setClustered(boolean)
+     */
+    public Builder setClustered(boolean clustered) {
+      this.clustered = clustered;
+      return this;
+    }
+
+    /**
+     * Set the number of tiles each shard writes per transaction.
+     *
+     * @param batchSize tiles per transaction, defaults to 1000
+     * @return this builder
+     */
+    public Builder setBatchSize(int batchSize) {
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("batch size must be at least 1");
+      }
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    /**
+     * Set the number of tiles buffered for each shard writer.  The source is held up whilst the
+     * buffer of a shard is full.
+     *
+     * @param queueSize tiles buffered per shard, defaults to 1000
+     * @return this builder
+     */
+    public Builder setQueueSize(int queueSize) {
+      if (queueSize < 1) {
+        throw new IllegalArgumentException("queue size must be at least 1");
+      }
+      this.queueSize = queueSize;
+      return this;
+    }
+
+    /**
+     * Open every shard for serving an immutable tileset.
+     *
+     * @return this builder
+     * @see StorageImpl.Builder#readOnly()
+     */
+    public Builder readOnly() {
+      readOnly = true;
+      return this;
+    }
+
+    /**
+     * Build a sharded MBTiles storage.
+     *
+     * @return the storage
+     * @throws IOException thrown if a shard cannot be opened, or the directory holds a different
+     *     number of shards than the partitioner expects
+     */
+    public ShardedMbtilesStorage build() throws IOException {
+      if (partitioner == null) {
+        throw new IllegalStateException("a partitioner is required");
+      }
+      if (createIfNotExist && !directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("cannot create directory " + directory);
+      }
+      if (!directory.isDirectory()) {
+        throw new IllegalStateException("directory does not exist");
+      }
+
+      final int count = partitioner.getShardCount();
+      final File[] existing = directory.listFiles(
+          (dir, name) -> SHARD_FILE.matcher(name).matches());
+      final boolean isPopulated = existing != null && existing.length > 0;
+      if (isPopulated && existing.length != count) {
+        throw new IOException(String.format("directory holds %d shards, partitioner expects %d",
+            existing.length, count));
+      }
+
+      final List<StorageImpl> storages = new ArrayList<>(count);
+      try {
+        for (int i = 0; i < count; i++) {
+          final StorageImpl.Builder builder = new StorageImpl.Builder(getShardFile(directory, i))
+              .setCodec(codec)
+              .setBatchSize(batchSize)
+              .setDeduplication(deduplicate)
+              .setClustered(clustered);
+          if (createIfNotExist) {
+            builder.createIfNotExist();
+          }
+          if (readOnly) {
+            builder.readOnly();
+          }
+          storages.add(builder.build());
+        }
+      } catch (final IOException | RuntimeException ex) {
+        for (StorageImpl storage : storages) {
+          try {
+            storage.close();
+          } catch (final Exception closeEx) {
+            LOG.error("problem closing shard", closeEx);
+          }
+        }
+        throw ex;
+      }
+      return new ShardedMbtilesStorage(this, storages);
+    }
+  }
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ShardedMbtilesStorage.class.getSimpleName());
+
+  private static final Pattern SHARD_FILE = Pattern.compile("^shard-\\d+\\.mbtiles$");
+  private static final int MAX_ZOOM_LEVEL = 22;
+  private static final int SCAN_PREFETCH = 128;
+  private static final long OFFER_INTERVAL_MILLIS = 100;
+
+  private final List<StorageImpl> shards;
+  private final List<ExecutorService> writers;
+  private final ShardPartitioner partitioner;
+  private final int queueSize;
+  private final boolean isReadOnly;
+
+  private ShardedMbtilesStorage(Builder builder, List<StorageImpl> shards) {
+    this.shards = Collections.unmodifiableList(shards);
+    this.partitioner = builder.partitioner;
+    this.queueSize = builder.queueSize;
+    this.isReadOnly = builder.readOnly;
+
+    final List<ExecutorService> writers = new ArrayList<>(shards.size());
+    for (int i = 0; !isReadOnly && i < shards.size(); i++) {
+      final String name = "mbtiles-shard-" + i;
+      writers.add(Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }));
+    }
+    this.writers = Collections.unmodifiableList(writers);
+  }
+
+  /**
+   * The file of a shard.
+   *
+   * @param directory the directory of the sharded tileset
+   * @param shard the shard
+   * @return the file
+   */
+  public static File getShardFile(File directory, int shard) {
+    return new File(directory, "shard-" + shard + ".mbtiles");
+  }
+
+  /**
+   * Closes every shard.
+   *
+   * @throws Exception the first problem encountered closing a shard
+   */
+  @Override
+  public void close() throws Exception {
+    for (ExecutorService writer : writers) {
+      writer.shutdownNow();
+    }
+    Exception problem = null;
+    for (StorageImpl shard : shards) {
+      try {
+        shard.close();
+      } catch (final Exception ex) {
+        LOG.error("problem closing shard", ex);
+        if (problem == null) {
+          problem = ex;
+        }
+      }
+    }
+    if (problem != null) {
+      throw problem;
+    }
+  }
+
+  @Override
+  public Observable<Entry> getEntries() {
+    return scanEntries(null).toObservable();
+  }
+
+  @Override
+  public Observable<Entry> getEntries(int zoom) {
+    return scanEntries(zoom, null).toObservable();
+  }
+
+  /**
+   * Scan tiles of every shard, merged in key order.
+   *
+   * @param after the key to resume after, exclusive, or null to scan from the first tile
+   * @return the entries, emitted as requested
+   * @see StorageImpl#scanEntries(Key)
+   */
+  @Override
+  public Flowable<Entry> scanEntries(Key after) {
+    final List<Flowable<Entry>> sources = new ArrayList<>(shards.size());
+    for (StorageImpl shard : shards) {
+      sources.add(shard.scanEntries(after));
+    }
+    return mergeInKeyOrder(sources);
+  }
+
+  /**
+   * Scan the tiles of a zoom level, merged in key order over the shards that may hold it.
+   *
+   * @param zoom the zoom level
+   * @param after the key to resume after, exclusive, or null to scan from the first tile
+   * @return the entries, emitted as requested
+   * @see StorageImpl#scanEntries(int, Key)
+   */
+  @Override
+  public Flowable<Entry> scanEntries(int zoom, Key after) {
+    final List<Flowable<Entry>> sources = new ArrayList<>(shards.size());
+    for (int i = 0; i < shards.size(); i++) {
+      if (partitioner.mayHold(i, zoom)) {
+        sources.add(shards.get(i).scanEntries(zoom, after));
+      }
+    }
+    return mergeInKeyOrder(sources);
+  }
+
+  @Override
+  public Observable<Entry> getEntry(int zoom, int col, int row) {
+    final StorageImpl shard = getShard(zoom, col, row);
+    return shard == null ? Observable.empty() : shard.getEntry(zoom, col, row);
+  }
+
+  /**
+   * Look up a single tile synchronously.
+   *
+   * @param zoom the zoom level
+   * @param col the tile in x direction
+   * @param row the tile in y direction, Google tiling scheme
+   * @return the entry, or null if there is no such tile
+   * @throws IOException thrown if the tile cannot be read
+   * @see StorageImpl#findEntry(int, int, int)
+   */
+  public Entry findEntry(int zoom, int col, int row) throws IOException {
+    final StorageImpl shard = getShard(zoom, col, row);
+    return shard == null ? null : shard.findEntry(zoom, col, row);
+  }
+
+  /**
+   * Look up the stored bytes of a single tile synchronously.
+   *
+   * @param zoom the zoom level
+   * @param col the tile in x direction
+   * @param row the tile in y direction, Google tiling scheme
+   * @return the stored tile data, or null if there is no such tile
+   * @throws IOException thrown if the tile cannot be read
+   * @see StorageImpl#getTileData(int, int, int)
+   */
+  public byte[] getTileData(int zoom, int col, int row) throws IOException {
+    final StorageImpl shard = getShard(zoom, col, row);
+    return shard == null ? null : shard.getTileData(zoom, col, row);
+  }
+
+  @Override
+  public Observable<Integer> getMaxZoomLevel() {
+    return Observable.fromIterable(shards)
+        .concatMap(StorageImpl::getMaxZoomLevel)
+        .reduce(Math::max)
+        .toObservable();
+  }
+
+  @Override
+  public Observable<Integer> getMinZoomLevel() {
+    return Observable.fromIterable(shards)
+        .concatMap(StorageImpl::getMinZoomLevel)
+        .reduce(Math::min)
+        .toObservable();
+  }
+
+  /**
+   * Write entries, each shard on its own thread and in batched transactions.
+   *
+   * @param entries the entries to write
+   * @throws RuntimeException thrown if an entry cannot be written
+   */
+  @Override
+  public void putEntries(Observable<Entry> entries) {
+    final long count = putEntriesInBatches(entries).blockingLast(0L);
+    LOG.debug("put {} entries", count);
+  }
+
+  /**
+   * Write entries, each shard on its own thread and in batched transactions.
+   *
+   * <p>Entries are routed to the writer of their shard as they are emitted.  Should one shard
+   * fail the others stop, keeping the batches they have committed.
+   *
+   * @param entries the entries to write
+   * @return the running total of entries committed over all shards
+   * @see StorageImpl#putEntriesInBatches(Observable)
+   */
+  public Observable<Long> putEntriesInBatches(Observable<Entry> entries) {
+    if (isReadOnly) {
+      return Observable.error(new UnsupportedOperationException("mbtiles is read only"));
+    }
+    return Observable.create(emitter -> {
+      final BulkWrite write = new BulkWrite(emitter);
+      emitter.setCancellable(write::abort);
+      write.start();
+
+      final CountDownLatch isTerminated = new CountDownLatch(1);
+      entries.subscribe(new Observer<Entry>() {
+        private Disposable upstream;
+
+        @Override
+        public void onSubscribe(Disposable disposable) {
+          upstream = disposable;
+        }
+
+        @Override
+        public void onNext(Entry entry) {
+          try {
+            write.route(entry);
+          } catch (final InterruptedException | CancellationException ex) {
+            upstream.dispose();
+            onError(ex);
+          }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+          write.fail(throwable);
+          isTerminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+          isTerminated.countDown();
+        }
+      });
+      isTerminated.await();
+      write.finish();
+    });
+  }
+
+  @Override
+  public Observable<StorageResult> put(Observable<Entry> entries) {
+    return entries.concatMap(entry -> getShard(entry).put(Observable.just(entry)));
+  }
+
+  @Override
+  public Observable<StorageResult> delete(Observable<Entry> entries) {
+    return entries.concatMap(entry -> getShard(entry).delete(Observable.just(entry)));
+  }
+
+  @Override
+  public Single<Metadata> generateDefault() {
+    return shards.get(0).generateDefault();
+  }
+
+  /**
+   * Write the metadata to every shard.
+   *
+   * @param metadata the metadata
+   * @return disposes of every write
+   */
+  @Override
+  public Disposable putMetadata(Single<Metadata> metadata) {
+    if (isReadOnly) {
+      throw new UnsupportedOperationException("mbtiles is read only");
+    }
+    final Single<Metadata> shared = metadata.cache();
+    final CompositeDisposable disposables = new CompositeDisposable();
+    for (StorageImpl shard : shards) {
+      disposables.add(shard.putMetadata(shared));
+    }
+    return disposables;
+  }
+
+  @Override
+  public Observable<Metadata> getMetadata() {
+    return shards.get(0).getMetadata();
+  }
+
+  private StorageImpl getShard(Entry entry) {
+    return shards.get(
+        partitioner.getShard(entry.getZoomLevel(), entry.getColumn(), entry.getRow()));
+  }
+
+  /**
+   * The shard holding a tile.
+   *
+   * @return the shard, or null if the coordinates are invalid
+   */
+  private StorageImpl getShard(int zoom, int col, int row) {
+    final boolean isValid = 0 <= zoom && zoom <= MAX_ZOOM_LEVEL
+        && 0 <= col && col < 1 << zoom && 0 <= row && row < 1 << zoom;
+    return isValid ? shards.get(partitioner.getShard(zoom, col, row)) : null;
+  }
+
+  private static Flowable<Entry> mergeInKeyOrder(List<Flowable<Entry>> sources) {
+    return KeyOrderedMerge.merge(sources, SCAN_PREFETCH);
+  }
+
+  /**
+   * A write fanned out to a writer thread per shard, each fed by a bounded queue.
+   */
+  private final class BulkWrite {
+
+    private final Entry end = new Entry(0, 0, 0, new byte[0]);
+    private final ObservableEmitter<Long> emitter;
+    private final List<BlockingQueue<Entry>> queues = new ArrayList<>();
+    private final Set<Thread> running = new HashSet<>();
+    private final CountDownLatch isWritten = new CountDownLatch(shards.size());
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private boolean isAborted;
+    private long committed;
+
+    BulkWrite(ObservableEmitter<Long> emitter) {
+      this.emitter = emitter;
+    }
+
+    void start() {
+      for (int i = 0; i < shards.size(); i++) {
+        final StorageImpl shard = shards.get(i);
+        final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(queueSize);
+        queues.add(queue);
+        writers.get(i).execute(() -> write(shard, queue));
+      }
+    }
+
+    void route(Entry entry) throws InterruptedException {
+      offer(queues.get(partitioner.getShard(entry.getZoomLevel(), entry.getColumn(),
+          entry.getRow())), entry);
+    }
+
+    void fail(Throwable throwable) {
+      if (error.compareAndSet(null, throwable)) {
+        abort();
+      }
+    }
+
+    void abort() {
+      // interrupted writers roll back their partial batch
+      synchronized (running) {
+        isAborted = true;
+        for (Thread thread : running) {
+          thread.interrupt();
+        }
+      }
+    }
+
+    /**
+     * Wait for the shards to write everything routed to them, then terminate the emitter.
+     */
+    void finish() throws InterruptedException {
+      try {
+        for (BlockingQueue<Entry> queue : queues) {
+          offer(queue, end);
+        }
+      } catch (final CancellationException ex) {
+        // a shard has failed
+      }
+      isWritten.await();
+      if (error.get() != null) {
+        emitter.onError(error.get());
+      } else if (!emitter.isDisposed()) {
+        emitter.onComplete();
+      }
+    }
+
+    private void offer(BlockingQueue<Entry> queue, Entry entry) throws InterruptedException {
+      while (!queue.offer(entry, OFFER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (error.get() != null || emitter.isDisposed()) {
+          throw new CancellationException("write abandoned");
+        }
+      }
+    }
+
+    private void write(StorageImpl shard, BlockingQueue<Entry> queue) {
+      synchronized (running) {
+        if (isAborted) {
+          isWritten.countDown();
+          return;
+        }
+        running.add(Thread.currentThread());
+      }
+      final long[] shardCommitted = new long[1];
+      try {
+        final Observable<Entry> routed = Observable.generate(generator -> {
+          final Entry entry = queue.take();
+          if (entry == end) {
+            generator.onComplete();
+          } else {
+            generator.onNext(entry);
+          }
+        });
+        // runs to completion on this thread
+        shard.putEntriesInBatches(routed).subscribe(total -> {
+          synchronized (this) {
+            committed += total - shardCommitted[0];
+            shardCommitted[0] = total;
+            emitter.onNext(committed);
+          }
+        }, this::fail);
+      } finally {
+        // the writer thread is reused, so must not be interrupted once done
+        synchronized (running) {
+          running.remove(Thread.currentThread());
+        }
+        isWritten.countDown();
+      }
+    }
+  }
+}
@@ -16,39 +16,38 @@
 
 package uk.os.vt.mbtiles;
 
-import com.google.common.base.Charsets;
-import com.google.common.io.Resources;
-import io.reactivex.BackpressureStrategy;
+import com.google.common.io.BaseEncoding;
 import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.ObservableSource;
+import io.reactivex.Observer;
 import io.reactivex.Single;
 import io.reactivex.disposables.Disposable;
-import io.reactivex.exceptions.Exceptions;
 import io.reactivex.functions.Function;
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.Nonnull;
-import org.davidmoten.rx.jdbc.ConnectionProvider;
 import org.davidmoten.rx.jdbc.Database;
 import org.davidmoten.rx.jdbc.ResultSetMapper;
 import org.davidmoten.rx.jdbc.SelectBuilder;
-import org.davidmoten.rx.jdbc.exceptions.SQLRuntimeException;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -56,18 +55,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.os.vt.Entry;
 import uk.os.vt.JsonUtil;
+import uk.os.vt.Key;
+import uk.os.vt.LazyEntry;
 import uk.os.vt.Metadata;
 import uk.os.vt.MetadataProvider;
+import uk.os.vt.ScanProvider;
 import uk.os.vt.Storage;
 import uk.os.vt.StorageResult;
-import uk.os.vt.common.CompressUtil;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
 
-public class StorageImpl implements Storage, MetadataProvider {
+public class StorageImpl implements Storage, MetadataProvider, ScanProvider {
 
   public static final class Builder {
 
     private final File file;
     private boolean createIfNotExist;
+    private TileCodec codec;
+    private int readerPoolSize = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private long busyTimeoutMillis = TimeUnit.SECONDS.toMillis(5);
+    private int cacheSizeKib = 2000;
+    private int batchSize;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private boolean readOnly;
+    private long mmapSize = -1;
+    private boolean deduplicate;
+    private boolean clustered;
+    private boolean bulkImport;
+    private boolean incrementalVacuum;
+    private int writeQueueSize;
+    private long vacuumPeriodMillis = TimeUnit.SECONDS.toMillis(30);
 
     public Builder(String filePath) {
       this.file = new File(filePath);
@@ -82,6 +99,231 @@ public class StorageImpl implements Storage, MetadataProvider {
       return this;
     }
 
+    /**
+     * Set the compression for tiles.
+     *
+     * <p>The codec is recorded in the metadata table so readers select it automatically.  A
+     * tileset that already records a codec keeps it.  Defaults to gzip.
+     *
+     * @param codec the codec, see {@link TileCodecs}
+     * @return this builder
+     */
+    public Builder setCodec(TileCodec codec) {
+      this.codec = codec;
+      return this;
+    }
+
+    /**
+     * Set the number of connections used to read concurrently.
+     *
+     * <p>Writes go through a single dedicated connection.  Defaults to the number of processors,
+     * at least two.
+     *
+     * @param readerPoolSize the number of read connections
+     * @return this builder
+     */
+    public Builder setReaderPoolSize(int readerPoolSize) {
+      if (readerPoolSize < 1) {
+        throw new IllegalArgumentException("reader pool size must be at least 1");
+      }
+      this.readerPoolSize = readerPoolSize;
+      return this;
+    }
+
+    /**
+     * Set how long to wait on a locked database, or for a free connection, before failing.
+     *
+     * @param duration the duration, defaults to 5 seconds
+     * @param unit the unit of duration
+     * @return this builder
+     */
+    public Builder setBusyTimeout(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("busy timeout cannot be negative");
+      }
+      this.busyTimeoutMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Set the page cache size of each connection.
+     *
+     * @param cacheSizeKib the cache size in KiB, defaults to 2000 as SQLite
+     * @return this builder
+     */
+    public Builder setCacheSize(int cacheSizeKib) {
+      if (cacheSizeKib < 0) {
+        throw new IllegalArgumentException("cache size cannot be negative");
+      }
+      this.cacheSizeKib = cacheSizeKib;
+      return this;
+    }
+
+    /**
+     * Set the number of tiles written per transaction by
+     * {@link StorageImpl#putEntries(Observable)}.
+     *
+     * @param batchSize tiles per transaction, defaults to 1000, or 100000 for a bulk import
+     * @return this builder
+     */
+    public Builder setBatchSize(int batchSize) {
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("batch size must be at least 1");
+      }
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    /**
+     * Set the number of tiles a key ordered scan reads ahead of its subscriber.
+     *
+     * <p>Scans step a forward only cursor as tiles are requested, so the fetch size bounds the
+     * memory held by a slow subscriber, see {@link StorageImpl#scanEntries(Key)}.
+     *
+     * @param fetchSize tiles read ahead, defaults to 256
+     * @return this builder
+     */
+    public Builder setFetchSize(int fetchSize) {
+      if (fetchSize < 1) {
+        throw new IllegalArgumentException("fetch size must be at least 1");
+      }
+      this.fetchSize = fetchSize;
+      return this;
+    }
+
+    /**
+     * Write tiles passed to {@link StorageImpl#put(Observable)} through a queue.
+     *
+     * <p>Rather than a transaction per tile, a single writer thread commits whatever has queued,
+     * up to the batch size, in one transaction.  Suits many threads writing at once, which would
+     * otherwise contend for the write connection.  Each tile still gets its own result.  Whilst
+     * the queue is full callers wait, up to the busy timeout.
+     *
+     * @param writeQueueSize tiles queued before callers wait, 0 to write each tile in its own
+     *     transaction on the calling thread; defaults to 0
+     * @return this builder
+     */
+    public Builder setWriteQueueSize(int writeQueueSize) {
+      if (writeQueueSize < 0) {
+        throw new IllegalArgumentException("write queue size cannot be negative");
+      }
+      this.writeQueueSize = writeQueueSize;
+      return this;
+    }
+
+    /**
+     * Store identical tiles once.
+     *
+     * <p>A new tileset is created with the 'map' and 'images' tables, read through a 'tiles'
+     * view, and each tile references its data by the SHA-256 of the compressed bytes.  Where most
+     * tiles are repeats, e.g. sea or empty tiles at high zoom, the file shrinks and writes speed
+     * up.  Existing tilesets keep the layout they were created with.
+     *
+     * @param deduplicate true to store identical tiles once, defaults to false
+     * @return this builder
+     */
+    public Builder setDeduplication(boolean deduplicate) {
+      this.deduplicate = deduplicate;
+      return this;
+    }
+
+    /**
+     * Store tiles clustered on their key.
+     *
+     * <p>A new tileset is created with a 'tiles' table without rowids, its primary key being
+     * zoom_level, tile_column and tile_row, rather than a table and a separate unique index.  A
+     * lookup then searches one B-tree rather than two, and key ordered scans read the table in
+     * order.  Other MBTiles readers are unaffected.  Tiles larger than a few hundred bytes are
+     * stored in overflow pages either way, so measure with representative tiles.  Existing
+     * tilesets keep the layout they were created with.
+     *
+     * @param clustered true to cluster tiles on their key, defaults to false
+     * @return this builder
+     */
+    public Builder setClustered(boolean clustered) {
+      this.clustered = clustered;
+      return this;
+    }
+
+    /**
+     * Open for a bulk import, see {@link StorageImpl#importEntries(Observable)}.
+     *
+     * <p>A new tileset is created without its unique tile index, which is built once by
+     * {@link StorageImpl#finishImport()} rather than maintained tile by tile.  Until then writes
+     * skip syncing to disk and tiles are committed in large transactions, each recording the
+     * number of tiles committed so far.  An import that is interrupted, short of an operating
+     * system crash, resumes by opening the tileset again in this mode.
+     *
+     * <p>Lookups of single tiles are slow until the import is finished.
+     *
+     * @return this builder
+     */
+    public Builder bulkImport() {
+      bulkImport = true;
+      return this;
+    }
+
+    /**
+     * Create a new tileset with incremental auto vacuum.
+     *
+     * <p>Pages freed by deleting or replacing tiles can then be returned to the file system a
+     * slice at a time, which is done in the background whilst the tileset is open for writing
+     * and no write is waiting, see {@link #setVacuumPeriod(long, TimeUnit)}.  Existing tilesets
+     * keep the auto vacuum mode they were created with.
+     *
+     * @return this builder
+     */
+    public Builder incrementalVacuum() {
+      incrementalVacuum = true;
+      return this;
+    }
+
+    /**
+     * Set how often free pages are returned to the file system, for tilesets created with
+     * {@link #incrementalVacuum()}.
+     *
+     * @param duration the interval, 0 to never vacuum in the background; defaults to 30 seconds
+     * @param unit the unit of duration
+     * @return this builder
+     */
+    public Builder setVacuumPeriod(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("vacuum period cannot be negative");
+      }
+      this.vacuumPeriodMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Open for serving an immutable tileset.
+     *
+     * <p>No write connection is opened and all writes fail.  Read connections use memory mapped
+     * I/O, keep temporary tables in memory and, unless the database is in WAL mode, hold their
+     * shared lock rather than taking it per query.  The schema is validated once on open.
+     *
+     * <p>Whilst open, other processes cannot write to the tileset.
+     *
+     * @return this builder
+     */
+    public Builder readOnly() {
+      readOnly = true;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of bytes of the database each read connection memory maps.
+     *
+     * @param mmapSize bytes to map, 0 to disable; defaults to 256 MiB when read only, else 0
+     * @return this builder
+     */
+    public Builder setMmapSize(long mmapSize) {
+      if (mmapSize < 0) {
+        throw new IllegalArgumentException("mmap size cannot be negative");
+      }
+      this.mmapSize = mmapSize;
+      return this;
+    }
+
     /**
      * Build an MBTiles storage.
      *
@@ -89,10 +331,15 @@ public class StorageImpl implements Storage, MetadataProvider {
      * @throws IOException thrown if IO error occurs
      */
     public StorageImpl build() throws IOException {
+      if (deduplicate && clustered) {
+        throw new IllegalStateException("a deduplicated mbtiles cannot also be clustered");
+      }
       final boolean isInitializationRequired = createIfNotExist && !file.exists();
       if (isInitializationRequired) {
+        final Layout layout = deduplicate ? Layout.DEDUPLICATED
+            : clustered ? Layout.CLUSTERED : Layout.SIMPLE;
         try {
-          Util.initialise(file);
+          Util.initialise(file, layout, incrementalVacuum);
         } catch (final IOException ex) {
           throw new IOException("cannot initiaize mbtile", ex);
         }
@@ -101,132 +348,556 @@ public class StorageImpl implements Storage, MetadataProvider {
       if (!file.exists()) {
         throw new IllegalStateException("file does not exist");
       }
-      return new StorageImpl(file);
+
+      if (readOnly) {
+        if (createIfNotExist) {
+          throw new IllegalStateException("cannot create a read only mbtiles");
+        }
+        if (bulkImport) {
+          throw new IllegalStateException("cannot import into a read only mbtiles");
+        }
+        Util.validate(file);
+        return new StorageImpl(this, Util.getJournalMode(file).equals("wal"));
+      }
+
+      if (bulkImport) {
+        if (deduplicate || clustered) {
+          // both have their key index built into the table
+          throw new IllegalStateException(
+              "cannot bulk import into a deduplicated or clustered mbtiles");
+        }
+        if (isInitializationRequired) {
+          Util.beginImport(file);
+        } else if (!Util.isImporting(file)) {
+          throw new IllegalStateException("bulk import requires a new or unfinished import");
+        }
+      } else if (Util.isImporting(file)) {
+        // without its unique index, replacing a tile would duplicate it
+        throw new IllegalStateException("mbtiles has an unfinished bulk import");
+      }
+      return new StorageImpl(this, false);
     }
   }
 
   private static final Logger LOG = LoggerFactory.getLogger(StorageImpl.class.getSimpleName());
 
+  private static final String SELECT_METADATA = "SELECT name, value FROM metadata";
+  private static final Pattern JSON_ARRAY = Pattern.compile("^\\[(.*)\\]$");
+  private static final String SELECT_TILE_DATA = "SELECT tile_data FROM tiles"
+      + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+  private static final long DEFAULT_READ_ONLY_MMAP_SIZE = 256L * 1024 * 1024;
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final int DEFAULT_IMPORT_BATCH_SIZE = 100000;
+  private static final int DEFAULT_FETCH_SIZE = 256;
+  private static final int SQLITE_CONSTRAINT = 19;
+  private static final int MAX_ZOOM_LEVEL = 22;
+  private static final String DELETE_KEYS_TABLE = "temp.delete_keys";
+
   private final Database dataSource;
+  private final Database writer;
+  private final ConnectionPool writers;
+  private final ConnectionPool readers;
+  private final int batchSize;
+  private final int fetchSize;
+  private final Layout layout;
+  private final TileSummary summary;
+  private final Compactor compactor;
+  private final WriteQueue writeQueue;
+  // null until loaded, and once replaced
+  private final AtomicReference<Metadata> cachedMetadata = new AtomicReference<>();
+  private final AtomicLong metadataVersion = new AtomicLong();
   private final boolean isError;
+  private final boolean isReadOnly;
+  private volatile boolean isImporting;
+  private final TileCodec readCodec;
+  private final TileCodec writeCodec;
+
+  private StorageImpl(Builder builder, boolean isWal) {
+    final String url = "jdbc:sqlite:" + builder.file.getAbsolutePath();
+    final List<String> pragmas = Arrays.asList(
+        "PRAGMA busy_timeout = " + builder.busyTimeoutMillis,
+        "PRAGMA cache_size = " + -builder.cacheSizeKib);
+
+    // the writer switches the database to WAL so readers no longer wait on writes
+    final List<String> writerPragmas = new ArrayList<>(pragmas);
+    writerPragmas.add("PRAGMA journal_mode = WAL");
+    // a WAL survives the process being killed, so only a system crash could lose an import
+    writerPragmas.add("PRAGMA synchronous = " + (builder.bulkImport ? "OFF" : "NORMAL"));
+    final List<String> readerPragmas = new ArrayList<>(pragmas);
+    readerPragmas.add("PRAGMA query_only = true");
+    final long mmapSize = builder.mmapSize >= 0 ? builder.mmapSize
+        : builder.readOnly ? DEFAULT_READ_ONLY_MMAP_SIZE : 0;
+    if (mmapSize > 0) {
+      readerPragmas.add("PRAGMA mmap_size = " + mmapSize);
+    }
+    if (builder.readOnly) {
+      readerPragmas.add("PRAGMA temp_store = MEMORY");
+      // an exclusive WAL connection would shut out the other readers
+      if (!isWal) {
+        readerPragmas.add("PRAGMA locking_mode = EXCLUSIVE");
+      }
+    }
 
-  private StorageImpl(File file) {
     Database datasource = null;
+    Database writer = null;
+    ConnectionPool writers = null;
+    ConnectionPool readers = null;
     boolean isError = true;
     try {
-      datasource = Database.fromBlocking(connectionProvider("jdbc:sqlite:"
-          + file.getAbsolutePath()));
+      if (!builder.readOnly) {
+        writers = new ConnectionPool(url, 1, builder.busyTimeoutMillis, writerPragmas);
+        writers.warm();
+        writer = Database.fromBlocking(writers);
+      }
+      readers = new ConnectionPool(url, builder.readerPoolSize, builder.busyTimeoutMillis,
+          readerPragmas);
+      datasource = Database.fromBlocking(readers);
       isError = false;
     } catch (final Exception ex) {
       LOG.error("problem establishing a connection", ex);
+      if (writer != null) {
+        writer.close();
+      }
     }
     this.dataSource = datasource;
+    this.writer = writer;
+    this.writers = writers;
+    this.readers = readers;
+    this.batchSize = builder.batchSize > 0 ? builder.batchSize
+        : builder.bulkImport ? DEFAULT_IMPORT_BATCH_SIZE : DEFAULT_BATCH_SIZE;
+    this.fetchSize = builder.fetchSize;
+    this.layout = isError ? Layout.SIMPLE : Layout.detect(datasource);
+    if (builder.deduplicate && layout != Layout.DEDUPLICATED) {
+      LOG.warn("ignoring deduplication - tileset was created without it");
+    }
+    if (builder.clustered && layout != Layout.CLUSTERED) {
+      LOG.warn("ignoring clustering - tileset was created without it");
+    }
+    this.summary = isError ? null : new TileSummary(readers, layout);
+    this.compactor = isError || builder.readOnly ? null
+        : new Compactor(builder.file, writers, readers);
+    if (compactor != null && builder.vacuumPeriodMillis > 0) {
+      try {
+        compactor.schedule(builder.vacuumPeriodMillis);
+      } catch (final SQLException ex) {
+        LOG.error("problem scheduling vacuum", ex);
+      }
+    }
     this.isError = isError;
+    this.isReadOnly = builder.readOnly;
+    this.isImporting = builder.bulkImport;
+    // unrecorded tilesets are assumed to be gzip, although raw tiles are tolerated on read
+    this.readCodec = isError ? null : isReadOnly ? CodecConcern.resolve(datasource, builder.codec)
+        : CodecConcern.resolveAndRecord(writer, builder.codec);
+    this.writeCodec = readCodec == null ? TileCodecs.gzip() : readCodec;
+    this.writeQueue = isError || builder.readOnly || builder.writeQueueSize == 0 ? null
+        : new WriteQueue(builder.writeQueueSize, batchSize, builder.busyTimeoutMillis,
+            () -> new TileBatch(this.writers::take, writeCodec, layout, Integer.MAX_VALUE, summary,
+                false));
   }
 
   @Override
   public void close() throws Exception {
+    if (writeQueue != null) {
+      writeQueue.close();
+    }
+    if (compactor != null) {
+      compactor.close();
+    }
     final boolean isDatabase = dataSource != null;
     if (isDatabase) {
       dataSource.close();
     }
+    if (writer != null) {
+      writer.close();
+    }
   }
 
   @Override
   public Observable<Entry> getEntry(int zoom, int col, int row) {
-    return get(dataSource
-        .select("SELECT zoom_level, tile_column, tile_row, tile_data " + "FROM tiles "
-            + "WHERE zoom_level = ? " + "AND tile_column = ? " + "AND tile_row = ?")
-        .parameters(zoom, col, flipY(row, zoom)));
+    if (isError) {
+      return Observable.empty();
+    }
+    return Observable.defer(() -> {
+      final Entry entry = findEntry(zoom, col, row);
+      return entry == null ? Observable.<Entry>empty() : Observable.just(entry);
+    });
+  }
+
+  /**
+   * Look up a single tile synchronously.
+   *
+   * @param zoom the zoom level
+   * @param col the tile in x direction
+   * @param row the tile in y direction, Google tiling scheme
+   * @return the entry, uncompressed on first access, or null if there is no such tile
+   * @throws IOException thrown if the tile cannot be read
+   */
+  public Entry findEntry(int zoom, int col, int row) throws IOException {
+    final byte[] data = getTileData(zoom, col, row);
+    return data == null ? null : new LazyEntry(zoom, col, row, data, readCodec);
+  }
+
+  /**
+   * Look up the stored bytes of a single tile synchronously.
+   *
+   * <p>The bytes are as stored, compressed by the tileset codec, e.g. ready to serve with a
+   * gzip content encoding.  Each read connection keeps the lookup prepared so only parameter
+   * binding and execution remain.
+   *
+   * @param zoom the zoom level
+   * @param col the tile in x direction
+   * @param row the tile in y direction, Google tiling scheme
+   * @return the stored tile data, or null if there is no such tile
+   * @throws IOException thrown if the tile cannot be read
+   */
+  public byte[] getTileData(int zoom, int col, int row) throws IOException {
+    if (isError) {
+      throw new IOException("mbtiles is unavailable");
+    }
+    try {
+      return readers.withStatement(SELECT_TILE_DATA, statement -> {
+        statement.setInt(1, zoom);
+        statement.setInt(2, col);
+        statement.setInt(3, flipY(row, zoom));
+        try (ResultSet rs = statement.executeQuery()) {
+          return rs.next() ? rs.getBytes(1) : null;
+        }
+      });
+    } catch (final SQLException ex) {
+      throw new IOException(String.format("cannot read tile %d/%d/%d", zoom, col, row), ex);
+    }
   }
 
   @Override
   public Observable<Entry> getEntries() {
-    return get(dataSource.select("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles"));
+    return get(dataSource.select("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles")
+        .fetchSize(fetchSize));
   }
 
   @Override
   public Observable<Entry> getEntries(int zoom) {
     return get(dataSource.select("SELECT zoom_level, tile_column, tile_row, tile_data "
         + "FROM tiles "
-        + "WHERE zoom_level = ?").parameter(zoom));
+        + "WHERE zoom_level = ?").parameter(zoom).fetchSize(fetchSize));
+  }
+
+  /**
+   * Scan tiles in key order - by zoom level, column then row in the Google tiling scheme.
+   *
+   * <p>Unlike {@link #getEntries()}, the order is fixed, so scans of tilesets merge join, and a
+   * scan resumes after the last key it emitted without reading earlier tiles again.  Tiles are
+   * read through a forward only cursor as requested, up to the fetch size ahead, see
+   * {@link Builder#setFetchSize(int)}.  The scan reads from a single snapshot of the tileset.
+   *
+   * @param after the key to resume after, exclusive, or null to scan from the first tile
+   * @return the entries, emitted as requested
+   */
+  @Override
+  public Flowable<Entry> scanEntries(Key after) {
+    return scan(null, after);
+  }
+
+  /**
+   * Scan the tiles of a zoom level in key order.
+   *
+   * @param zoom the zoom level
+   * @param after the key to resume after, exclusive, or null to scan from the first tile
+   * @return the entries, emitted as requested
+   * @see #scanEntries(Key)
+   */
+  @Override
+  public Flowable<Entry> scanEntries(int zoom, Key after) {
+    return scan(zoom, after);
+  }
+
+  private Flowable<Entry> scan(Integer zoom, Key after) {
+    if (isError) {
+      return Flowable.empty();
+    }
+    final StringBuilder query = new StringBuilder(
+        "SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles WHERE 1");
+    final List<Object> params = new ArrayList<>();
+    if (zoom != null) {
+      query.append(" AND zoom_level = ?");
+      params.add(zoom);
+    }
+    if (after != null) {
+      // seek to the column of the key through the index, then skip the rows already read
+      query.append(" AND (zoom_level, tile_column) >= (?, ?)"
+          + " AND NOT (zoom_level = ? AND tile_column = ? AND tile_row >= ?)");
+      Collections.addAll(params, after.getZ(), after.getX(), after.getZ(), after.getX(),
+          flipY(after.getY(), after.getZ()));
+    }
+    // tile_row is flipped, so descending rows ascend in the Google tiling scheme
+    query.append(" ORDER BY zoom_level, tile_column, tile_row DESC");
+    return getFlowable(dataSource.select(query.toString())
+        .parameters(params.toArray())
+        .fetchSize(fetchSize))
+        .rebatchRequests(fetchSize);
   }
 
   @Override
   public Observable<Integer> getMaxZoomLevel() {
-    return queryConfig().map(VectorTileConfig::getMaxZoom);
+    return getZoomRange().map(range -> range[1]);
   }
 
   @Override
   public Observable<Integer> getMinZoomLevel() {
-    return queryConfig().map(VectorTileConfig::getMinZoom);
+    return getZoomRange().map(range -> range[0]);
   }
 
+  /**
+   * Get the columns and rows spanned by the tiles of a zoom level.
+   *
+   * <p>Like the zoom range, extents are summarised in memory on first use and kept up to date by
+   * writes through this storage, so repeated calls are cheap.
+   *
+   * @param zoom the zoom level
+   * @return the extent, or null if there are no tiles at the zoom level
+   * @throws IOException thrown if the extent cannot be read
+   */
+  public TileExtent getExtent(int zoom) throws IOException {
+    if (isError) {
+      throw new IOException("mbtiles is unavailable");
+    }
+    return summary.getExtent(zoom);
+  }
+
+  /**
+   * Get the bounds of the tiles at the highest zoom level.
+   *
+   * @return the bounds as min longitude, min latitude, max longitude, max latitude, or null if
+   *     there are no tiles
+   * @throws IOException thrown if the bounds cannot be read
+   */
+  public double[] getBounds() throws IOException {
+    if (isError) {
+      throw new IOException("mbtiles is unavailable");
+    }
+    final int[] range = summary.getZoomRange();
+    final TileExtent extent = range.length == 0 ? null : summary.getExtent(range[1]);
+    if (extent == null) {
+      return null;
+    }
+    return new VectorTileConfig(range[0], range[1], extent.getMinColumn(), extent.getMinRow(),
+        extent.getMaxColumn(), extent.getMaxRow()).getExtentAsLatLon();
+  }
+
+  /**
+   * Write entries, committing every batch in its own transaction.
+   *
+   * <p>Entries are written as they are emitted, on the emitting thread, so a synchronous source of
+   * any size is written in constant memory.  Batches committed before an error are kept.
+   *
+   * @param entries the entries to write
+   * @throws RuntimeException thrown if an entry cannot be written
+   */
   @Override
   public void putEntries(Observable<Entry> entries) {
-    final String insert =
-        "INSERT OR REPLACE INTO TILES(zoom_level, tile_column, tile_row, tile_data)"
-            + " values (?, ?, ?, ?);";
+    final long count = putEntriesInBatches(entries)
+        .doOnNext(total -> LOG.debug("committed {} entries", total))
+        .blockingLast(0L);
+    LOG.debug("put {} entries", count);
+  }
 
-    final Observable<Object> params = entries.concatMap(entry -> {
-      byte[] compressedMvt;
-      try {
-        compressedMvt = CompressUtil.getCompressedAsGzip(entry.getVector());
-      } catch (final IOException ex) {
-        throw Exceptions.propagate(ex);
-      }
+  /**
+   * Write entries, committing every batch in its own transaction.
+   *
+   * <p>The batch size is set by {@link Builder#setBatchSize(int)}.
+   *
+   * @param entries the entries to write
+   * @return the running total of entries committed, emitted after each transaction
+   */
+  public Observable<Long> putEntriesInBatches(Observable<Entry> entries) {
+    return writeInBatches(entries, false);
+  }
+
+  /**
+   * Write entries in batches, optionally counting them in the import checkpoint.
+   *
+   * <p>Only the import counts its batches, any other write would shift where it resumes.
+   */
+  private Observable<Long> writeInBatches(Observable<Entry> entries, boolean isCheckpointed) {
+    if (isError) {
+      return Observable.error(new IOException("mbtiles is unavailable"));
+    }
+    if (isReadOnly) {
+      return Observable.error(new UnsupportedOperationException("mbtiles is read only"));
+    }
+    return Observable.create(emitter -> {
+      try (TileBatch batch = new TileBatch(writers::take, writeCodec, layout, batchSize, summary,
+          isCheckpointed)) {
+        final CountDownLatch isTerminated = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        entries.subscribe(new Observer<Entry>() {
+          private Disposable upstream;
+
+          @Override
+          public void onSubscribe(Disposable disposable) {
+            upstream = disposable;
+            emitter.setCancellable(() -> {
+              disposable.dispose();
+              isTerminated.countDown();
+            });
+          }
+
+          @Override
+          public void onNext(Entry entry) {
+            try {
+              if (batch.add(entry)) {
+                emitter.onNext(batch.getCommitted());
+              }
+            } catch (final IOException | SQLException ex) {
+              upstream.dispose();
+              onError(ex);
+            }
+          }
 
-      return Observable.<Object>just(entry.getZoomLevel(), entry.getColumn(),
-          flipY(entry.getRow(), entry.getZoomLevel()), compressedMvt);
-    })
-        // source: https://github.com/davidmoten/rxjava-jdbc/pull/46/files
-        .toList()
-        .flattenAsObservable(objects -> objects);
+          @Override
+          public void onError(Throwable throwable) {
+            error.compareAndSet(null, throwable);
+            isTerminated.countDown();
+          }
+
+          @Override
+          public void onComplete() {
+            isTerminated.countDown();
+          }
+        });
+        isTerminated.await();
 
-    // TODO update when upstream is enhanced
-    dataSource.update(insert)
-        .parameterStream(params.toFlowable(BackpressureStrategy.BUFFER))
-        .counts()
-        .test() // TODO remove hack
-        .awaitDone(5, TimeUnit.SECONDS)
-        .assertComplete();
+        if (error.get() != null) {
+          emitter.onError(error.get());
+          return;
+        }
+        if (emitter.isDisposed()) {
+          // abandoned - the partial batch is rolled back
+          return;
+        }
+        if (batch.commit()) {
+          emitter.onNext(batch.getCommitted());
+        }
+        emitter.onComplete();
+      }
+    });
   }
 
-  @Override
-  public Observable<StorageResult> put(Observable<Entry> entries) {
-    return entries.flatMap((Function<Entry, ObservableSource<StorageResult>>) entry -> {
-      final String insert =
-          "INSERT OR REPLACE INTO TILES(zoom_level, tile_column, tile_row, tile_data)"
-              + " values (?, ?, ?, ?);";
+  /**
+   * Import entries, resuming an interrupted import.
+   *
+   * <p>Entries already committed by the import, by count, are skipped.  Sources must therefore
+   * emit the same entries in the same order each time.  Tiles written meanwhile by any other
+   * means are not counted.  Requires {@link Builder#bulkImport()}.
+   *
+   * @param entries the entries to import
+   * @return the running total of entries committed, emitted after each transaction
+   */
+  public Observable<Long> importEntries(Observable<Entry> entries) {
+    return Observable.defer(() -> {
+      final long committed = getImportCheckpoint();
+      if (committed > 0) {
+        LOG.info("resuming import after {} entries", committed);
+      }
+      return writeInBatches(entries.skip(committed), true).map(total -> committed + total);
+    });
+  }
+
+  /**
+   * Get the number of entries committed by the bulk import.
+   *
+   * @return the number of entries committed
+   * @throws IOException thrown if the checkpoint cannot be read
+   * @throws IllegalStateException thrown if not opened for a bulk import, or once finished
+   */
+  public long getImportCheckpoint() throws IOException {
+    if (!isImporting) {
+      throw new IllegalStateException("not a bulk import");
+    }
+    try {
+      return writer.select("SELECT committed FROM " + Util.IMPORT_CHECKPOINT_TABLE)
+          .getAs(Long.class)
+          .blockingFirst();
+    } catch (final RuntimeException ex) {
+      throw new IOException("cannot read import checkpoint", ex);
+    }
+  }
 
-      byte[] compressedMvt;
+  /**
+   * Finish the bulk import, building the unique tile index and restoring safe writes.
+   *
+   * <p>Should a tile have been imported more than once, the last written is kept.
+   *
+   * @throws IOException thrown if the index cannot be built
+   * @throws IllegalStateException thrown if not opened for a bulk import, or once finished
+   */
+  public void finishImport() throws IOException {
+    if (!isImporting) {
+      throw new IllegalStateException("not a bulk import");
+    }
+    try (Connection connection = writers.get();
+        Statement statement = connection.createStatement()) {
       try {
-        compressedMvt = CompressUtil.getCompressedAsGzip(entry.getVector());
-      } catch (final IOException ex) {
-        throw Exceptions.propagate(ex);
+        statement.execute(Util.CREATE_TILE_INDEX);
+      } catch (final SQLException ex) {
+        if (ex.getErrorCode() != SQLITE_CONSTRAINT) {
+          throw ex;
+        }
+        LOG.warn("removing duplicate tiles", ex);
+        statement.execute("DELETE FROM tiles WHERE rowid NOT IN"
+            + " (SELECT MAX(rowid) FROM tiles GROUP BY zoom_level, tile_column, tile_row)");
+        statement.execute(Util.CREATE_TILE_INDEX);
       }
+      statement.execute("DROP TABLE " + Util.IMPORT_CHECKPOINT_TABLE);
+      statement.execute("PRAGMA synchronous = NORMAL");
+      isImporting = false;
+    } catch (final SQLException | RuntimeException ex) {
+      throw new IOException("cannot finish import", ex);
+    }
+  }
 
-      Observable<Object> params = Observable.<Object>just(entry.getZoomLevel(), entry.getColumn(),
-          flipY(entry.getRow(), entry.getZoomLevel()), compressedMvt);
-
-      return dataSource.update(insert)
-          .parameterStream(params.toFlowable(BackpressureStrategy.BUFFER)).counts()
-          .map(integer -> new StorageResult(entry))
-          .onErrorReturn(throwable -> new StorageResult(entry, new Exception(throwable)))
-          .toObservable();
+  @Override
+  public Observable<StorageResult> put(Observable<Entry> entries) {
+    if (isReadOnly) {
+      return readOnlyFailures(entries);
+    }
+    if (isError) {
+      return entries.map(entry ->
+          new StorageResult(entry, new IOException("mbtiles is unavailable")));
+    }
+    if (writeQueue != null) {
+      return writeQueue.put(entries);
+    }
+    return entries.map(entry -> {
+      // a transaction per entry, through the same statements as batched writes
+      try (TileBatch batch = new TileBatch(writers::take, writeCodec, layout, 1, summary,
+          false)) {
+        batch.add(entry);
+        return new StorageResult(entry);
+      } catch (final IOException | SQLException | RuntimeException ex) {
+        return new StorageResult(entry, ex);
+      }
     });
   }
 
   @Override
   public Observable<StorageResult> delete(Observable<Entry> entries) {
+    if (isReadOnly) {
+      return readOnlyFailures(entries);
+    }
+    if (isError) {
+      return entries.map(entry ->
+          new StorageResult(entry, new IOException("mbtiles is unavailable")));
+    }
     return entries.flatMap((Function<Entry, ObservableSource<StorageResult>>) entry -> {
-      final String delete =
-          "DELETE FROM TILES WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
-      return dataSource.update(delete)
+      return writer.update(layout.getDeleteStatement())
           .parameters(entry.getZoomLevel(), entry.getColumn(), flipY(entry.getRow(),
               entry.getZoomLevel()))
           .counts()
           .map(count -> {
+            if (count > 0) {
+              summary.removed(entry.getZoomLevel());
+            }
             if (count == 1) {
               return new StorageResult(entry);
             } else {
@@ -237,83 +908,221 @@ public class StorageImpl implements Storage, MetadataProvider {
     });
   }
 
+  /**
+   * Delete every tile of a range of zoom levels within a bounding box, in one transaction.
+   *
+   * <p>Tiles are deleted by key range, through the tile index, rather than one by one.  Tiles
+   * merely touching an edge of the box are kept.  In a deduplicated tileset the tile data is
+   * left for {@link #pruneTileData()}.
+   *
+   * @param zoomMin the lowest zoom level, inclusive
+   * @param zoomMax the highest zoom level, inclusive
+   * @param bbox min longitude, min latitude, max longitude, max latitude, or null for the
+   *     whole of each zoom level
+   * @return the number of tiles deleted
+   * @throws IOException thrown if the tiles cannot be deleted, in which case none are
+   */
+  public int deleteRange(int zoomMin, int zoomMax, double[] bbox) throws IOException {
+    if (zoomMin > zoomMax) {
+      throw new IllegalArgumentException("zoom range is empty");
+    }
+    if (bbox != null && bbox.length != 4) {
+      throw new IllegalArgumentException("bbox must be min lon, min lat, max lon, max lat");
+    }
+    final int min = Math.max(0, zoomMin);
+    final int max = Math.min(MAX_ZOOM_LEVEL, zoomMax);
+    final String table = layout.getKeyTable();
+    final int count = inWriteTransaction(connection -> {
+      if (bbox == null) {
+        try (PreparedStatement delete = connection.prepareStatement(
+            "DELETE FROM " + table + " WHERE zoom_level BETWEEN ? AND ?")) {
+          delete.setInt(1, min);
+          delete.setInt(2, max);
+          return delete.executeUpdate();
+        }
+      }
+      int deleted = 0;
+      try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table
+          + " WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?")) {
+        for (int zoom = min; zoom <= max; zoom++) {
+          final TileExtent extent = TileExtent.covering(zoom, bbox);
+          delete.setInt(1, zoom);
+          delete.setInt(2, extent.getMinColumn());
+          delete.setInt(3, extent.getMaxColumn());
+          delete.setInt(4, flipY(extent.getMaxRow(), zoom));
+          delete.setInt(5, flipY(extent.getMinRow(), zoom));
+          deleted += delete.executeUpdate();
+        }
+      }
+      return deleted;
+    });
+    if (count > 0) {
+      for (int zoom = min; zoom <= max; zoom++) {
+        summary.removed(zoom);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Delete tiles by key, in one transaction.
+   *
+   * <p>The keys are staged in a temporary table and the tiles deleted by a single statement, so
+   * no tile data need be supplied.  Keys without a tile are ignored.  In a deduplicated tileset
+   * the tile data is left for {@link #pruneTileData()}.
+   *
+   * @param keys the keys of the tiles to delete
+   * @return the number of tiles deleted
+   * @throws IOException thrown if the tiles cannot be deleted, in which case none are
+   */
+  public int delete(Iterable<Key> keys) throws IOException {
+    final boolean[] zooms = new boolean[MAX_ZOOM_LEVEL + 1];
+    final int count = inWriteTransaction(connection -> {
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("CREATE TEMP TABLE IF NOT EXISTS " + DELETE_KEYS_TABLE
+            + " (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER)");
+        try (PreparedStatement insert = connection.prepareStatement(
+            "INSERT INTO " + DELETE_KEYS_TABLE + " VALUES (?, ?, ?)")) {
+          for (Key key : keys) {
+            insert.setInt(1, key.getZ());
+            insert.setInt(2, key.getX());
+            insert.setInt(3, flipY(key.getY(), key.getZ()));
+            insert.executeUpdate();
+            zooms[key.getZ()] = true;
+          }
+        }
+        final int deleted = statement.executeUpdate("DELETE FROM " + layout.getKeyTable()
+            + " WHERE (zoom_level, tile_column, tile_row) IN"
+            + " (SELECT zoom_level, tile_column, tile_row FROM " + DELETE_KEYS_TABLE + ")");
+        statement.execute("DELETE FROM " + DELETE_KEYS_TABLE);
+        return deleted;
+      }
+    });
+    if (count > 0) {
+      for (int zoom = 0; zoom <= MAX_ZOOM_LEVEL; zoom++) {
+        if (zooms[zoom]) {
+          summary.removed(zoom);
+        }
+      }
+    }
+    return count;
+  }
+
+  private int inWriteTransaction(TransactionFunction function) throws IOException {
+    if (isError || isReadOnly) {
+      throw new IOException("mbtiles is unavailable or read only");
+    }
+    try (Connection connection = writers.get()) {
+      connection.setAutoCommit(false);
+      // rolled back by the pool unless committed
+      final int result = function.apply(connection);
+      connection.commit();
+      connection.setAutoCommit(true);
+      return result;
+    } catch (final SQLException | RuntimeException ex) {
+      throw new IOException("cannot delete tiles", ex);
+    }
+  }
+
+  /**
+   * Return free pages to the file system now, rather than waiting for the background vacuum.
+   *
+   * <p>Only tilesets created with {@link Builder#incrementalVacuum()} release pages.  Stops early
+   * should a write be waiting.
+   *
+   * @return the number of pages released
+   * @throws IOException thrown if the tileset cannot be vacuumed
+   */
+  public int vacuum() throws IOException {
+    if (isError || isReadOnly) {
+      throw new IOException("mbtiles is unavailable or read only");
+    }
+    try {
+      return compactor.vacuumIncrementally();
+    } catch (final SQLException ex) {
+      throw new IOException("cannot vacuum", ex);
+    }
+  }
+
+  /**
+   * Rebuild the tileset without free pages or fragmentation.
+   *
+   * <p>The live pages are copied, in order, to a new file which then replaces the tileset.  Reads
+   * continue whilst the copy is made and writes wait for it, failing once the busy timeout
+   * passes.  Both wait for the brief swap.  Needs free disk space for a full copy.
+   *
+   * @throws IOException thrown if the tileset cannot be compacted, in which case it is unchanged
+   */
+  public void compact() throws IOException {
+    if (isError || isReadOnly) {
+      throw new IOException("mbtiles is unavailable or read only");
+    }
+    compactor.compact();
+  }
+
+  /**
+   * Remove tile data no longer referenced by any tile.
+   *
+   * <p>Only deduplicated tilesets hold tile data apart from tiles.  Deleting or replacing a tile
+   * leaves its data in place, as other tiles may share it, until pruned.
+   *
+   * @return the number of tile data rows removed
+   * @throws IOException thrown if the tileset cannot be pruned
+   */
+  public int pruneTileData() throws IOException {
+    if (isError || isReadOnly) {
+      throw new IOException("mbtiles is unavailable or read only");
+    }
+    if (layout != Layout.DEDUPLICATED) {
+      return 0;
+    }
+    try {
+      return writer.update("DELETE FROM images WHERE tile_id NOT IN (SELECT tile_id FROM map)")
+          .counts()
+          .blockingFirst();
+    } catch (final RuntimeException ex) {
+      throw new IOException("cannot prune tile data", ex);
+    }
+  }
+
   @Override
   public Single<Metadata> generateDefault() {
     return MetadataConcern.generateDefault(dataSource);
   }
 
+  /**
+   * Get the metadata.
+   *
+   * <p>The metadata is parsed once and kept as an immutable snapshot until replaced through
+   * {@link #putMetadata(Single)}.  Changes made to the file by anything else are not seen.
+   *
+   * @return the metadata, or empty if the tileset holds none
+   */
   @Override
   public Observable<Metadata> getMetadata() {
-    final String query = "SELECT name, value FROM metadata";
-    return dataSource.select(query).get(rs -> {
-      final Map<String, String> metadata = new TreeMap<>();
-      // TODO consider QA on why design wasn't rs.next() with cursor starting at -1
-      while (rs.getRow() != 0) {
-        metadata.put(rs.getString("name"), rs.getString("value"));
-        rs.next();
+    return Observable.defer(() -> {
+      final Metadata cached = cachedMetadata.get();
+      if (cached != null) {
+        return Observable.just(cached);
       }
-      return metadata;
-    }).map(map -> {
-      final Metadata.Builder metadata = new Metadata.Builder();
-      try {
-        // TODO handle any extra metadata! i.e. more key values! Parse as JSON? Force key value?
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-          String key = entry.getKey();
-          if (key.equals("type") || key.equals("version")) {
-            // Warning: if the user specified 'type' or 'version' attributes in the TileJson then
-            // those
-            // attributes would be ignored.
-            // The above is the not the issue per se _but_ rather we should consider adding this
-            // elsewhere, e.g. in the json field
-            continue;
-          }
-          final boolean ignore = key.equals("json");
-          if (!ignore) {
-            String value = map.get(key).trim();
-
-            if (!value.isEmpty() && key.equals("center") || key.equals("bounds")) {
-              value = "[" + value + "]";
+      final long loadedVersion = metadataVersion.get();
+      return dataSource.select(SELECT_METADATA).get(MetadataConcern::readAll)
+          .map(MetadataConcern::parse)
+          .doOnNext(loaded -> {
+            // a load racing a write must not be kept
+            if (metadataVersion.get() == loadedVersion) {
+              cachedMetadata.compareAndSet(null, loaded);
             }
-
-            if (!value.isEmpty() && value.substring(0, 1).equals("[")) {
-              metadata.setJson(key, new JSONArray(value));
-            } else if (!value.isEmpty() && value.substring(0, 1).equals("{")) {
-              metadata.setJson(key, new JSONObject(value));
-            } else {
-              final boolean isInteger = value.matches("^-?\\d+$");
-              // see
-              // http://stackoverflow.com/questions/5439529/determine-if-a-string-is-an-integer-in-java
-              final boolean isFloat = !isInteger && value.matches("[+-]([0-9]*[.])?[0-9]+");
-              // see
-              // http://stackoverflow.com/questions/12643009/regular-expression-for-floating-point-numbers
-
-              if (isInteger) {
-                metadata.setJson(key, Long.parseLong(value));
-              } else if (isFloat) {
-                metadata.setJson(key, Double.parseDouble(value));
-              } else {
-                // default to string
-                metadata.setJson(key, value);
-              }
-            }
-          }
-        }
-
-        if (map.containsKey("json")) {
-          final JSONObject json = new JSONObject(map.get("json"));
-          if (json.has("vector_layers")) {
-            metadata.setJson("vector_layers", json.getJSONArray("vector_layers"));
-          }
-        }
-      } catch (final JSONException ex) {
-        LOG.error("problem", ex);
-      }
-      return metadata.build();
-    }).toObservable();
+          })
+          .toObservable();
+    });
   }
 
   @Override
   public Disposable putMetadata(Single<Metadata> metadata) {
+    if (isReadOnly) {
+      throw new UnsupportedOperationException("mbtiles is read only");
+    }
     return metadata.subscribe(m -> {
       final String insert = "INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?);";
       final JSONObject tilejson = m.getTileJson();
@@ -330,8 +1139,7 @@ public class StorageImpl implements Storage, MetadataProvider {
         try {
           if (key.equals("center") || key.equals("bounds")) {
             final String value = tilejson.getJSONArray(key).toString();
-            final Pattern pattern = Pattern.compile("^\\[(.*)\\]$");
-            final Matcher matcher = pattern.matcher(value);
+            final Matcher matcher = JSON_ARRAY.matcher(value);
             if (matcher.matches()) {
               final String toCommit = matcher.group(1);
               Collections.addAll(params, key, toCommit);
@@ -368,81 +1176,124 @@ public class StorageImpl implements Storage, MetadataProvider {
       Collections.addAll(params, "json", vectorLayerJson);
 
       // TODO update when upstream is enhanced
-      dataSource.update(insert)
+      writer.update(insert)
           .parameters(params.toArray())
           .counts()
           .test()
           .awaitDone(5, TimeUnit.SECONDS) // TODO remove hack
           .assertComplete();
+      metadataVersion.incrementAndGet();
+      cachedMetadata.set(null);
     });
   }
 
-  private static ConnectionProvider connectionProvider(String url) {
-    return new ConnectionProvider() {
-
-      @Override
-      public Connection get() {
-        try {
-          return DriverManager.getConnection(url);
-        } catch (SQLException exception) {
-          throw new SQLRuntimeException(exception);
-        }
-      }
-
-      @Override
-      public void close() {
-        //
-      }
-    };
+  private static Observable<StorageResult> readOnlyFailures(Observable<Entry> entries) {
+    return entries.map(entry -> new StorageResult(entry, new IOException("mbtiles is read only")));
   }
 
   private Observable<Entry> get(SelectBuilder builder) {
+    return getFlowable(builder).toObservable();
+  }
+
+  private Flowable<Entry> getFlowable(SelectBuilder builder) {
     if (isError) {
-      return Observable.empty();
+      return Flowable.empty();
     } else {
       return builder.get(new ResultSetMapper<Entry>() {
         @Override
         public Entry apply(@Nonnull ResultSet rs) throws SQLException {
-          byte[] uncompressed;
-          try {
-            final byte[] compressedTileData = rs.getBytes("tile_data");
-            uncompressed = CompressUtil.getUncompressedFromGzip(compressedTileData);
-          } catch (final IOException ex) {
-            throw Exceptions.propagate(ex);
-          }
-          return new Entry(rs.getInt("zoom_level"), rs.getInt("tile_column"),
-              flipY(rs.getInt("tile_row"), rs.getInt("zoom_level")), uncompressed);
+          // uncompressed on first access
+          return new LazyEntry(rs.getInt("zoom_level"), rs.getInt("tile_column"),
+              flipY(rs.getInt("tile_row"), rs.getInt("zoom_level")), rs.getBytes("tile_data"),
+              readCodec);
         }
-      }).toObservable();
+      });
     }
   }
 
   private static int flipY(int row, int zoom) {
-    return (int) (Math.pow(2, zoom) - row - 1);
+    return (1 << zoom) - row - 1;
+  }
+
+  private interface TransactionFunction {
+    int apply(Connection connection) throws SQLException;
   }
 
   private static class MetadataConcern {
 
-    private static synchronized Single<HashMap<String, String>> queryMetadata(Database dataSource) {
-      final URL url = Resources.getResource("metadata_key_value.sql");
-      String query;
-      try {
-        query = Resources.toString(url, Charsets.UTF_8);
-      } catch (final IOException ex) {
-        return Single.error(ex);
+    private static final Pattern INTEGER = Pattern.compile("^-?\\d+$");
+    // see
+    // http://stackoverflow.com/questions/12643009/regular-expression-for-floating-point-numbers
+    private static final Pattern FLOAT = Pattern.compile("[+-]([0-9]*[.])?[0-9]+");
+
+    private static Single<HashMap<String, String>> queryMetadata(Database dataSource) {
+      return dataSource.select(SELECT_METADATA).get(MetadataConcern::readAll).singleOrError();
+    }
+
+    private static HashMap<String, String> readAll(ResultSet rs) throws SQLException {
+      final HashMap<String, String> metadata = new LinkedHashMap<>();
+      // TODO consider QA on why design wasn't rs.next() with cursor starting at -1
+      while (rs.getRow() != 0) {
+        metadata.put(rs.getString("name"), rs.getString("value"));
+        rs.next();
       }
-      return dataSource.select(query).get(new ResultSetMapper<HashMap<String, String>>() {
-        @Override
-        public HashMap<String, String> apply(@Nonnull ResultSet rs) throws SQLException {
-          final HashMap<String, String> metadata = new LinkedHashMap<>();
+      return metadata;
+    }
 
-          while (rs.getRow() != 0) {
-            metadata.put(rs.getString("name"), rs.getString("value"));
-            rs.next();
+    private static Metadata parse(Map<String, String> map) {
+      final Metadata.Builder metadata = new Metadata.Builder();
+      try {
+        // TODO handle any extra metadata! i.e. more key values! Parse as JSON? Force key value?
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+          String key = entry.getKey();
+          if (key.equals("type") || key.equals("version") || CodecConcern.isCodecKey(key)) {
+            // Warning: if the user specified 'type' or 'version' attributes in the TileJson then
+            // those
+            // attributes would be ignored.
+            // The above is the not the issue per se _but_ rather we should consider adding this
+            // elsewhere, e.g. in the json field
+            continue;
+          }
+          final boolean ignore = key.equals("json");
+          if (!ignore) {
+            String value = entry.getValue().trim();
+
+            if (!value.isEmpty() && key.equals("center") || key.equals("bounds")) {
+              value = "[" + value + "]";
+            }
+
+            if (!value.isEmpty() && value.charAt(0) == '[') {
+              metadata.setJson(key, new JSONArray(value));
+            } else if (!value.isEmpty() && value.charAt(0) == '{') {
+              metadata.setJson(key, new JSONObject(value));
+            } else {
+              // see
+              // http://stackoverflow.com/questions/5439529/determine-if-a-string-is-an-integer-in-java
+              final boolean isInteger = INTEGER.matcher(value).matches();
+              final boolean isFloat = !isInteger && FLOAT.matcher(value).matches();
+
+              if (isInteger) {
+                metadata.setJson(key, Long.parseLong(value));
+              } else if (isFloat) {
+                metadata.setJson(key, Double.parseDouble(value));
+              } else {
+                // default to string
+                metadata.setJson(key, value);
+              }
+            }
           }
-          return metadata;
         }
-      }).singleOrError();
+
+        if (map.containsKey("json")) {
+          final JSONObject json = new JSONObject(map.get("json"));
+          if (json.has("vector_layers")) {
+            metadata.setJson("vector_layers", json.getJSONArray("vector_layers"));
+          }
+        }
+      } catch (final JSONException ex) {
+        LOG.error("problem", ex);
+      }
+      return metadata.build();
     }
 
     private static Single<Metadata> generateDefault(Database dataSource) {
@@ -485,7 +1336,7 @@ public class StorageImpl implements Storage, MetadataProvider {
         throws JSONException {
       for (final Map.Entry<String, String> entry : metadata.entrySet()) {
         String key = entry.getKey();
-        if (key.equals("version") || key.equals("json")) {
+        if (key.equals("version") || key.equals("json") || CodecConcern.isCodecKey(key)) {
           continue;
         } else if (key.equals("bounds") || key.equals("center")) {
           tileJson.put(key, new JSONArray("[" + entry.getValue() + "]"));
@@ -496,22 +1347,92 @@ public class StorageImpl implements Storage, MetadataProvider {
     }
   }
 
-  private synchronized Observable<VectorTileConfig> queryConfig() {
-    return queryConfigFlowable().toObservable();
-  }
+  private static class CodecConcern {
 
-  private synchronized Flowable<VectorTileConfig> queryConfigFlowable() {
-    final URL url = Resources.getResource("metadata_raw.sql");
-    String query;
-    try {
-      query = Resources.toString(url, Charsets.UTF_8);
-    } catch (final IOException ex) {
-      return Flowable.error(ex);
+    private static boolean isCodecKey(String key) {
+      return key.equals(TileCodecs.METADATA_COMPRESSION)
+          || key.equals(TileCodecs.METADATA_DICTIONARY);
+    }
+
+    /**
+     * Establish the codec of a tileset without recording anything.
+     *
+     * @param dataSource the tileset
+     * @param requested the codec requested by the user, or null
+     * @return the codec, or null if unrecorded and none was requested
+     */
+    private static TileCodec resolve(Database dataSource, TileCodec requested) {
+      final TileCodec recorded = getRecorded(dataSource);
+      if (recorded == null) {
+        return requested;
+      }
+      final boolean isRequestedCompatible = requested != null
+          && requested.getName().equals(recorded.getName())
+          && Arrays.equals(requested.getDictionary(), recorded.getDictionary());
+      if (requested != null && !isRequestedCompatible) {
+        LOG.warn("ignoring codec '{}' - tileset records '{}'", requested.getName(),
+            recorded.getName());
+      }
+      // a compatible requested codec may differ in compression level
+      return isRequestedCompatible ? requested : recorded;
+    }
+
+    /**
+     * Establish the codec of a tileset, recording the requested codec where none is recorded.
+     *
+     * @param dataSource the tileset
+     * @param requested the codec requested by the user, or null
+     * @return the codec, or null if unrecorded and none was requested
+     */
+    private static TileCodec resolveAndRecord(Database dataSource, TileCodec requested) {
+      if (requested == null || getRecorded(dataSource) != null) {
+        return resolve(dataSource, requested);
+      }
+
+      final boolean isPopulated = dataSource.select("SELECT 1 FROM tiles LIMIT 1")
+          .get(rs -> rs.getInt(1))
+          .count()
+          .blockingGet() > 0;
+      if (isPopulated && !requested.getName().equals(TileCodecs.GZIP)) {
+        throw new IllegalStateException("cannot change the codec of a populated tileset");
+      }
+
+      dataSource.update("INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?);")
+          .parameters(TileCodecs.METADATA_COMPRESSION, requested.getName(),
+              TileCodecs.METADATA_DICTIONARY,
+              BaseEncoding.base64().encode(requested.getDictionary()))
+          .counts()
+          .blockingSubscribe();
+      return requested;
+    }
+
+    private static TileCodec getRecorded(Database dataSource) {
+      final Map<String, String> recorded = new HashMap<>();
+      dataSource.select("SELECT name, value FROM metadata WHERE name IN (?, ?)")
+          .parameters(TileCodecs.METADATA_COMPRESSION, TileCodecs.METADATA_DICTIONARY)
+          .get(rs -> {
+            recorded.put(rs.getString("name"), rs.getString("value"));
+            return rs.getString("name");
+          })
+          .blockingSubscribe();
+
+      final String name = recorded.get(TileCodecs.METADATA_COMPRESSION);
+      if (name == null) {
+        return null;
+      }
+      final String dictionary = recorded.get(TileCodecs.METADATA_DICTIONARY);
+      return TileCodecs.forName(name, dictionary == null ? new byte[0]
+          : BaseEncoding.base64().decode(dictionary));
     }
-    return dataSource.select(query)
-        .get(rs -> new VectorTileConfig(rs.getInt("min_zoom"), rs.getInt("max_zoom"),
-            rs.getInt("max_zoom_minx"), rs.getInt("max_zoom_miny"), rs.getInt("max_zoom_maxx"),
-            rs.getInt("max_zoom_maxy")));
   }
 
+  private Observable<int[]> getZoomRange() {
+    if (isError) {
+      return Observable.empty();
+    }
+    return Observable.defer(() -> {
+      final int[] range = summary.getZoomRange();
+      return range.length == 0 ? Observable.<int[]>empty() : Observable.just(range);
+    });
+  }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import uk.os.vt.Entry;
+import uk.os.vt.common.TileCodec;
+
+/**
+ * Tiles inserted through reused prepared statements, a transaction per batch.
+ *
+ * <p>With the {@link Layout#DEDUPLICATED} layout each tile is identified by the SHA-256 of its
+ * compressed data.  Data is inserted into 'images' only when that identity is new, and 'map'
+ * references it.  Identities committed recently are remembered so repeated tiles, such as sea
+ * or empty tiles, skip the 'images' insert altogether.
+ *
+ * <p>A connection is held for each transaction only, returned once committed, so other writes
+ * share the write connection between the transactions of a long batched write.
+ */
+final class TileBatch implements AutoCloseable {
+
+  interface ConnectionSource {
+    Connection get() throws SQLException;
+  }
+
+  private static final String INSERT_TILE =
+      "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data)"
+          + " VALUES (?, ?, ?, ?);";
+  private static final String INSERT_MAP =
+      "INSERT OR REPLACE INTO map (zoom_level, tile_column, tile_row, tile_id)"
+          + " VALUES (?, ?, ?, ?);";
+  private static final String INSERT_IMAGE =
+      "INSERT OR IGNORE INTO images (tile_data, tile_id) VALUES (?, ?);";
+  private static final String UPDATE_CHECKPOINT =
+      "UPDATE " + Util.IMPORT_CHECKPOINT_TABLE + " SET committed = committed + ?;";
+
+  private static final int KNOWN_IDS = 10000;
+
+  private final ConnectionSource connections;
+  private final TileCodec codec;
+  private final Layout layout;
+  private final int size;
+  private final TileSummary summary;
+  private final TileSummary.Pending pendingKeys;
+  private final boolean isCheckpointed;
+  // held for the transaction in progress only, null between transactions
+  private Connection connection;
+  private PreparedStatement tiles;
+  private PreparedStatement images;
+  private PreparedStatement checkpoint;
+  private final Set<String> pendingIds = new HashSet<>();
+  private final Map<String, Boolean> knownIds = new LinkedHashMap<String, Boolean>(16, 0.75f,
+      true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > KNOWN_IDS;
+    }
+  };
+  private int pending;
+  private long committed;
+
+  /**
+   * @param connections the write connections, one taken for each transaction and closed once
+   *     it is committed, the first taken now
+   * @param codec the codec to compress tiles with
+   * @param layout the layout of the tileset
+   * @param size the number of tiles per transaction
+   * @param summary the summary to widen as tiles are committed
+   * @param isCheckpointed true to count committed tiles in the import checkpoint
+   * @throws SQLException thrown if a connection cannot be taken or the statements prepared
+   */
+  TileBatch(ConnectionSource connections, TileCodec codec, Layout layout, int size,
+      TileSummary summary, boolean isCheckpointed) throws SQLException {
+    this.connections = connections;
+    this.codec = codec;
+    this.layout = layout;
+    this.size = size;
+    this.summary = summary;
+    this.pendingKeys = summary.newPending();
+    this.isCheckpointed = isCheckpointed;
+    begin();
+  }
+
+  private void begin() throws SQLException {
+    final Connection taken = connections.get();
+    try {
+      taken.setAutoCommit(false);
+      if (layout == Layout.DEDUPLICATED) {
+        tiles = taken.prepareStatement(INSERT_MAP);
+        images = taken.prepareStatement(INSERT_IMAGE);
+      } else {
+        tiles = taken.prepareStatement(INSERT_TILE);
+        images = null;
+      }
+      checkpoint = isCheckpointed ? taken.prepareStatement(UPDATE_CHECKPOINT) : null;
+    } catch (final SQLException ex) {
+      closeStatements();
+      taken.close();
+      throw ex;
+    }
+    connection = taken;
+    // other writes between transactions may have pruned images this batch knew about
+    knownIds.clear();
+  }
+
+  /**
+   * Add an entry, committing the batch when full.
+   *
+   * @param entry the entry
+   * @return true if a batch was committed
+   * @throws IOException thrown if the entry cannot be compressed
+   * @throws SQLException thrown on database error
+   */
+  boolean add(Entry entry) throws IOException, SQLException {
+    final byte[] data = codec.encode(entry.getVector());
+    if (connection == null) {
+      begin();
+    }
+    tiles.setInt(1, entry.getZoomLevel());
+    tiles.setInt(2, entry.getColumn());
+    tiles.setInt(3, flipY(entry.getRow(), entry.getZoomLevel()));
+    if (layout == Layout.DEDUPLICATED) {
+      final String id = Hashing.sha256().hashBytes(data).toString();
+      tiles.setString(4, id);
+      if (!knownIds.containsKey(id) && pendingIds.add(id)) {
+        images.setBytes(1, data);
+        images.setString(2, id);
+        images.addBatch();
+      }
+    } else {
+      tiles.setBytes(4, data);
+    }
+    tiles.addBatch();
+    pendingKeys.add(entry.getZoomLevel(), entry.getColumn(), entry.getRow());
+    pending++;
+    return pending == size && commit();
+  }
+
+  /**
+   * Commit pending entries.
+   *
+   * @return true if there was anything to commit
+   * @throws SQLException thrown on database error
+   */
+  boolean commit() throws SQLException {
+    if (pending == 0) {
+      return false;
+    }
+    if (images != null && !pendingIds.isEmpty()) {
+      images.executeBatch();
+    }
+    tiles.executeBatch();
+    if (checkpoint != null) {
+      // in the same transaction, so the count is exactly the tiles committed
+      checkpoint.setLong(1, pending);
+      checkpoint.executeUpdate();
+    }
+    connection.commit();
+    summary.added(pendingKeys);
+    committed += pending;
+    pending = 0;
+    // only committed images may be skipped, a rolled back batch must insert them again
+    for (String id : pendingIds) {
+      knownIds.put(id, Boolean.TRUE);
+    }
+    pendingIds.clear();
+    // return the connection, so other writes may run before the next transaction
+    release();
+    return true;
+  }
+
+  long getCommitted() {
+    return committed;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    release();
+  }
+
+  private void release() throws SQLException {
+    if (connection == null) {
+      return;
+    }
+    try {
+      closeStatements();
+    } finally {
+      // returning the connection to the pool rolls back anything uncommitted
+      final Connection returned = connection;
+      connection = null;
+      returned.close();
+    }
+  }
+
+  private void closeStatements() throws SQLException {
+    try {
+      if (tiles != null) {
+        tiles.close();
+      }
+      if (images != null) {
+        images.close();
+      }
+      if (checkpoint != null) {
+        checkpoint.close();
+      }
+    } finally {
+      tiles = null;
+      images = null;
+      checkpoint = null;
+    }
+  }
+
+  private static int flipY(int row, int zoom) {
+    return (1 << zoom) - row - 1;
+  }
+}
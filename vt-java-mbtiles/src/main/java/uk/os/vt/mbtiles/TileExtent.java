@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+/**
+ * The columns and rows spanned by the tiles of a zoom level, Google tiling scheme.
+ */
+public final class TileExtent {
+
+  // the latitude at which the web mercator projection is square
+  private static final double MAX_LATITUDE = 85.0511287798066;
+
+  private final int zoom;
+  private final int minColumn;
+  private final int maxColumn;
+  private final int minRow;
+  private final int maxRow;
+
+  TileExtent(int zoom, int minColumn, int maxColumn, int minRow, int maxRow) {
+    this.zoom = zoom;
+    this.minColumn = minColumn;
+    this.maxColumn = maxColumn;
+    this.minRow = minRow;
+    this.maxRow = maxRow;
+  }
+
+  public int getZoom() {
+    return zoom;
+  }
+
+  public int getMinColumn() {
+    return minColumn;
+  }
+
+  public int getMaxColumn() {
+    return maxColumn;
+  }
+
+  public int getMinRow() {
+    return minRow;
+  }
+
+  public int getMaxRow() {
+    return maxRow;
+  }
+
+  /**
+   * The tiles of a zoom level intersecting a bounding box.  Tiles merely touching an edge of the
+   * box are excluded, so the bounds of an extent give back the same extent.
+   *
+   * @param zoom the zoom level
+   * @param bounds min longitude, min latitude, max longitude, max latitude
+   * @return the extent
+   */
+  static TileExtent covering(int zoom, double[] bounds) {
+    final double tiles = 1 << zoom;
+    final double minX = (bounds[0] + 180) / 360 * tiles;
+    final double maxX = (bounds[2] + 180) / 360 * tiles;
+    final double minY = latitudeToY(bounds[3], tiles);
+    final double maxY = latitudeToY(bounds[1], tiles);
+    final int minColumn = clamp(Math.floor(minX), tiles);
+    final int minRow = clamp(Math.floor(minY), tiles);
+    return new TileExtent(zoom, minColumn, Math.max(minColumn, clamp(Math.ceil(maxX) - 1, tiles)),
+        minRow, Math.max(minRow, clamp(Math.ceil(maxY) - 1, tiles)));
+  }
+
+  private static double latitudeToY(double lat, double tiles) {
+    final double radians =
+        Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+    return (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2 * tiles;
+  }
+
+  private static int clamp(double tile, double tiles) {
+    return (int) Math.max(0, Math.min(tiles - 1, tile));
+  }
+
+  TileExtent union(TileExtent other) {
+    return new TileExtent(zoom, Math.min(minColumn, other.minColumn),
+        Math.max(maxColumn, other.maxColumn), Math.min(minRow, other.minRow),
+        Math.max(maxRow, other.maxRow));
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    final TileExtent other = (TileExtent) obj;
+    return zoom == other.zoom && minColumn == other.minColumn && maxColumn == other.maxColumn
+        && minRow == other.minRow && maxRow == other.maxRow;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = zoom;
+    result = 31 * result + minColumn;
+    result = 31 * result + maxColumn;
+    result = 31 * result + minRow;
+    result = 31 * result + maxRow;
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "TileExtent{"
+        + "zoom=" + zoom
+        + ", columns=" + minColumn + "-" + maxColumn
+        + ", rows=" + minRow + "-" + maxRow
+        + '}';
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The zoom range and per zoom extent of a tileset, cached in memory.
+ *
+ * <p>Values are loaded on first use, through the zoom_level, tile_column, tile_row index, and
+ * then kept up to date by the writes of this storage.  Reads of cached values take no lock.  A
+ * delete may shrink an extent, so it discards the values it affects for reloading.
+ *
+ * <p>Writes to the file by anything else are not seen.
+ */
+final class TileSummary {
+
+  private static final int MAX_ZOOM_LEVEL = 22;
+  private static final int[] NO_ZOOM_LEVELS = new int[0];
+  private static final TileExtent NO_TILES = new TileExtent(-1, 0, -1, 0, -1);
+
+  private final ConnectionPool readers;
+  private final String selectZoomRange;
+  private final String selectExtent;
+  // unknown values are null
+  private final AtomicReference<int[]> zoomRange = new AtomicReference<>();
+  private final AtomicReferenceArray<TileExtent> extents =
+      new AtomicReferenceArray<>(MAX_ZOOM_LEVEL + 1);
+  // changed by every write, so a load racing a write is not cached
+  private final AtomicLong version = new AtomicLong();
+
+  TileSummary(ConnectionPool readers, Layout layout) {
+    this.readers = readers;
+    this.selectZoomRange = "SELECT MIN(zoom_level), MAX(zoom_level) FROM "
+        + layout.getKeyTable();
+    this.selectExtent = "SELECT MIN(tile_column), MAX(tile_column), MIN(tile_row),"
+        + " MAX(tile_row) FROM " + layout.getKeyTable() + " WHERE zoom_level = ?";
+  }
+
+  /**
+   * The lowest and highest zoom levels holding tiles.
+   *
+   * @return the minimum and maximum zoom levels, or an empty array if there are no tiles
+   * @throws IOException thrown if the range cannot be loaded
+   */
+  int[] getZoomRange() throws IOException {
+    int[] result = zoomRange.get();
+    if (result == null) {
+      final long loadedVersion = version.get();
+      result = load(selectZoomRange, null, rs -> rs.getObject(1) == null ? NO_ZOOM_LEVELS
+          : new int[] {rs.getInt(1), rs.getInt(2)});
+      if (version.get() == loadedVersion) {
+        zoomRange.compareAndSet(null, result);
+      }
+    }
+    return result.clone();
+  }
+
+  /**
+   * The extent of a zoom level.
+   *
+   * @param zoom the zoom level
+   * @return the extent, or null if there are no tiles at the zoom level
+   * @throws IOException thrown if the extent cannot be loaded
+   */
+  TileExtent getExtent(int zoom) throws IOException {
+    if (zoom < 0 || zoom > MAX_ZOOM_LEVEL) {
+      return null;
+    }
+    TileExtent result = extents.get(zoom);
+    if (result == null) {
+      final long loadedVersion = version.get();
+      result = load(selectExtent, zoom, rs -> rs.getObject(1) == null ? NO_TILES
+          : new TileExtent(zoom, rs.getInt(1), rs.getInt(2), flipY(rs.getInt(4), zoom),
+              flipY(rs.getInt(3), zoom)));
+      if (version.get() == loadedVersion) {
+        extents.compareAndSet(zoom, null, result);
+      }
+    }
+    return result == NO_TILES ? null : result;
+  }
+
+  /**
+   * Start collecting the keys of a write.
+   *
+   * @return the collector, to be passed to {@link #added(Pending)} once committed
+   */
+  Pending newPending() {
+    return new Pending();
+  }
+
+  /**
+   * Widen the summary by tiles now committed.
+   *
+   * @param pending the keys committed, cleared on return
+   */
+  void added(Pending pending) {
+    if (pending.minZoom > pending.maxZoom) {
+      return;
+    }
+    version.incrementAndGet();
+    final int minZoom = pending.minZoom;
+    final int maxZoom = pending.maxZoom;
+    zoomRange.getAndUpdate(range -> range == null ? null : range.length == 0
+        ? new int[] {minZoom, maxZoom}
+        : new int[] {Math.min(range[0], minZoom), Math.max(range[1], maxZoom)});
+    for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+      final TileExtent added = pending.getExtent(zoom);
+      if (added != null) {
+        extents.getAndUpdate(zoom, extent -> extent == null ? null
+            : extent == NO_TILES ? added : extent.union(added));
+      }
+    }
+    pending.clear();
+  }
+
+  /**
+   * Discard values that tiles removed from a zoom level may have narrowed.
+   *
+   * @param zoom the zoom level
+   */
+  void removed(int zoom) {
+    version.incrementAndGet();
+    zoomRange.set(null);
+    if (0 <= zoom && zoom <= MAX_ZOOM_LEVEL) {
+      extents.set(zoom, null);
+    }
+  }
+
+  private <T> T load(String sql, Integer zoom, ResultMapper<T> mapper) throws IOException {
+    try {
+      return readers.withStatement(sql, statement -> {
+        if (zoom != null) {
+          statement.setInt(1, zoom);
+        }
+        try (ResultSet rs = statement.executeQuery()) {
+          rs.next();
+          return mapper.apply(rs);
+        }
+      });
+    } catch (final SQLException ex) {
+      throw new IOException("cannot summarise tiles", ex);
+    }
+  }
+
+  private static int flipY(int row, int zoom) {
+    return (1 << zoom) - row - 1;
+  }
+
+  private interface ResultMapper<T> {
+    T apply(ResultSet rs) throws SQLException;
+  }
+
+  /**
+   * The keys of tiles written but not yet committed.  Not thread safe.
+   */
+  static final class Pending {
+
+    private final int[] minColumns = new int[MAX_ZOOM_LEVEL + 1];
+    private final int[] maxColumns = new int[MAX_ZOOM_LEVEL + 1];
+    private final int[] minRows = new int[MAX_ZOOM_LEVEL + 1];
+    private final int[] maxRows = new int[MAX_ZOOM_LEVEL + 1];
+    private final boolean[] isAdded = new boolean[MAX_ZOOM_LEVEL + 1];
+    private int minZoom = Integer.MAX_VALUE;
+    private int maxZoom = Integer.MIN_VALUE;
+
+    private Pending() {}
+
+    void add(int zoom, int col, int row) {
+      if (isAdded[zoom]) {
+        minColumns[zoom] = Math.min(minColumns[zoom], col);
+        maxColumns[zoom] = Math.max(maxColumns[zoom], col);
+        minRows[zoom] = Math.min(minRows[zoom], row);
+        maxRows[zoom] = Math.max(maxRows[zoom], row);
+      } else {
+        isAdded[zoom] = true;
+        minColumns[zoom] = col;
+        maxColumns[zoom] = col;
+        minRows[zoom] = row;
+        maxRows[zoom] = row;
+        minZoom = Math.min(minZoom, zoom);
+        maxZoom = Math.max(maxZoom, zoom);
+      }
+    }
+
+    private TileExtent getExtent(int zoom) {
+      return isAdded[zoom] ? new TileExtent(zoom, minColumns[zoom], maxColumns[zoom],
+          minRows[zoom], maxRows[zoom]) : null;
+    }
+
+    private void clear() {
+      for (int zoom = Math.max(0, minZoom); zoom <= maxZoom; zoom++) {
+        isAdded[zoom] = false;
+      }
+      minZoom = Integer.MAX_VALUE;
+      maxZoom = Integer.MIN_VALUE;
+    }
+  }
+}
@@ -24,8 +24,13 @@ import java.net.URL;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,20 +39,126 @@ final class Util {
   private static final Logger LOG = LoggerFactory.getLogger(Util.class.getSimpleName());
   private static final int STATEMENT_QUERY_TIMEOUT_IN_SECONDS = 30;
 
+  static final String CREATE_TILE_INDEX =
+      "CREATE UNIQUE INDEX tile_index on tiles (zoom_level, tile_column, tile_row)";
+  static final String IMPORT_CHECKPOINT_TABLE = "import_checkpoint";
+
   private Util() {}
 
   /**
    * Provide a freshly initialized mbtiles file.
    *
    * @param file to create and apply mbtiles SQL
+   * @param layout the layout of the new tileset
+   * @param isIncrementalVacuum true to create the tileset with incremental auto vacuum
    * @throws IOException thrown on IO error
    */
-  protected static void initialise(File file) throws IOException {
+  protected static void initialise(File file, Layout layout, boolean isIncrementalVacuum)
+      throws IOException {
     LOG.info("initializing: " + file.getAbsolutePath());
     if (file.exists() && !file.delete()) {
       throw new IOException("initialization failure - cannot delete file " + file);
     }
-    legacyMaker(file);
+    // a stale WAL would be replayed into the new database
+    for (String suffix : new String[] {"-wal", "-shm", "-journal"}) {
+      final File sidecar = new File(file.getPath() + suffix);
+      if (sidecar.exists() && !sidecar.delete()) {
+        throw new IOException("initialization failure - cannot delete file " + sidecar);
+      }
+    }
+    legacyMaker(file, layout.getSchemaResource(), isIncrementalVacuum);
+  }
+
+  /**
+   * Check the file holds the tables, or views, and columns the MBTiles specification requires.
+   *
+   * @param file the MBTiles file
+   * @throws IOException thrown if the file cannot be read or is not MBTiles
+   */
+  protected static void validate(File file) throws IOException {
+    try (Connection connection = getConnection(file)) {
+      requireColumns(connection, "metadata", "name", "value");
+      requireColumns(connection, "tiles", "zoom_level", "tile_column", "tile_row", "tile_data");
+    } catch (final SQLException ex) {
+      throw new IOException("cannot validate " + file, ex);
+    }
+  }
+
+  /**
+   * Get the journal mode of the database.
+   *
+   * @param file the MBTiles file
+   * @return the journal mode in lower case, e.g. "delete" or "wal"
+   * @throws IOException thrown if the file cannot be read
+   */
+  protected static String getJournalMode(File file) throws IOException {
+    try (Connection connection = getConnection(file);
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("PRAGMA journal_mode")) {
+      return rs.next() ? rs.getString(1).toLowerCase(Locale.ROOT) : "";
+    } catch (final SQLException ex) {
+      throw new IOException("cannot read journal mode of " + file, ex);
+    }
+  }
+
+  /**
+   * Prepare a freshly initialized mbtiles file for a bulk import.
+   *
+   * <p>The unique tile index is dropped, to be built once the import is finished, and a
+   * checkpoint table records the number of tiles committed.
+   *
+   * @param file the MBTiles file
+   * @throws IOException thrown if the file cannot be prepared
+   */
+  protected static void beginImport(File file) throws IOException {
+    try (Connection connection = getConnection(file);
+        Statement statement = connection.createStatement()) {
+      statement.execute("DROP INDEX IF EXISTS tile_index");
+      statement.execute("CREATE TABLE " + IMPORT_CHECKPOINT_TABLE
+          + " (committed INTEGER NOT NULL)");
+      statement.execute("INSERT INTO " + IMPORT_CHECKPOINT_TABLE + " (committed) VALUES (0)");
+    } catch (final SQLException ex) {
+      throw new IOException("cannot begin import into " + file, ex);
+    }
+  }
+
+  /**
+   * Whether the file holds an unfinished bulk import.
+   *
+   * @param file the MBTiles file
+   * @return true if a bulk import is unfinished
+   * @throws IOException thrown if the file cannot be read
+   */
+  protected static boolean isImporting(File file) throws IOException {
+    try (Connection connection = getConnection(file);
+        PreparedStatement statement = connection.prepareStatement(
+            "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+      statement.setString(1, IMPORT_CHECKPOINT_TABLE);
+      try (ResultSet rs = statement.executeQuery()) {
+        return rs.next();
+      }
+    } catch (final SQLException ex) {
+      throw new IOException("cannot read " + file, ex);
+    }
+  }
+
+  private static void requireColumns(Connection connection, String table, String... columns)
+      throws SQLException, IOException {
+    final Set<String> actual = new HashSet<>();
+    try (Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+      while (rs.next()) {
+        actual.add(rs.getString("name"));
+      }
+    }
+    if (actual.isEmpty()) {
+      throw new IOException(String.format("not MBTiles - no '%s' table", table));
+    }
+    for (String column : columns) {
+      if (!actual.contains(column)) {
+        throw new IOException(String.format("not MBTiles - no '%s.%s' column", table, column));
+      }
+    }
   }
 
   private static Connection getConnection(File file) throws SQLException {
@@ -66,17 +177,24 @@ final class Util {
    * public static void createDatabase(Connection c) {
    *
    * @param file the file
+   * @param schema the schema resource
+   * @param isIncrementalVacuum true to set incremental auto vacuum
    * @throws IOException thrown on IO error
    */
-  private static void legacyMaker(File file) throws IOException {
+  private static void legacyMaker(File file, String schema, boolean isIncrementalVacuum)
+      throws IOException {
     Connection connection = null;
     try {
       connection = getConnection(file);
-      final URL url = Resources.getResource("mbtiles_schema.sql");
+      final URL url = Resources.getResource(schema);
       final String sql = Resources.toString(url, Charsets.UTF_8);
 
       final Statement statement = connection.createStatement();
       statement.setQueryTimeout(STATEMENT_QUERY_TIMEOUT_IN_SECONDS);
+      if (isIncrementalVacuum) {
+        // only takes effect before the first table is created
+        statement.executeUpdate("PRAGMA auto_vacuum = INCREMENTAL");
+      }
       statement.executeUpdate(sql); // replaced statement.execute(text); because multi statement SQL
       statement.close();
     } catch (IOException | SQLException ex) {
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import io.reactivex.Observable;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.os.vt.Entry;
+import uk.os.vt.StorageResult;
+
+/**
+ * Tiles from many threads written by one thread, grouped into transactions.
+ *
+ * <p>Producers enqueue tiles and carry on, so do not contend for the write connection or the
+ * database lock.  The writer takes whatever has queued, up to the group size, and commits it in
+ * a single transaction, so the busier the queue the larger the transactions.  Each tile still
+ * gets its own {@link StorageResult}: a tile that cannot be compressed or added to the batch
+ * fails alone, whereas a transaction that cannot be committed fails every tile in it.
+ *
+ * <p>The queue is bounded.  Whilst it is full producers wait, up to a timeout, after which the
+ * tile fails.  Results are emitted in order on the producing thread, never the writer thread.
+ */
+final class WriteQueue implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteQueue.class.getSimpleName());
+
+  private static final long OFFER_END_MILLIS = 100;
+
+  interface BatchFactory {
+    TileBatch open() throws SQLException;
+  }
+
+  private final Request end = new Request(null);
+  private final BlockingQueue<Request> queue;
+  private final int groupSize;
+  private final long offerTimeoutMillis;
+  private final BatchFactory batches;
+  private final Thread writer;
+  private volatile boolean isClosed;
+
+  /**
+   * @param capacity the number of tiles queued before producers wait
+   * @param groupSize the maximum number of tiles per transaction
+   * @param offerTimeoutMillis how long producers wait whilst the queue is full
+   * @param batches opens a batch, on the write connection, for each transaction
+   */
+  WriteQueue(int capacity, int groupSize, long offerTimeoutMillis, BatchFactory batches) {
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.groupSize = groupSize;
+    this.offerTimeoutMillis = offerTimeoutMillis;
+    this.batches = batches;
+    this.writer = new Thread(this::run, "mbtiles-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queue tiles to be written.
+   *
+   * <p>Tiles are queued as emitted, on the emitting thread, which also emits the results as they
+   * arrive.  Once the source completes the remaining results are awaited.
+   *
+   * @param entries the tiles
+   * @return the result of each tile, in order
+   */
+  Observable<StorageResult> put(Observable<Entry> entries) {
+    return Observable.create(emitter -> {
+      final Deque<Request> pending = new ArrayDeque<>();
+      final CountDownLatch isTerminated = new CountDownLatch(1);
+      final AtomicReference<Throwable> error = new AtomicReference<>();
+      entries.subscribe(new Observer<Entry>() {
+        @Override
+        public void onSubscribe(Disposable disposable) {
+          emitter.setCancellable(() -> {
+            disposable.dispose();
+            isTerminated.countDown();
+          });
+        }
+
+        @Override
+        public void onNext(Entry entry) {
+          pending.add(submit(entry));
+          while (!pending.isEmpty() && pending.peek().isDone()) {
+            emitter.onNext(pending.poll().result);
+          }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+          error.compareAndSet(null, throwable);
+          isTerminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+          isTerminated.countDown();
+        }
+      });
+      isTerminated.await();
+
+      // tiles already queued are written regardless
+      for (Request request : pending) {
+        request.done.await();
+        if (error.get() == null) {
+          emitter.onNext(request.result);
+        }
+      }
+      if (error.get() != null) {
+        emitter.onError(error.get());
+      } else {
+        emitter.onComplete();
+      }
+    });
+  }
+
+  private Request submit(Entry entry) {
+    final Request request = new Request(entry);
+    if (isClosed) {
+      request.fail(new IOException("mbtiles is closed"));
+      return request;
+    }
+    try {
+      if (!queue.offer(request, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        request.fail(new IOException(String.format(
+            "write queue still full after %dms", offerTimeoutMillis)));
+        return request;
+      }
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      request.fail(new IOException("interrupted queuing tile", ex));
+      return request;
+    }
+    // closed whilst queuing - if still queued it is ours to fail, else it was taken
+    if (isClosed && queue.remove(request)) {
+      request.fail(new IOException("mbtiles is closed"));
+    }
+    return request;
+  }
+
+  /**
+   * Write every tile already queued, then stop.
+   *
+   * @throws InterruptedException thrown if interrupted waiting for the writer
+   */
+  @Override
+  public void close() throws InterruptedException {
+    isClosed = true;
+    // a writer that has already stopped would never take the end, so never wait on a full queue
+    while (writer.isAlive() && !queue.offer(end, OFFER_END_MILLIS, TimeUnit.MILLISECONDS)) {
+      LOG.debug("waiting for the writer to take the end of the queue");
+    }
+    writer.join();
+    final List<Request> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    for (Request request : remaining) {
+      if (request != end) {
+        request.fail(new IOException("mbtiles is closed"));
+      }
+    }
+  }
+
+  private void run() {
+    final List<Request> group = new ArrayList<>(groupSize);
+    boolean isEnd = false;
+    try {
+      while (!isEnd) {
+        try {
+          group.add(queue.take());
+        } catch (final InterruptedException ex) {
+          LOG.warn("writer interrupted");
+          break;
+        }
+        queue.drainTo(group, groupSize - 1);
+        isEnd = group.remove(end);
+        write(group);
+        group.clear();
+      }
+    } finally {
+      // nothing queued from now on would be written
+      isClosed = true;
+      queue.drainTo(group);
+      for (Request request : group) {
+        if (request != end && !request.isDone()) {
+          request.fail(new IOException("mbtiles writer stopped"));
+        }
+      }
+    }
+  }
+
+  private void write(List<Request> group) {
+    if (group.isEmpty()) {
+      return;
+    }
+    final TileBatch batch;
+    try {
+      batch = batches.open();
+    } catch (final SQLException | RuntimeException ex) {
+      LOG.error("cannot open a batch for {} tiles", group.size(), ex);
+      for (Request request : group) {
+        request.fail(ex);
+      }
+      return;
+    }
+    final List<Request> added = new ArrayList<>(group.size());
+    Exception problem = null;
+    boolean isCommitted = false;
+    try {
+      for (Request request : group) {
+        try {
+          batch.add(request.entry);
+          added.add(request);
+        } catch (final IOException | SQLException | RuntimeException ex) {
+          request.fail(ex);
+        }
+      }
+      batch.commit();
+      isCommitted = true;
+    } catch (final SQLException | RuntimeException ex) {
+      LOG.error("cannot commit {} tiles", added.size(), ex);
+      problem = ex;
+    } finally {
+      try {
+        batch.close();
+      } catch (final SQLException ex) {
+        LOG.warn("problem closing batch", ex);
+      }
+      // every request is completed, whatever escaped, else its producer waits forever
+      if (problem == null && !isCommitted) {
+        problem = new IOException("tiles not committed");
+      }
+      for (Request request : group) {
+        if (request.isDone()) {
+          continue;
+        }
+        // once committed, the requests not yet done are exactly those added
+        if (isCommitted) {
+          request.complete(new StorageResult(request.entry));
+        } else {
+          request.fail(problem);
+        }
+      }
+    }
+  }
+
+  private static final class Request {
+
+    private final Entry entry;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile StorageResult result;
+
+    Request(Entry entry) {
+      this.entry = entry;
+    }
+
+    boolean isDone() {
+      return result != null;
+    }
+
+    void complete(StorageResult result) {
+      this.result = result;
+      done.countDown();
+    }
+
+    void fail(Exception ex) {
+      complete(new StorageResult(entry, ex));
+    }
+  }
+}
@@ -0,0 +1,19 @@
+-- MBTiles schema
+-- Source: https://github.com/mapbox/mbtiles-spec/blob/master/1.2/spec.md
+-- See also: https://github.com/mapbox/node-mbtiles/blob/master/lib/schema.sql
+
+BEGIN;
+
+CREATE TABLE metadata (name text, value text);
+CREATE UNIQUE INDEX name on metadata (name);
+
+-- clustered on the tile key, rows descending so scans run in the Google tiling scheme order
+CREATE TABLE tiles (
+    zoom_level integer NOT NULL,
+    tile_column integer NOT NULL,
+    tile_row integer NOT NULL,
+    tile_data blob,
+    PRIMARY KEY (zoom_level, tile_column, tile_row DESC)
+) WITHOUT ROWID;
+
+COMMIT;
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ShardPartitionersTest {
+
+  @Test
+  public void testByZoom() {
+    final ShardPartitioner partitioner = ShardPartitioners.byZoom(0, 10, 14);
+    assertEquals(3, partitioner.getShardCount());
+    assertEquals(0, partitioner.getShard(0, 0, 0));
+    assertEquals(0, partitioner.getShard(9, 3, 3));
+    assertEquals(1, partitioner.getShard(10, 3, 3));
+    assertEquals(1, partitioner.getShard(13, 3, 3));
+    assertEquals(2, partitioner.getShard(14, 3, 3));
+    assertEquals(2, partitioner.getShard(22, 3, 3));
+    assertTrue(partitioner.mayHold(1, 12));
+    assertFalse(partitioner.mayHold(0, 12));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testByZoomMustStartAtZero() {
+    ShardPartitioners.byZoom(5, 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testByZoomMustAscend() {
+    ShardPartitioners.byZoom(0, 10, 10);
+  }
+
+  @Test
+  public void testByHashUsesEveryShard() {
+    final ShardPartitioner partitioner = ShardPartitioners.byHash(8);
+    final int[] counts = new int[8];
+    for (int col = 0; col < 64; col++) {
+      for (int row = 0; row < 64; row++) {
+        counts[partitioner.getShard(14, col, row)]++;
+      }
+    }
+    for (int count : counts) {
+      // 512 expected of each
+      assertTrue("uneven shards " + count, 384 < count && count < 640);
+    }
+  }
+
+  @Test
+  public void testByCurveKeepsDescendantsTogether() {
+    final ShardPartitioner partitioner = ShardPartitioners.byCurve(4);
+    for (int col = 0; col < 4; col++) {
+      for (int row = 0; row < 4; row++) {
+        final int shard = partitioner.getShard(2, col, row);
+        assertEquals(shard, partitioner.getShard(3, col * 2 + 1, row * 2));
+        assertEquals(shard, partitioner.getShard(22, col << 20, (row << 20) + 12345));
+      }
+    }
+    // each quadrant of the world is a shard
+    assertEquals(0, partitioner.getShard(1, 0, 0));
+    assertEquals(1, partitioner.getShard(1, 0, 1));
+    assertEquals(2, partitioner.getShard(1, 1, 0));
+    assertEquals(3, partitioner.getShard(1, 1, 1));
+    assertEquals(0, partitioner.getShard(0, 0, 0));
+  }
+}
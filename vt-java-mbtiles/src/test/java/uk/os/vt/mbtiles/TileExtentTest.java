@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TileExtentTest {
+
+  @Test
+  public void testCoveringTheWorld() {
+    final double[] world = {-180, -85.05112877980659, 180, 85.05112877980659};
+    assertEquals(new TileExtent(0, 0, 0, 0, 0), TileExtent.covering(0, world));
+    assertEquals(new TileExtent(5, 0, 31, 0, 31), TileExtent.covering(5, world));
+    // beyond the projection is clamped
+    assertEquals(new TileExtent(5, 0, 31, 0, 31),
+        TileExtent.covering(5, new double[] {-200, -90, 200, 90}));
+  }
+
+  @Test
+  public void testCoveringExcludesTilesTouchingEdges() {
+    final double[] bounds =
+        new VectorTileConfig(10, 10, 500, 300, 520, 340).getExtentAsLatLon();
+    assertEquals(new TileExtent(10, 500, 520, 300, 340), TileExtent.covering(10, bounds));
+    assertEquals(new TileExtent(9, 250, 260, 150, 170), TileExtent.covering(9, bounds));
+  }
+
+  @Test
+  public void testCoveringAPoint() {
+    final double[] london = {-0.1276, 51.5072, -0.1276, 51.5072};
+    assertEquals(new TileExtent(10, 511, 511, 340, 340), TileExtent.covering(10, london));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.mbtiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.reactivex.Observable;
+import io.reactivex.observers.TestObserver;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.AfterClass;
+import org.junit.Test;
+import uk.os.vt.Entry;
+import uk.os.vt.Key;
+
+public class ShardedMbtilesStorageTest {
+
+  private static final AtomicInteger TEST_DIRECTORIES = new AtomicInteger();
+
+  @Test
+  public void testWritesAreSpreadOverShards() throws Exception {
+    final File directory = provideNonExistentTestDirectoryOrBlow();
+    final ShardedMbtilesStorage storage = new ShardedMbtilesStorage.Builder(directory)
+        .setPartitioner(ShardPartitioners.byHash(4)).createIfNotExist().setBatchSize(50)
+        .setQueueSize(10).build();
+
+    final List<Long> progress = storage.putEntriesInBatches(createEntries(8, 16)).toList()
+        .blockingGet();
+    assertEquals(256L, (long) progress.get(progress.size() - 1));
+    storage.close();
+
+    for (int i = 0; i < 4; i++) {
+      final StorageImpl shard =
+          new StorageImpl.Builder(ShardedMbtilesStorage.getShardFile(directory, i)).build();
+      final long count = shard.getEntries().count().blockingGet();
+      assertTrue("shard " + i + " holds " + count, 32 < count && count < 96);
+      shard.close();
+    }
+  }
+
+  @Test
+  public void testReadsAreRoutedAndMergedInKeyOrder() throws Exception {
+    final File directory = provideNonExistentTestDirectoryOrBlow();
+    final ShardedMbtilesStorage storage = new ShardedMbtilesStorage.Builder(directory)
+        .setPartitioner(ShardPartitioners.byCurve(3)).createIfNotExist().build();
+    storage.putEntries(createEntries(6, 8).concatWith(createEntries(7, 8)));
+
+    final List<Entry> all = storage.getEntries().toList().blockingGet();
+    assertEquals(128, all.size());
+    for (int i = 1; i < all.size(); i++) {
+      assertTrue(compare(all.get(i - 1), all.get(i)) < 0);
+    }
+    assertEquals(64L, (long) storage.getEntries(7).count().blockingGet());
+    assertEquals(all.subList(101, 128),
+        storage.scanEntries(new Key(7, 4, 4)).toList().blockingGet());
+
+    assertEquals(new Entry(7, 3, 5, getBytes(7, 3, 5)), storage.getEntry(7, 3, 5).blockingFirst());
+    assertEquals(new Entry(6, 5, 3, getBytes(6, 5, 3)), storage.findEntry(6, 5, 3));
+    assertNull(storage.findEntry(8, 0, 0));
+    assertTrue(storage.getEntry(30, 0, 0).isEmpty().blockingGet());
+    assertEquals(6, (int) storage.getMinZoomLevel().blockingFirst());
+    assertEquals(7, (int) storage.getMaxZoomLevel().blockingFirst());
+
+    assertTrue(storage.delete(Observable.just(all.get(0))).blockingFirst().isCompleted());
+    assertEquals(127L, (long) storage.getEntries().count().blockingGet());
+    storage.close();
+  }
+
+  @Test
+  public void testZoomBands() throws Exception {
+    final File directory = provideNonExistentTestDirectoryOrBlow();
+    final ShardedMbtilesStorage storage = new ShardedMbtilesStorage.Builder(directory)
+        .setPartitioner(ShardPartitioners.byZoom(0, 5)).createIfNotExist().build();
+    storage.putEntries(createEntries(5, 4).concatWith(createEntries(6, 4)));
+    storage.close();
+
+    // the first shard is empty, so has no say in the zoom range
+    final ShardedMbtilesStorage reopened = new ShardedMbtilesStorage.Builder(directory)
+        .setPartitioner(ShardPartitioners.byZoom(0, 5)).readOnly().build();
+    assertEquals(16L, (long) reopened.getEntries(5).count().blockingGet());
+    assertEquals(0L, (long) reopened.getEntries(4).count().blockingGet());
+    assertEquals(5, (int) reopened.getMinZoomLevel().blockingFirst());
+    assertEquals(6, (int) reopened.getMaxZoomLevel().blockingFirst());
+    reopened.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testReopenWithDifferentShardCountFails() throws Exception {
+    final File directory = provideNonExistentTestDirectoryOrBlow();
+    new ShardedMbtilesStorage.Builder(directory).setPartitioner(ShardPartitioners.byHash(2))
+        .createIfNotExist().build().close();
+    new ShardedMbtilesStorage.Builder(directory).setPartitioner(ShardPartitioners.byHash(3))
+        .build();
+  }
+
+  @Test
+  public void testSourceErrorStopsEveryShard() throws Exception {
+    final File directory = provideNonExistentTestDirectoryOrBlow();
+    final ShardedMbtilesStorage storage = new ShardedMbtilesStorage.Builder(directory)
+        .setPartitioner(ShardPartitioners.byHash(2)).createIfNotExist().build();
+
+    final Observable<Entry> failing = createEntries(8, 8)
+        .concatWith(Observable.error(new IOException("source failed")));
+    final TestObserver<Long> observer = storage.putEntriesInBatches(failing).test();
+    observer.assertError(IOException.class);
+
+    // the batches were incomplete so nothing was committed
+    assertEquals(0L, (long) storage.getEntries().count().blockingGet());
+    storage.close();
+  }
+
+  private static int compare(Entry first, Entry second) {
+    if (first.getZoomLevel() != second.getZoomLevel()) {
+      return Integer.compare(first.getZoomLevel(), second.getZoomLevel());
+    }
+    if (first.getColumn() != second.getColumn()) {
+      return Integer.compare(first.getColumn(), second.getColumn());
+    }
+    return Integer.compare(first.getRow(), second.getRow());
+  }
+
+  private static Observable<Entry> createEntries(int zoom, int width) {
+    final List<Entry> entries = new ArrayList<>();
+    for (int col = 0; col < width; col++) {
+      for (int row = 0; row < width; row++) {
+        entries.add(new Entry(zoom, col, row, getBytes(zoom, col, row)));
+      }
+    }
+    return Observable.fromIterable(entries);
+  }
+
+  private static byte[] getBytes(int zoom, int col, int row) {
+    return String.format("%d/%d/%d", zoom, col, row).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    for (int i = 1; i <= TEST_DIRECTORIES.get(); i++) {
+      provideNonExistentTestDirectoryOrBlow(getTestDirectoryName(i));
+    }
+  }
+
+  private static File provideNonExistentTestDirectoryOrBlow() {
+    return provideNonExistentTestDirectoryOrBlow(
+        getTestDirectoryName(TEST_DIRECTORIES.incrementAndGet()));
+  }
+
+  private static String getTestDirectoryName(int index) {
+    return "testing-sharded-" + index;
+  }
+
+  private static File provideNonExistentTestDirectoryOrBlow(String name) {
+    final File directory = new File(name);
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          throw new IllegalStateException(
+              "problem with integration test environment - dirty filesystem");
+        }
+      }
+    }
+    if (directory.exists() && !directory.delete()) {
+      throw new IllegalStateException(
+          "problem with integration test environment - dirty filesystem");
+    }
+    return directory;
+  }
+}
@@ -17,14 +17,21 @@
 package uk.os.vt.mbtiles;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 
+import io.reactivex.Observable;
 import io.reactivex.observers.TestObserver;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
@@ -166,6 +173,51 @@ public class StorageImplCannedDataTest {
     verifyMinZoomLevel(0, storage);
   }
 
+  @Test
+  public void testReadOnly() throws Exception {
+    try (StorageImpl storage = new StorageImpl.Builder(getFile(MULTIPLE_ZOOM_LEVEL_MBTILE))
+        .readOnly().setReaderPoolSize(4).build()) {
+      verifyTotalEntries(10, storage);
+      verifyMaxZoomLevel(4, storage);
+
+      final Entry entry = storage.getEntries(4).blockingFirst();
+      final ExecutorService executor = Executors.newFixedThreadPool(8);
+      final List<Future<Entry>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        results.add(executor.submit(() -> storage.findEntry(entry.getZoomLevel(),
+            entry.getColumn(), entry.getRow())));
+      }
+      for (Future<Entry> result : results) {
+        assertEquals(entry, result.get(GENEROUS_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+      }
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testReadOnlyRejectsWrites() throws Exception {
+    try (StorageImpl storage = new StorageImpl.Builder(getFile(SINGLE_ZOOM_LEVEL_MBTILE))
+        .readOnly().build()) {
+      final Entry entry = storage.getEntries().blockingFirst();
+      assertFalse(storage.put(Observable.just(entry)).blockingFirst().isCompleted());
+      assertFalse(storage.delete(Observable.just(entry)).blockingFirst().isCompleted());
+      try {
+        storage.putEntries(Observable.just(entry));
+        fail("expected read only failure");
+      } catch (final UnsupportedOperationException expected) {
+        // expected
+      }
+      verifyTotalEntries(3, storage);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadOnlyValidatesSchema() throws IOException {
+    final File file = File.createTempFile("not-mbtiles", ".mbtiles");
+    file.deleteOnExit();
+    new StorageImpl.Builder(file).readOnly().build();
+  }
+
   private static File getFile(String file) {
     final URL result = StorageImplCannedDataTest.class.getClassLoader().getResource(file);
 
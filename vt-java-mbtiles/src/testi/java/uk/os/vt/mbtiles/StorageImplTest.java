@@ -16,9 +16,13 @@
 
 package uk.os.vt.mbtiles;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import io.reactivex.Observable;
 import io.reactivex.Single;
@@ -27,9 +31,22 @@ import io.reactivex.observers.TestObserver;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.AfterClass;
@@ -37,11 +54,17 @@ import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 
 import uk.os.vt.Entry;
+import uk.os.vt.Key;
+import uk.os.vt.LazyEntry;
 import uk.os.vt.Metadata;
 import uk.os.vt.StorageResult;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
 
 public class StorageImplTest {
 
+  private static final AtomicInteger TEST_FILES = new AtomicInteger();
+
   @Test
   public void setAndGetMetadata() throws IOException, InterruptedException, JSONException {
 
@@ -223,6 +246,491 @@ public class StorageImplTest {
     assertEquals(expectedRemaining, actualRemaining);
   }
 
+  @Test
+  public void testCodecIsRecordedAndUsedOnReopen() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final TileCodec codec = TileCodecs.deflate(9, getGarbageBytes("dictionary test"));
+    final Entry in = new Entry(3, 4, 5, getGarbageBytes());
+
+    final StorageImpl writer = new StorageImpl.Builder(file).createIfNotExist().setCodec(codec)
+        .build();
+    writer.putEntries(Observable.just(in));
+    writer.close();
+
+    // no codec requested - the recorded codec must be used
+    final StorageImpl reader = new StorageImpl.Builder(file).build();
+    assertEquals(in, reader.getEntry(3, 4, 5).blockingFirst());
+    reader.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCodecOfPopulatedTilesetCannotChange() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl writer = new StorageImpl.Builder(file).createIfNotExist().build();
+    writer.putEntries(createEntries(1));
+    writer.close();
+
+    new StorageImpl.Builder(file).setCodec(TileCodecs.deflate(9)).build();
+  }
+
+  @Test
+  public void testPutEntriesInBatchesReportsProgress() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().setBatchSize(400)
+        .build();
+
+    final List<Long> progress = storage.putEntriesInBatches(createEntries(1000)).toList()
+        .blockingGet();
+
+    assertEquals(Arrays.asList(400L, 800L, 1000L), progress);
+    assertEquals(1000L, (long) storage.getEntries().count().blockingGet());
+    storage.close();
+  }
+
+  @Test
+  public void testPutEntriesInBatchesKeepsCommittedBatchesOnError() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().setBatchSize(100)
+        .build();
+
+    final Observable<Entry> failing = createEntries(250)
+        .concatWith(Observable.error(new IOException("source failed")));
+    final TestObserver<Long> observer = storage.putEntriesInBatches(failing).test();
+
+    observer.assertValues(100L, 200L);
+    observer.assertError(IOException.class);
+    assertEquals(200L, (long) storage.getEntries().count().blockingGet());
+    storage.close();
+  }
+
+  @Test
+  public void testPutRunsBetweenBatches() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().setBatchSize(100)
+        .setBusyTimeout(1, TimeUnit.SECONDS).build();
+    final Entry single = new Entry(21, 1, 1, getGarbageBytes());
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // once the first batch commits, a put from another thread must not wait for the stream to end
+    final Observable<Entry> entries = createEntries(100)
+        .concatWith(Observable.<Entry>defer(() -> {
+          final StorageResult result = executor.submit(
+              () -> storage.put(Observable.just(single)).blockingLast()).get(30, TimeUnit.SECONDS);
+          return result.isCompleted() ? Observable.empty()
+              : Observable.error(result.getException());
+        }))
+        .concatWith(createEntries(200).skip(100));
+    final List<Long> progress = storage.putEntriesInBatches(entries).toList().blockingGet();
+
+    executor.shutdown();
+    assertEquals(Arrays.asList(100L, 200L), progress);
+    assertEquals(single, storage.findEntry(21, 1, 1));
+    assertEquals(200L, (long) storage.getEntries(22).count().blockingGet());
+    storage.close();
+  }
+
+  @Test
+  public void testFindEntry() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build();
+    final Entry in = new Entry(3, 4, 5, getGarbageBytes());
+    storage.putEntries(Observable.just(in));
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(in, storage.findEntry(3, 4, 5));
+      assertNull(storage.findEntry(3, 5, 4));
+    }
+    assertArrayEquals(TileCodecs.gzip().encode(getGarbageBytes()), storage.getTileData(3, 4, 5));
+    assertNull(storage.getTileData(4, 4, 5));
+    storage.close();
+  }
+
+  @Test
+  public void testPooledConnectionsAreReturned() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setReaderPoolSize(1).setBusyTimeout(1, TimeUnit.SECONDS).build();
+    storage.putEntries(createEntries(10));
+
+    // partially consumed and cancelled queries must give their connection back
+    for (int i = 0; i < 50; i++) {
+      assertNotNull(storage.getEntries().blockingFirst());
+      assertEquals(10L, (long) storage.getEntries(22).count().blockingGet());
+    }
+    storage.close();
+  }
+
+  @Test
+  public void testConcurrentReadsAndWrites() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setReaderPoolSize(4).setCacheSize(4096).build();
+    storage.putEntries(createEntries(100));
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    final List<Future<Long>> results = new ArrayList<>();
+    for (int i = 0; i < 32; i++) {
+      final int column = i;
+      results.add(executor.submit(() -> {
+        final Entry entry = new Entry(21, column, column, getGarbageBytes());
+        storage.put(Observable.just(entry)).blockingLast();
+        return storage.getEntries(22).count().blockingGet();
+      }));
+    }
+    for (Future<Long> result : results) {
+      assertEquals(100L, (long) result.get(30, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+    assertEquals(32L, (long) storage.getEntries(21).count().blockingGet());
+    storage.close();
+  }
+
+  @Test
+  public void testDeduplicationStoresIdenticalTilesOnce() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setDeduplication(true).setBatchSize(100).build();
+    storage.putEntries(createEntries(1000));
+    final Entry distinct = new Entry(3, 4, 5, getGarbageBytes());
+    assertTrue(storage.put(Observable.just(distinct)).blockingFirst().isCompleted());
+
+    assertEquals(1001L, (long) storage.getEntries().count().blockingGet());
+    assertEquals(distinct, storage.findEntry(3, 4, 5));
+    assertEquals(new Entry(22, 7, 7, getGarbageBytes("")),
+        storage.getEntry(22, 7, 7).blockingFirst());
+    assertEquals(2L, countImages(file));
+
+    // data shared with remaining tiles is kept until no tile references it
+    storage.delete(Observable.just(distinct)).blockingLast();
+    storage.delete(createEntries(999)).blockingLast();
+    assertEquals(1, storage.pruneTileData());
+    assertEquals(1L, countImages(file));
+    assertEquals(1L, (long) storage.getEntries().count().blockingGet());
+    storage.close();
+
+    // the layout is detected on reopen
+    final StorageImpl reopened = new StorageImpl.Builder(file).build();
+    reopened.putEntries(Observable.just(distinct));
+    assertEquals(distinct, reopened.findEntry(3, 4, 5));
+    assertEquals(2L, countImages(file));
+    reopened.close();
+  }
+
+  @Test
+  public void testZoomRangeAndExtentFollowWrites() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build();
+    assertTrue(storage.getMaxZoomLevel().isEmpty().blockingGet());
+    assertNull(storage.getExtent(5));
+    assertNull(storage.getBounds());
+
+    storage.putEntries(Observable.just(new Entry(5, 3, 4, getGarbageBytes()),
+        new Entry(5, 10, 20, getGarbageBytes())));
+    assertEquals(5, (int) storage.getMinZoomLevel().blockingFirst());
+    assertEquals(5, (int) storage.getMaxZoomLevel().blockingFirst());
+    assertEquals(new TileExtent(5, 3, 10, 4, 20), storage.getExtent(5));
+
+    storage.put(Observable.just(new Entry(2, 1, 1, getGarbageBytes()))).blockingLast();
+    storage.put(Observable.just(new Entry(5, 1, 30, getGarbageBytes()))).blockingLast();
+    assertEquals(2, (int) storage.getMinZoomLevel().blockingFirst());
+    assertEquals(new TileExtent(5, 1, 10, 4, 30), storage.getExtent(5));
+
+    // a delete can narrow the extent
+    storage.delete(Observable.just(new Entry(5, 1, 30, getGarbageBytes()),
+        new Entry(2, 1, 1, getGarbageBytes()))).blockingLast();
+    assertEquals(5, (int) storage.getMinZoomLevel().blockingFirst());
+    assertEquals(new TileExtent(5, 3, 10, 4, 20), storage.getExtent(5));
+
+    // rows are in the Google tiling scheme, with row 0 to the north
+    final double[] bounds = storage.getBounds();
+    assertTrue(bounds[0] < bounds[2] && bounds[1] < bounds[3]);
+    assertEquals(-180 + 360.0 * 3 / 32, bounds[0], 1e-9);
+    assertTrue(bounds[1] < 0 && bounds[3] > 0);
+    storage.close();
+
+    // the same summary is loaded on reopen
+    final StorageImpl reopened = new StorageImpl.Builder(file).readOnly().build();
+    assertEquals(new TileExtent(5, 3, 10, 4, 20), reopened.getExtent(5));
+    assertEquals(5, (int) reopened.getMaxZoomLevel().blockingFirst());
+    reopened.close();
+  }
+
+  @Test
+  public void testBulkImportResumesAndBuildsIndexOnFinish() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().bulkImport()
+        .setBatchSize(100).build();
+    assertFalse(hasTileIndex(file));
+
+    final Observable<Entry> failing = createEntries(250)
+        .concatWith(Observable.error(new IOException("source failed")));
+    storage.importEntries(failing).test().assertError(IOException.class);
+    assertEquals(200L, storage.getImportCheckpoint());
+    storage.close();
+
+    try {
+      new StorageImpl.Builder(file).build();
+      fail("an unfinished import must not be opened for normal writes");
+    } catch (final IllegalStateException expected) {
+      // expected
+    }
+
+    final StorageImpl resumed = new StorageImpl.Builder(file).bulkImport().setBatchSize(100)
+        .build();
+    assertEquals(Arrays.asList(300L, 400L, 500L),
+        resumed.importEntries(createEntries(500)).toList().blockingGet());
+    // a tile imported twice, the last is kept
+    resumed.putEntries(Observable.just(new Entry(22, 7, 7, getGarbageBytes("replaced"))));
+    // only the import itself counts towards where it resumes
+    assertEquals(500L, resumed.getImportCheckpoint());
+    resumed.finishImport();
+    assertTrue(hasTileIndex(file));
+
+    assertEquals(500L, (long) resumed.getEntries().count().blockingGet());
+    assertEquals(new Entry(22, 7, 7, getGarbageBytes("replaced")), resumed.findEntry(22, 7, 7));
+    resumed.close();
+
+    final StorageImpl reopened = new StorageImpl.Builder(file).build();
+    assertEquals(500L, (long) reopened.getEntries().count().blockingGet());
+    reopened.close();
+  }
+
+  @Test
+  public void testScanInKeyOrderAndResume() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().setFetchSize(5)
+        .build();
+    final List<Entry> expected = new ArrayList<>();
+    for (int zoom = 3; zoom <= 4; zoom++) {
+      for (int col = 0; col < 4; col++) {
+        for (int row = 0; row < 4; row++) {
+          expected.add(new Entry(zoom, col, row, getGarbageBytes(zoom + "/" + col + "/" + row)));
+        }
+      }
+    }
+    final List<Entry> shuffled = new ArrayList<>(expected);
+    Collections.shuffle(shuffled, new Random(7));
+    storage.putEntries(Observable.fromIterable(shuffled));
+
+    assertEquals(expected, storage.scanEntries(null).toList().blockingGet());
+
+    // a scan stopped part way resumes after the last key read
+    final List<Entry> first = storage.scanEntries(null).take(21).toList().blockingGet();
+    final Entry last = first.get(first.size() - 1);
+    final List<Entry> rest = storage.scanEntries(
+        new Key(last.getZoomLevel(), last.getColumn(), last.getRow())).toList().blockingGet();
+    final List<Entry> resumed = new ArrayList<>(first);
+    resumed.addAll(rest);
+    assertEquals(expected, resumed);
+
+    assertEquals(expected.subList(16, 32), storage.scanEntries(4, new Key(3, 3, 3)).toList()
+        .blockingGet());
+    assertEquals(expected.subList(22, 32), storage.scanEntries(4, new Key(4, 1, 1)).toList()
+        .blockingGet());
+    assertTrue(storage.scanEntries(3, new Key(4, 0, 0)).toList().blockingGet().isEmpty());
+    storage.close();
+  }
+
+  @Test
+  public void testDeleteByRangeAndKeys() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build();
+    final List<Entry> entries = new ArrayList<>();
+    for (int zoom = 2; zoom <= 4; zoom++) {
+      for (int col = 0; col < 1 << zoom; col++) {
+        for (int row = 0; row < 1 << zoom; row++) {
+          entries.add(new Entry(zoom, col, row, getGarbageBytes(zoom + "/" + col + "/" + row)));
+        }
+      }
+    }
+    storage.putEntries(Observable.fromIterable(entries));
+    assertEquals(new TileExtent(3, 0, 7, 0, 7), storage.getExtent(3));
+
+    // the north west quarter of the world, tiles touching its edges are kept
+    final double[] northWest = {-180, 0, 0, 85.0511};
+    assertEquals(4 + 16, storage.deleteRange(2, 3, northWest));
+    assertNull(storage.findEntry(3, 3, 3));
+    assertNotNull(storage.findEntry(3, 4, 3));
+    assertNotNull(storage.findEntry(3, 3, 4));
+    assertNotNull(storage.findEntry(4, 0, 0));
+    assertEquals(new TileExtent(2, 0, 3, 0, 3), storage.getExtent(2));
+
+    assertEquals(2, storage.delete(Arrays.asList(new Key(2, 3, 3), new Key(4, 15, 15),
+        new Key(3, 0, 0))));
+    assertNull(storage.findEntry(4, 15, 15));
+    assertEquals(new TileExtent(4, 0, 15, 0, 15), storage.getExtent(4));
+    assertEquals(256 - 1, storage.getEntries(4).count().blockingGet().intValue());
+
+    assertEquals(256 - 1, storage.deleteRange(4, 30, null));
+    assertEquals(3, (int) storage.getMaxZoomLevel().blockingFirst());
+    assertEquals(16 + 64 - 20 - 1, (long) storage.getEntries().count().blockingGet());
+    storage.close();
+  }
+
+  @Test
+  public void testClusteredLayoutKeepsKeyOrderAndIsDetectedOnReopen() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().setClustered(true)
+        .build();
+    final List<Entry> expected = new ArrayList<>();
+    for (int col = 0; col < 8; col++) {
+      for (int row = 0; row < 8; row++) {
+        expected.add(new Entry(3, col, row, getGarbageBytes(col + "/" + row)));
+      }
+    }
+    final List<Entry> shuffled = new ArrayList<>(expected);
+    Collections.shuffle(shuffled, new Random(3));
+    storage.putEntries(Observable.fromIterable(shuffled));
+    storage.putEntries(Observable.just(new Entry(3, 2, 5, getGarbageBytes("replaced"))));
+    expected.set(2 * 8 + 5, new Entry(3, 2, 5, getGarbageBytes("replaced")));
+
+    assertEquals(expected, storage.scanEntries(null).toList().blockingGet());
+    assertEquals(expected.get(2 * 8 + 5), storage.findEntry(3, 2, 5));
+    assertEquals(1, storage.delete(Collections.singletonList(new Key(3, 0, 0))));
+    assertEquals(32 - 1, storage.deleteRange(3, 3, new double[] {-180, -85.0511, 0, 85.0511}));
+    storage.compact();
+    assertEquals(expected.subList(32, 64), storage.getEntries().toList().blockingGet());
+    storage.close();
+
+    // the key is the table, so there is no separate index to keep
+    assertFalse(hasTileIndex(file));
+
+    final StorageImpl reopened = new StorageImpl.Builder(file).build();
+    reopened.putEntries(Observable.just(new Entry(3, 7, 7, getGarbageBytes("again"))));
+    assertEquals(32, (long) reopened.getEntries().count().blockingGet());
+    assertEquals(new Entry(3, 7, 7, getGarbageBytes("again")), reopened.findEntry(3, 7, 7));
+    reopened.close();
+  }
+
+  @Test
+  public void testBackgroundVacuumReleasesFreePages() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .incrementalVacuum().setVacuumPeriod(20, TimeUnit.MILLISECONDS).build();
+    storage.putEntries(createIncompressibleEntries(10, 500));
+    assertEquals(500, storage.deleteRange(10, 10, null));
+
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (countFreePages(file) > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertEquals(0L, countFreePages(file));
+    assertEquals(0, storage.vacuum());
+    storage.close();
+  }
+
+  @Test
+  public void testCompactShrinksFileAndKeepsTiles() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build();
+    storage.putEntries(createIncompressibleEntries(10, 1000));
+    storage.deleteRange(10, 10, new double[] {-180, -85, 0, 85});
+    final long remaining = storage.getEntries().count().blockingGet();
+    assertTrue(remaining > 0 && remaining < 1000);
+    // not incrementally vacuumed, so nothing to release
+    assertEquals(0, storage.vacuum());
+    final long before = file.length() + new File(file.getPath() + "-wal").length();
+
+    storage.compact();
+    assertTrue(file.length() < before / 2);
+    assertEquals(remaining, (long) storage.getEntries().count().blockingGet());
+    assertNotNull(storage.findEntry(10, 999, 0));
+
+    storage.putEntries(Observable.just(new Entry(3, 1, 1, getGarbageBytes("after"))));
+    assertEquals(new Entry(3, 1, 1, getGarbageBytes("after")), storage.findEntry(3, 1, 1));
+    storage.close();
+  }
+
+  private static Observable<Entry> createIncompressibleEntries(int zoom, int count) {
+    final Random random = new Random(count);
+    return Observable.range(0, count).map(i -> {
+      final byte[] bytes = new byte[4096];
+      random.nextBytes(bytes);
+      return new Entry(zoom, count - 1 - i, i, bytes);
+    });
+  }
+
+  private static long countFreePages(File file) throws SQLException {
+    try (Connection connection =
+        DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("PRAGMA freelist_count")) {
+      return rs.next() ? rs.getLong(1) : -1;
+    }
+  }
+
+  @Test
+  public void testMetadataIsCachedUntilReplaced() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build();
+    storage.putMetadata(Single.just(new Metadata.Builder().setDescription("first").build()));
+
+    final Metadata first = storage.getMetadata().blockingFirst();
+    assertEquals("first", first.getDescription());
+    assertTrue(first == storage.getMetadata().blockingFirst());
+
+    storage.putMetadata(Single.just(new Metadata.Builder().setDescription("second").build()));
+    assertEquals("second", storage.getMetadata().blockingFirst().getDescription());
+    storage.close();
+  }
+
+  @Test
+  public void testWriteQueueGroupsConcurrentPuts() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setWriteQueueSize(64).setBatchSize(50).build();
+
+    final ExecutorService producers = Executors.newFixedThreadPool(8);
+    final List<Future<List<StorageResult>>> futures = new ArrayList<>();
+    for (int col = 0; col < 8; col++) {
+      final int column = col;
+      futures.add(producers.submit(() -> storage.put(Observable.range(0, 100)
+          .map(row -> new Entry(12, column, row, getGarbageBytes(column + "/" + row))))
+          .toList().blockingGet()));
+    }
+    for (Future<List<StorageResult>> future : futures) {
+      final List<StorageResult> results = future.get(30, TimeUnit.SECONDS);
+      assertEquals(100, results.size());
+      for (int row = 0; row < results.size(); row++) {
+        assertTrue(results.get(row).isCompleted());
+        assertEquals(row, results.get(row).getEntry().getRow());
+      }
+    }
+    producers.shutdown();
+    assertEquals(800L, (long) storage.getEntries().count().blockingGet());
+
+    // a tile that cannot be written fails alone
+    final Entry corrupt = new LazyEntry(12, 9, 0, getGarbageBytes("not gzip"), TileCodecs.gzip());
+    final List<StorageResult> results = storage.put(Observable.just(
+        new Entry(12, 9, 1, getGarbageBytes()), corrupt, new Entry(12, 9, 2, getGarbageBytes())))
+        .toList().blockingGet();
+    assertTrue(results.get(0).isCompleted());
+    assertFalse(results.get(1).isCompleted());
+    assertNotNull(results.get(1).getException());
+    assertTrue(results.get(2).isCompleted());
+    assertEquals(802L, (long) storage.getEntries().count().blockingGet());
+    storage.close();
+  }
+
+  private static boolean hasTileIndex(File file) throws SQLException {
+    try (Connection connection =
+        DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery(
+            "SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = 'tile_index'")) {
+      return rs.next();
+    }
+  }
+
+  private static long countImages(File file) throws SQLException {
+    try (Connection connection =
+        DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM images")) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
   private static Observable<Entry> createEntries(int count) {
     List<Entry> entries = new ArrayList<>();
     for (int i = 0; i < count; i++) {
@@ -233,18 +741,28 @@ public class StorageImplTest {
 
   @AfterClass
   public static void cleanup() {
-    provideNonExistentTestFileOrBlow();
+    for (int i = 1; i <= TEST_FILES.get(); i++) {
+      provideNonExistentTestFileOrBlow(getTestFilename(i));
+    }
   }
 
   private static File provideNonExistentTestFileOrBlow() {
-    return provideNonExistentTestFileOrBlow("testing.mbtiles");
+    // a file per test - a storage left open by an earlier test must not share its WAL
+    return provideNonExistentTestFileOrBlow(getTestFilename(TEST_FILES.incrementAndGet()));
+  }
+
+  private static String getTestFilename(int index) {
+    return "testing-" + index + ".mbtiles";
   }
 
   private static File provideNonExistentTestFileOrBlow(String filename) {
     final File file = new File(filename);
-    if (file.exists() && !file.delete()) {
-      throw new IllegalStateException(
-          "problem with integration test environment - dirty filesystem");
+    for (String suffix : new String[] {"", "-wal", "-shm"}) {
+      final File toDelete = new File(filename + suffix);
+      if (toDelete.exists() && !toDelete.delete()) {
+        throw new IllegalStateException(
+            "problem with integration test environment - dirty filesystem");
+      }
     }
     return file;
   }
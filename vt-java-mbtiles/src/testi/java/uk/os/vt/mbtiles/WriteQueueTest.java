@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.os.vt.mbtiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.reactivex.Observable;
+import io.reactivex.schedulers.Schedulers;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import uk.os.vt.Entry;
+import uk.os.vt.StorageResult;
+import uk.os.vt.common.TileCodecs;
+
+public class WriteQueueTest {
+
+  @Test
+  public void testSqlFailurePartwayThroughAGroupCompletesEveryTile() throws Exception {
+    final Connection database = DriverManager.getConnection("jdbc:sqlite::memory:");
+    try (Statement statement = database.createStatement()) {
+      statement.execute("CREATE TABLE tiles (zoom_level integer, tile_column integer,"
+          + " tile_row integer, tile_data blob);");
+    }
+    final int failingTile = 3;
+    final AtomicInteger batched = new AtomicInteger();
+    final CountDownLatch isFirstOpened = new CountDownLatch(1);
+    final CountDownLatch isReleased = new CountDownLatch(1);
+    final AtomicInteger opened = new AtomicInteger();
+    final TileSummary summary = new TileSummary(null, Layout.SIMPLE);
+
+    final WriteQueue queue = new WriteQueue(100, 100, 10000, () -> {
+      if (opened.getAndIncrement() == 0) {
+        // hold the writer so the remaining tiles queue up as one group
+        isFirstOpened.countDown();
+        awaitQuietly(isReleased);
+      }
+      return new TileBatch(() -> failingAddBatch(database, batched, failingTile),
+          TileCodecs.gzip(), Layout.SIMPLE, Integer.MAX_VALUE, summary, false);
+    });
+
+    final List<Entry> entries = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      entries.add(new Entry(5, i, 0, new byte[] {(byte) i}));
+    }
+    final List<StorageResult> results = new ArrayList<>();
+    final CountDownLatch isDone = new CountDownLatch(1);
+    queue.put(Observable.fromIterable(entries)).subscribeOn(Schedulers.io())
+        .doFinally(isDone::countDown).subscribe(results::add);
+    assertTrue(isFirstOpened.await(5, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    isReleased.countDown();
+
+    assertTrue("every tile should complete", isDone.await(5, TimeUnit.SECONDS));
+    assertEquals(entries.size(), results.size());
+    for (int i = 0; i < entries.size(); i++) {
+      assertEquals(i != failingTile - 1, results.get(i).isCompleted());
+    }
+    try (Statement statement = database.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM tiles")) {
+      assertTrue(rs.next());
+      assertEquals(entries.size() - 1, rs.getInt(1));
+    }
+    queue.close();
+    database.close();
+  }
+
+  @Test(timeout = 5000)
+  public void testWriterThatStopsFailsItsTilesAndClosesQuickly() throws Exception {
+    final WriteQueue queue = new WriteQueue(1, 1, 100, () -> {
+      throw new AssertionError("writer stops");
+    });
+    final StorageResult first = queue.put(Observable.just(new Entry(0, 0, 0, new byte[] {1})))
+        .blockingSingle();
+    assertFalse(first.isCompleted());
+    final StorageResult second = queue.put(Observable.just(new Entry(1, 0, 0, new byte[] {1})))
+        .blockingSingle();
+    assertFalse(second.isCompleted());
+    queue.close();
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A connection, not closed by the batch, whose statements fail the nth call to addBatch.
+   */
+  private static Connection failingAddBatch(Connection connection, AtomicInteger calls,
+      int failOn) {
+    return (Connection) Proxy.newProxyInstance(WriteQueueTest.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+          if ("close".equals(method.getName())) {
+            return null;
+          }
+          final Object result = invoke(connection, method, args);
+          if (!(result instanceof PreparedStatement)) {
+            return result;
+          }
+          return Proxy.newProxyInstance(WriteQueueTest.class.getClassLoader(),
+              new Class<?>[] {PreparedStatement.class}, (statement, call, callArgs) -> {
+                if ("addBatch".equals(call.getName()) && calls.incrementAndGet() == failOn) {
+                  throw new SQLException("injected failure");
+                }
+                return invoke(result, call, callArgs);
+              });
+        });
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (final InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+}
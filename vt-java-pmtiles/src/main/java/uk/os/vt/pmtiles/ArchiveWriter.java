@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
+
+/**
+ * Writes a PMTiles archive from tiles added in tile id order.
+ *
+ * <p>Tile data is appended to a temporary file alongside the archive, with repeated tile data,
+ * such as sea or empty tiles, stored once and consecutive repeats addressed by a single entry.
+ * On {@link #finish(byte[])} the directories are laid out, split into leaf directories where the
+ * root directory would be too large, and the archive written.
+ */
+final class ArchiveWriter implements Closeable {
+
+  private static final int MAX_ROOT_ENTRIES = 16384;
+  private static final int MIN_LEAF_ENTRIES = 4096;
+  private static final int TARGET_LEAVES = 3500;
+
+  private final File file;
+  private final int tileCompression;
+  private final TileCodec internalCodec = TileCodecs.gzip();
+  private final File tileData;
+  private final FileChannel tileChannel;
+  private final Directory.Builder entries = new Directory.Builder();
+  // offsets of tile data by hash
+  private final Map<HashCode, Long> contents = new HashMap<>();
+  private long tileDataLength;
+  private long addressedTiles;
+  private long lastTileId = -1;
+  private int minZoom = Integer.MAX_VALUE;
+  private int maxZoom = Integer.MIN_VALUE;
+  private double minLon = Double.MAX_VALUE;
+  private double minLat = Double.MAX_VALUE;
+  private double maxLon = -Double.MAX_VALUE;
+  private double maxLat = -Double.MAX_VALUE;
+
+  /**
+   * @param file the archive to write, replaced if it exists
+   * @param tileCompression the compression of the tile data as added
+   * @throws IOException thrown if the temporary file cannot be created
+   */
+  ArchiveWriter(File file, int tileCompression) throws IOException {
+    this.file = file;
+    this.tileCompression = tileCompression;
+    this.tileData = File.createTempFile("." + file.getName() + "-", ".tiles",
+        file.getAbsoluteFile().getParentFile());
+    this.tileChannel = FileChannel.open(tileData.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Add a tile.
+   *
+   * @param tileId the tile id, greater than that of any tile added before
+   * @param data the tile data, read from its position to its limit
+   * @throws IOException thrown if the tile data cannot be written
+   */
+  void add(long tileId, ByteBuffer data) throws IOException {
+    if (tileId <= lastTileId) {
+      throw new IllegalArgumentException(String.format("tile %d added after %d", tileId,
+          lastTileId));
+    }
+    lastTileId = tileId;
+    final int length = data.remaining();
+    final HashCode hash = Hashing.sha256().hashBytes(data.duplicate());
+    Long offset = contents.get(hash);
+    if (offset == null) {
+      offset = tileDataLength;
+      final ByteBuffer source = data.duplicate();
+      while (source.hasRemaining()) {
+        tileChannel.write(source, tileDataLength + length - source.remaining());
+      }
+      tileDataLength += length;
+      contents.put(hash, offset);
+    }
+    entries.addTile(tileId, offset, length);
+    addressedTiles++;
+    widen(TileId.toZxy(tileId));
+  }
+
+  private void widen(int[] zxy) {
+    final int zoom = zxy[0];
+    final double tiles = 1 << zoom;
+    minZoom = Math.min(minZoom, zoom);
+    maxZoom = Math.max(maxZoom, zoom);
+    minLon = Math.min(minLon, zxy[1] / tiles * 360 - 180);
+    maxLon = Math.max(maxLon, (zxy[1] + 1) / tiles * 360 - 180);
+    maxLat = Math.max(maxLat, latitudeOf(zxy[2], tiles));
+    minLat = Math.min(minLat, latitudeOf(zxy[2] + 1, tiles));
+  }
+
+  private static double latitudeOf(int row, double tiles) {
+    return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * row / tiles))));
+  }
+
+  /**
+   * Write the archive, synced to disk.
+   *
+   * @param metadata the uncompressed metadata, empty for none
+   * @throws IOException thrown if the archive cannot be written
+   */
+  void finish(byte[] metadata) throws IOException {
+    final Directory all = entries.build();
+    byte[] root = all.serialize(internalCodec, 0, all.size());
+    final ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+    if (all.size() >= MAX_ROOT_ENTRIES || root.length > Header.MAX_ROOT_BYTES) {
+      int leafSize = Math.max(MIN_LEAF_ENTRIES, all.size() / TARGET_LEAVES);
+      while (true) {
+        leaves.reset();
+        final Directory.Builder rootEntries = new Directory.Builder();
+        for (int from = 0; from < all.size(); from += leafSize) {
+          final int to = Math.min(all.size(), from + leafSize);
+          final byte[] leaf = all.serialize(internalCodec, from, to);
+          rootEntries.add(all.getTileId(from), leaves.size(), leaf.length, 0);
+          leaves.write(leaf);
+        }
+        final Directory rootDirectory = rootEntries.build();
+        root = rootDirectory.serialize(internalCodec, 0, rootDirectory.size());
+        if (root.length <= Header.MAX_ROOT_BYTES) {
+          break;
+        }
+        leafSize += leafSize / 5;
+      }
+    }
+    final byte[] compressedMetadata = metadata.length == 0 ? metadata
+        : internalCodec.encode(metadata);
+
+    final Header header = new Header();
+    header.rootOffset = Header.BYTES;
+    header.rootLength = root.length;
+    header.metadataOffset = header.rootOffset + header.rootLength;
+    header.metadataLength = compressedMetadata.length;
+    header.leafOffset = header.metadataOffset + header.metadataLength;
+    header.leafLength = leaves.size();
+    header.tileDataOffset = header.leafOffset + header.leafLength;
+    header.tileDataLength = tileDataLength;
+    header.addressedTiles = addressedTiles;
+    header.tileEntries = all.size();
+    header.tileContents = contents.size();
+    // tile data is written in tile id order, repeats aside
+    header.isClustered = true;
+    header.internalCompression = Header.COMPRESSION_GZIP;
+    header.tileCompression = tileCompression;
+    header.tileType = Header.TILE_TYPE_MVT;
+    if (addressedTiles > 0) {
+      header.minZoom = minZoom;
+      header.maxZoom = maxZoom;
+      header.minLon = minLon;
+      header.minLat = minLat;
+      header.maxLon = maxLon;
+      header.maxLat = maxLat;
+      header.centerZoom = minZoom;
+      header.centerLon = (minLon + maxLon) / 2;
+      header.centerLat = (minLat + maxLat) / 2;
+    }
+
+    try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      writeFully(out, header.toBytes());
+      writeFully(out, root);
+      writeFully(out, compressedMetadata);
+      writeFully(out, leaves.toByteArray());
+      long position = 0;
+      while (position < tileDataLength) {
+        position += tileChannel.transferTo(position, tileDataLength - position, out);
+      }
+      out.force(true);
+    }
+  }
+
+  private static void writeFully(FileChannel out, byte[] bytes) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      tileChannel.close();
+    } finally {
+      Files.deleteIfExists(tileData.toPath());
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import uk.os.vt.common.TileCodec;
+
+/**
+ * A PMTiles directory, entries of tile id, offset, length and run length in tile id order.
+ *
+ * <p>An entry with a run length addresses that many consecutive tile ids, all with the same tile
+ * data.  An entry with a run length of zero addresses a leaf directory, holding the entries from
+ * its tile id up to that of the next entry.
+ *
+ * <p>Serialized as a count then columns of varints, tile ids as deltas and offsets as zero where
+ * contiguous with the entry before, then compressed.
+ */
+final class Directory {
+
+  private final long[] tileIds;
+  private final long[] offsets;
+  private final int[] lengths;
+  private final int[] runLengths;
+  private final int size;
+
+  Directory(long[] tileIds, long[] offsets, int[] lengths, int[] runLengths, int size) {
+    this.tileIds = tileIds;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    this.runLengths = runLengths;
+    this.size = size;
+  }
+
+  int size() {
+    return size;
+  }
+
+  long getTileId(int index) {
+    return tileIds[index];
+  }
+
+  long getOffset(int index) {
+    return offsets[index];
+  }
+
+  int getLength(int index) {
+    return lengths[index];
+  }
+
+  int getRunLength(int index) {
+    return runLengths[index];
+  }
+
+  boolean isLeaf(int index) {
+    return runLengths[index] == 0;
+  }
+
+  /**
+   * Find the entry addressing a tile, or the leaf directory that may.
+   *
+   * @param tileId the tile id
+   * @return the index of the entry, or -1 if none
+   */
+  int find(long tileId) {
+    final int index = floor(tileId);
+    // the entry at or before the tile, which may run over it or be its leaf
+    if (index >= 0 && (runLengths[index] == 0 || tileId - tileIds[index] < runLengths[index])) {
+      return index;
+    }
+    return -1;
+  }
+
+  /**
+   * Find the last entry at or before a tile.
+   *
+   * @param tileId the tile id
+   * @return the index of the entry, or -1 if none
+   */
+  int floor(long tileId) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      if (tileIds[mid] <= tileId) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high;
+  }
+
+  /**
+   * Serialize and compress the entries.
+   *
+   * @param compression the internal compression
+   * @param from the first entry
+   * @param to the entry after the last
+   * @return the bytes
+   * @throws IOException thrown if the bytes cannot be compressed
+   */
+  byte[] serialize(TileCodec compression, int from, int to) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + (to - from) * 6);
+    writeVarint(out, to - from);
+    long last = 0;
+    for (int i = from; i < to; i++) {
+      writeVarint(out, tileIds[i] - last);
+      last = tileIds[i];
+    }
+    for (int i = from; i < to; i++) {
+      writeVarint(out, runLengths[i]);
+    }
+    for (int i = from; i < to; i++) {
+      writeVarint(out, lengths[i]);
+    }
+    for (int i = from; i < to; i++) {
+      final boolean isContiguous = i > from && offsets[i] == offsets[i - 1] + lengths[i - 1];
+      writeVarint(out, isContiguous ? 0 : offsets[i] + 1);
+    }
+    return compression.encode(out.toByteArray());
+  }
+
+  /**
+   * Decompress and deserialize entries.
+   *
+   * @param bytes the bytes
+   * @param compression the internal compression
+   * @return the directory
+   * @throws IOException thrown if the bytes are not a directory
+   */
+  static Directory deserialize(byte[] bytes, TileCodec compression) throws IOException {
+    final byte[] raw = compression.decode(bytes);
+    final VarintReader in = new VarintReader(raw);
+    final long count = in.read();
+    // each entry takes at least four bytes
+    if (count > raw.length / 4) {
+      throw new IOException("corrupt directory");
+    }
+    final int size = (int) count;
+    final long[] tileIds = new long[size];
+    final long[] offsets = new long[size];
+    final int[] lengths = new int[size];
+    final int[] runLengths = new int[size];
+    long last = 0;
+    for (int i = 0; i < size; i++) {
+      last += in.read();
+      tileIds[i] = last;
+    }
+    for (int i = 0; i < size; i++) {
+      runLengths[i] = (int) in.read();
+    }
+    for (int i = 0; i < size; i++) {
+      lengths[i] = (int) in.read();
+    }
+    for (int i = 0; i < size; i++) {
+      final long value = in.read();
+      offsets[i] = value == 0 && i > 0 ? offsets[i - 1] + lengths[i - 1] : value - 1;
+    }
+    return new Directory(tileIds, offsets, lengths, runLengths, size);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      out.write((int) (remaining & 0x7F | 0x80));
+      remaining >>>= 7;
+    }
+    out.write((int) remaining);
+  }
+
+  /**
+   * Entries added one at a time, in tile id order.
+   */
+  static final class Builder {
+
+    private long[] tileIds = new long[1024];
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private int[] runLengths = new int[1024];
+    private int size;
+
+    /**
+     * Add a tile, extending the run of the last entry where the tile follows it with the same
+     * data.
+     *
+     * @param tileId the tile id, greater than any added before
+     * @param offset the offset of the tile data
+     * @param length the length of the tile data
+     */
+    void addTile(long tileId, long offset, int length) {
+      final int last = size - 1;
+      if (last >= 0 && tileIds[last] + runLengths[last] == tileId && offsets[last] == offset
+          && lengths[last] == length) {
+        runLengths[last]++;
+        return;
+      }
+      add(tileId, offset, length, 1);
+    }
+
+    void add(long tileId, long offset, int length, int runLength) {
+      if (size == tileIds.length) {
+        final int capacity = size * 2;
+        tileIds = Arrays.copyOf(tileIds, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        runLengths = Arrays.copyOf(runLengths, capacity);
+      }
+      tileIds[size] = tileId;
+      offsets[size] = offset;
+      lengths[size] = length;
+      runLengths[size] = runLength;
+      size++;
+    }
+
+    Directory build() {
+      return new Directory(tileIds, offsets, lengths, runLengths, size);
+    }
+  }
+
+  private static final class VarintReader {
+
+    private final byte[] bytes;
+    private int position;
+
+    VarintReader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    long read() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (position == bytes.length) {
+          throw new IOException("corrupt directory - truncated");
+        }
+        final byte b = bytes[position++];
+        result |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("corrupt directory - malformed varint");
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
+
+/**
+ * The fixed size header of a PMTiles version 3 archive, little endian.
+ *
+ * <p>It locates the root directory, metadata, leaf directories and tile data, in that order in
+ * the file, and summarizes the tiles.
+ */
+final class Header {
+
+  static final int BYTES = 127;
+  // the header and root directory are fetched together, so must fit in this
+  static final int MAX_ROOT_BYTES = 16384 - BYTES;
+
+  static final int COMPRESSION_NONE = 1;
+  static final int COMPRESSION_GZIP = 2;
+  static final int TILE_TYPE_MVT = 1;
+
+  private static final byte[] MAGIC = "PMTiles".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 3;
+  private static final double E7 = 10000000;
+
+  long rootOffset;
+  long rootLength;
+  long metadataOffset;
+  long metadataLength;
+  long leafOffset;
+  long leafLength;
+  long tileDataOffset;
+  long tileDataLength;
+  long addressedTiles;
+  long tileEntries;
+  long tileContents;
+  boolean isClustered;
+  int internalCompression;
+  int tileCompression;
+  int tileType;
+  int minZoom;
+  int maxZoom;
+  double minLon;
+  double minLat;
+  double maxLon;
+  double maxLat;
+  int centerZoom;
+  double centerLon;
+  double centerLat;
+
+  /**
+   * Read a header.
+   *
+   * @param bytes at least the header
+   * @return the header
+   * @throws IOException thrown if not a version 3 archive
+   */
+  static Header read(ByteBuffer bytes) throws IOException {
+    final ByteBuffer in = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (in.remaining() < BYTES) {
+      throw new IOException("not a PMTiles archive - too short");
+    }
+    final byte[] magic = new byte[MAGIC.length];
+    in.get(magic);
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (magic[i] != MAGIC[i]) {
+        throw new IOException("not a PMTiles archive");
+      }
+    }
+    final int version = in.get();
+    if (version != VERSION) {
+      throw new IOException("unsupported PMTiles version " + version);
+    }
+    final Header header = new Header();
+    header.rootOffset = in.getLong();
+    header.rootLength = in.getLong();
+    header.metadataOffset = in.getLong();
+    header.metadataLength = in.getLong();
+    header.leafOffset = in.getLong();
+    header.leafLength = in.getLong();
+    header.tileDataOffset = in.getLong();
+    header.tileDataLength = in.getLong();
+    header.addressedTiles = in.getLong();
+    header.tileEntries = in.getLong();
+    header.tileContents = in.getLong();
+    header.isClustered = in.get() == 1;
+    header.internalCompression = in.get();
+    header.tileCompression = in.get();
+    header.tileType = in.get();
+    header.minZoom = in.get();
+    header.maxZoom = in.get();
+    header.minLon = in.getInt() / E7;
+    header.minLat = in.getInt() / E7;
+    header.maxLon = in.getInt() / E7;
+    header.maxLat = in.getInt() / E7;
+    header.centerZoom = in.get();
+    header.centerLon = in.getInt() / E7;
+    header.centerLat = in.getInt() / E7;
+    return header;
+  }
+
+  byte[] toBytes() {
+    final ByteBuffer out = ByteBuffer.allocate(BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    out.put(MAGIC);
+    out.put((byte) VERSION);
+    out.putLong(rootOffset);
+    out.putLong(rootLength);
+    out.putLong(metadataOffset);
+    out.putLong(metadataLength);
+    out.putLong(leafOffset);
+    out.putLong(leafLength);
+    out.putLong(tileDataOffset);
+    out.putLong(tileDataLength);
+    out.putLong(addressedTiles);
+    out.putLong(tileEntries);
+    out.putLong(tileContents);
+    out.put((byte) (isClustered ? 1 : 0));
+    out.put((byte) internalCompression);
+    out.put((byte) tileCompression);
+    out.put((byte) tileType);
+    out.put((byte) minZoom);
+    out.put((byte) maxZoom);
+    out.putInt((int) Math.round(minLon * E7));
+    out.putInt((int) Math.round(minLat * E7));
+    out.putInt((int) Math.round(maxLon * E7));
+    out.putInt((int) Math.round(maxLat * E7));
+    out.put((byte) centerZoom);
+    out.putInt((int) Math.round(centerLon * E7));
+    out.putInt((int) Math.round(centerLat * E7));
+    return out.array();
+  }
+
+  /**
+   * The codec of a compression type.
+   *
+   * @param compression the compression type
+   * @return the codec
+   * @throws IOException thrown if the compression is not supported
+   */
+  static TileCodec codecOf(int compression) throws IOException {
+    switch (compression) {
+      case COMPRESSION_NONE:
+        return TileCodecs.none();
+      case COMPRESSION_GZIP:
+        return TileCodecs.gzip();
+      default:
+        throw new IOException("unsupported PMTiles compression " + compression);
+    }
+  }
+
+  /**
+   * The compression type of a codec.
+   *
+   * @param codec the codec
+   * @return the compression type
+   * @throws IllegalArgumentException thrown if the codec has no compression type
+   */
+  static int compressionOf(TileCodec codec) {
+    switch (codec.getName()) {
+      case TileCodecs.NONE:
+        return COMPRESSION_NONE;
+      case TileCodecs.GZIP:
+        return COMPRESSION_GZIP;
+      default:
+        throw new IllegalArgumentException("unsupported compression " + codec.getName());
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import uk.os.vt.common.TileCodec;
+
+/**
+ * A PMTiles archive read through memory mapping.
+ *
+ * <p>Tiles are answered as read only slices of the mapping, so are not copied, and the operating
+ * system caches the file rather than the heap.  Leaf directories are deserialized on first use
+ * and cached.  Safe for concurrent reads.
+ *
+ * <p>The mapping is released when this is garbage collected, there being no way to unmap
+ * earlier, so a replaced archive keeps its disk space until then.
+ */
+final class MappedArchive {
+
+  // a mapping is limited to 2GB, larger archives are mapped in segments
+  private static final long SEGMENT_BYTES = 1L << 30;
+  // leaf directories are not nested deeper than this
+  private static final int MAX_DEPTH = 4;
+  private static final int MAX_CACHED_LEAVES = 64;
+
+  private final File file;
+  private final ByteBuffer[] segments;
+  private final long size;
+  private final Header header;
+  private final TileCodec internalCodec;
+  private final Directory root;
+  private final Cache<Long, Directory> leaves =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_LEAVES).build();
+
+  private MappedArchive(File file, ByteBuffer[] segments, long size) throws IOException {
+    this.file = file;
+    this.segments = segments;
+    this.size = size;
+    this.header = Header.read(read(0, (int) Math.min(size, Header.BYTES)));
+    this.internalCodec = Header.codecOf(header.internalCompression);
+    this.root = Directory.deserialize(readBytes(header.rootOffset, header.rootLength),
+        internalCodec);
+  }
+
+  /**
+   * Map an archive.
+   *
+   * @param file the archive
+   * @return the archive
+   * @throws IOException thrown if the file cannot be mapped or is not an archive
+   */
+  static MappedArchive open(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final long size = channel.size();
+      final ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_BYTES - 1)
+          / SEGMENT_BYTES)];
+      for (int i = 0; i < segments.length; i++) {
+        final long position = i * SEGMENT_BYTES;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+            Math.min(SEGMENT_BYTES, size - position));
+      }
+      // the mappings remain valid once the channel is closed
+      return new MappedArchive(file, segments, size);
+    }
+  }
+
+  Header getHeader() {
+    return header;
+  }
+
+  /**
+   * Get the data of a tile.
+   *
+   * @param tileId the tile id
+   * @return a read only buffer of the tile data as stored, or null if there is no such tile
+   * @throws IOException thrown if the archive is corrupt
+   */
+  ByteBuffer getTile(long tileId) throws IOException {
+    Directory directory = root;
+    for (int depth = 0; depth < MAX_DEPTH; depth++) {
+      final int index = directory.find(tileId);
+      if (index < 0) {
+        return null;
+      }
+      if (!directory.isLeaf(index)) {
+        return read(header.tileDataOffset + directory.getOffset(index),
+            directory.getLength(index));
+      }
+      directory = getLeaf(directory.getOffset(index), directory.getLength(index));
+    }
+    throw new IOException(String.format("corrupt archive '%s' - directories too deep", file));
+  }
+
+  /**
+   * Visit the tiles with ids in a range, in id order.
+   *
+   * @param fromId the first tile id
+   * @param toId the tile id after the last
+   * @param visitor the visitor
+   * @return false if the visitor stopped the visit
+   * @throws IOException thrown if the archive is corrupt
+   */
+  boolean forEach(long fromId, long toId, TileVisitor visitor) throws IOException {
+    return forEach(root, fromId, toId, visitor, 0);
+  }
+
+  private boolean forEach(Directory directory, long fromId, long toId, TileVisitor visitor,
+      int depth) throws IOException {
+    if (depth == MAX_DEPTH) {
+      throw new IOException(String.format("corrupt archive '%s' - directories too deep", file));
+    }
+    // the entry before the range may run, or lead, into it
+    for (int i = Math.max(0, directory.floor(fromId)); i < directory.size(); i++) {
+      final long tileId = directory.getTileId(i);
+      if (tileId >= toId) {
+        break;
+      }
+      if (directory.isLeaf(i)) {
+        final boolean isBefore = i + 1 < directory.size()
+            && directory.getTileId(i + 1) <= fromId;
+        if (!isBefore && !forEach(getLeaf(directory.getOffset(i), directory.getLength(i)),
+            fromId, toId, visitor, depth + 1)) {
+          return false;
+        }
+        continue;
+      }
+      final long end = Math.min(toId, tileId + directory.getRunLength(i));
+      for (long id = Math.max(fromId, tileId); id < end; id++) {
+        if (!visitor.visit(id, header.tileDataOffset + directory.getOffset(i),
+            directory.getLength(i))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the metadata.
+   *
+   * @return the uncompressed metadata, empty if none
+   * @throws IOException thrown if the metadata cannot be read
+   */
+  byte[] getMetadata() throws IOException {
+    return header.metadataLength == 0 ? new byte[0]
+        : internalCodec.decode(readBytes(header.metadataOffset, header.metadataLength));
+  }
+
+  /**
+   * Read part of the archive.
+   *
+   * @param offset the offset
+   * @param length the length
+   * @return a read only buffer, sliced from the mapping unless it spans segments
+   * @throws IOException thrown if outside the archive
+   */
+  ByteBuffer read(long offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > size) {
+      throw new IOException(String.format("corrupt archive '%s' - %d bytes at %d beyond the end",
+          file, length, offset));
+    }
+    if (length == 0) {
+      return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+    final int segment = (int) (offset / SEGMENT_BYTES);
+    final int position = (int) (offset % SEGMENT_BYTES);
+    if (position + length <= segments[segment].capacity()) {
+      // duplicated, as the position and limit of the shared buffer must not change
+      final ByteBuffer result = segments[segment].duplicate();
+      result.position(position);
+      result.limit(position + length);
+      return result.slice();
+    }
+    final ByteBuffer copy = ByteBuffer.allocate(length);
+    long remaining = length;
+    long at = offset;
+    while (remaining > 0) {
+      final ByteBuffer part = segments[(int) (at / SEGMENT_BYTES)].duplicate();
+      part.position((int) (at % SEGMENT_BYTES));
+      part.limit((int) Math.min(part.capacity(), part.position() + remaining));
+      remaining -= part.remaining();
+      at += part.remaining();
+      copy.put(part);
+    }
+    copy.flip();
+    return copy.asReadOnlyBuffer();
+  }
+
+  private byte[] readBytes(long offset, long length) throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException(String.format("corrupt archive '%s' - %d bytes too long", file,
+          length));
+    }
+    final ByteBuffer buffer = read(offset, (int) length);
+    final byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+
+  private Directory getLeaf(long offset, int length) throws IOException {
+    try {
+      return leaves.get(offset, () -> Directory.deserialize(
+          readBytes(header.leafOffset + offset, length), internalCodec));
+    } catch (final ExecutionException ex) {
+      throw new IOException(String.format("cannot read leaf directory of '%s'", file),
+          ex.getCause());
+    }
+  }
+
+  /**
+   * Visits tiles.
+   */
+  interface TileVisitor {
+
+    /**
+     * Visit a tile.
+     *
+     * @param tileId the tile id
+     * @param offset the offset of the tile data in the archive
+     * @param length the length of the tile data
+     * @return true to continue the visit
+     * @throws IOException thrown to end the visit
+     */
+    boolean visit(long tileId, long offset, int length) throws IOException;
+  }
+}
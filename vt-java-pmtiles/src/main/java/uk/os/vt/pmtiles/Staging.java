@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Changes to an archive not yet committed, tile data appended to a file alongside it.
+ *
+ * <p>Safe for concurrent use.  The file is deleted on close, so uncommitted changes do not
+ * survive a restart.
+ */
+final class Staging implements Closeable {
+
+  private final File file;
+  private final FileChannel channel;
+  private final ConcurrentSkipListMap<Long, Slot> tiles = new ConcurrentSkipListMap<>();
+  private long length;
+
+  private Staging(File file, FileChannel channel) {
+    this.file = file;
+    this.channel = channel;
+  }
+
+  /**
+   * Create staging, replacing any left by a previous run.
+   *
+   * @param file the staging file
+   * @return the staging
+   * @throws IOException thrown if the file cannot be created
+   */
+  static Staging create(File file) throws IOException {
+    Files.deleteIfExists(file.toPath());
+    return new Staging(file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE));
+  }
+
+  /**
+   * Stage a tile.
+   *
+   * @param tileId the tile id
+   * @param data the tile data as stored
+   * @throws IOException thrown if the tile data cannot be written
+   */
+  void put(long tileId, byte[] data) throws IOException {
+    final long offset;
+    synchronized (this) {
+      offset = length;
+      length += data.length;
+    }
+    // writers are given regions of their own, so write concurrently
+    final ByteBuffer source = ByteBuffer.wrap(data);
+    while (source.hasRemaining()) {
+      channel.write(source, offset + source.position());
+    }
+    tiles.put(tileId, new Slot(offset, data.length));
+  }
+
+  /**
+   * Stage the deletion of a tile.
+   *
+   * @param tileId the tile id
+   */
+  void delete(long tileId) {
+    tiles.put(tileId, Slot.DELETED);
+  }
+
+  boolean isEmpty() {
+    return tiles.isEmpty();
+  }
+
+  /**
+   * Get a staged change.
+   *
+   * @param tileId the tile id
+   * @return the change, or null if none
+   */
+  Slot get(long tileId) {
+    return tiles.get(tileId);
+  }
+
+  /**
+   * Get the staged changes with tile ids in a range.
+   *
+   * @param fromId the first tile id
+   * @param toId the tile id after the last
+   * @return the changes, in tile id order
+   */
+  NavigableMap<Long, Slot> range(long fromId, long toId) {
+    return tiles.subMap(fromId, true, toId, false);
+  }
+
+  /**
+   * Read staged tile data.
+   *
+   * @param slot the change, not a deletion
+   * @return the tile data as stored
+   * @throws IOException thrown if the tile data cannot be read
+   */
+  ByteBuffer read(Slot slot) throws IOException {
+    final ByteBuffer result = ByteBuffer.allocate(slot.length);
+    while (result.hasRemaining()) {
+      if (channel.read(result, slot.offset + result.position()) < 0) {
+        throw new IOException(String.format("staging '%s' truncated", file));
+      }
+    }
+    result.flip();
+    return result;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      Files.deleteIfExists(file.toPath());
+    }
+  }
+
+  /**
+   * A staged tile, or deletion.
+   */
+  static final class Slot {
+
+    static final Slot DELETED = new Slot(-1, 0);
+
+    private final long offset;
+    private final int length;
+
+    private Slot(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    boolean isDeleted() {
+      return this == DELETED;
+    }
+  }
+}
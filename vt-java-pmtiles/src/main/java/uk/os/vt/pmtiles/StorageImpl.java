@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.BiConsumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.os.vt.Entry;
+import uk.os.vt.LazyEntry;
+import uk.os.vt.Metadata;
+import uk.os.vt.MetadataProvider;
+import uk.os.vt.Storage;
+import uk.os.vt.StorageResult;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
+
+/**
+ * Tiles held in a single PMTiles archive file, read through memory mapping.
+ *
+ * <p>The archive cannot be changed in place, so tiles put or deleted are staged alongside it
+ * and seen by reads at once, then merged into a new archive that replaces the old on
+ * {@link #commit()} or {@link #close()}.  Uncommitted changes are lost if the process ends
+ * without either.
+ */
+public final class StorageImpl implements Storage, MetadataProvider {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StorageImpl.class.getSimpleName());
+  private static final int BATCH_SIZE = 256;
+
+  private final File file;
+  private final File stagingFile;
+  private final TileCodec codec;
+  // held to read, exclusively to replace the archive
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // held to stage changes, exclusively to commit them
+  private final ReadWriteLock writeLock = new ReentrantReadWriteLock();
+  private MappedArchive archive;
+  // null until a change is staged
+  private volatile Staging staging;
+  // null unless metadata is to be committed
+  private volatile Metadata pendingMetadata;
+
+  private StorageImpl(File file, TileCodec codec, MappedArchive archive) {
+    this.file = file;
+    this.stagingFile = new File(file.getPath() + ".staging");
+    this.codec = codec;
+    this.archive = archive;
+  }
+
+  @Override
+  public Observable<Entry> getEntries() {
+    return entries(0, TileId.first(TileId.MAX_ZOOM_LEVEL + 1));
+  }
+
+  @Override
+  public Observable<Entry> getEntries(int zoom) {
+    if (zoom < 0 || zoom > TileId.MAX_ZOOM_LEVEL) {
+      return Observable.empty();
+    }
+    return entries(TileId.first(zoom), TileId.first(zoom + 1));
+  }
+
+  private Observable<Entry> entries(long fromId, long toId) {
+    // read a batch at a time, so a commit between batches is seen rather than blocked
+    final BiConsumer<long[], Emitter<List<Entry>>> generator = (cursor, emitter) -> {
+      if (cursor[0] >= toId) {
+        emitter.onComplete();
+        return;
+      }
+      final List<Entry> batch = new ArrayList<>();
+      cursor[0] = readBatch(cursor[0], toId, batch);
+      emitter.onNext(batch);
+    };
+    return Flowable.generate(() -> new long[] {fromId}, generator)
+        .concatMapIterable(batch -> batch).toObservable();
+  }
+
+  /**
+   * Read tiles in tile id order.
+   *
+   * @param fromId the first tile id
+   * @param toId the tile id after the last
+   * @param result the tiles read, up to about a batch
+   * @return the tile id after the last considered
+   * @throws IOException thrown if the tiles cannot be read
+   */
+  private long readBatch(long fromId, long toId, List<Entry> result) throws IOException {
+    lock.readLock().lock();
+    try {
+      final List<long[]> archived = new ArrayList<>();
+      archive.forEach(fromId, toId, (tileId, offset, length) -> {
+        archived.add(new long[] {tileId, offset, length});
+        return archived.size() < BATCH_SIZE;
+      });
+      long bound = archived.size() < BATCH_SIZE ? toId
+          : archived.get(archived.size() - 1)[0] + 1;
+      final Staging current = staging;
+      final List<Map.Entry<Long, Staging.Slot>> staged = new ArrayList<>();
+      if (current != null) {
+        for (Map.Entry<Long, Staging.Slot> change : current.range(fromId, bound).entrySet()) {
+          if (staged.size() == BATCH_SIZE) {
+            bound = change.getKey();
+            break;
+          }
+          staged.add(change);
+        }
+      }
+
+      final PeekingIterator<Map.Entry<Long, Staging.Slot>> changes =
+          Iterators.peekingIterator(staged.iterator());
+      for (long[] tile : archived) {
+        if (tile[0] >= bound) {
+          break;
+        }
+        while (changes.hasNext() && changes.peek().getKey() < tile[0]) {
+          addStaged(current, changes.next(), result);
+        }
+        if (changes.hasNext() && changes.peek().getKey() == tile[0]) {
+          // staged changes replace archived tiles
+          addStaged(current, changes.next(), result);
+        } else {
+          result.add(toEntry(tile[0], archive.read(tile[1], (int) tile[2])));
+        }
+      }
+      while (changes.hasNext()) {
+        addStaged(current, changes.next(), result);
+      }
+      return bound;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void addStaged(Staging current, Map.Entry<Long, Staging.Slot> change,
+      List<Entry> result) throws IOException {
+    if (!change.getValue().isDeleted()) {
+      result.add(toEntry(change.getKey(), current.read(change.getValue())));
+    }
+  }
+
+  private Entry toEntry(long tileId, ByteBuffer data) {
+    final int[] zxy = TileId.toZxy(tileId);
+    final byte[] bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+    return new LazyEntry(zxy[0], zxy[1], zxy[2], bytes, codec);
+  }
+
+  @Override
+  public Observable<Entry> getEntry(int zoom, int col, int row) {
+    return Observable.defer(() -> {
+      final ByteBuffer data = getTileBuffer(zoom, col, row);
+      return data == null ? Observable.empty()
+          : Observable.just(toEntry(TileId.of(zoom, col, row), data));
+    });
+  }
+
+  /**
+   * Get the data of a tile without copying it, where it is held in the archive.
+   *
+   * <p>The buffer remains valid after the archive is replaced by a commit.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   * @return a read only buffer of the tile data as stored, compressed as the archive records,
+   *     or null if there is no such tile
+   * @throws IOException thrown if the tile cannot be read
+   */
+  public ByteBuffer getTileBuffer(int zoom, int col, int row) throws IOException {
+    if (!isValid(zoom, col, row)) {
+      return null;
+    }
+    final long tileId = TileId.of(zoom, col, row);
+    lock.readLock().lock();
+    try {
+      final Staging current = staging;
+      final Staging.Slot change = current == null ? null : current.get(tileId);
+      if (change != null) {
+        return change.isDeleted() ? null : current.read(change).asReadOnlyBuffer();
+      }
+      return archive.getTile(tileId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static boolean isValid(int zoom, int col, int row) {
+    return zoom >= 0 && zoom <= TileId.MAX_ZOOM_LEVEL && col >= 0 && row >= 0
+        && col < 1 << zoom && row < 1 << zoom;
+  }
+
+  @Override
+  public Observable<Integer> getMaxZoomLevel() {
+    return Observable.defer(() -> {
+      for (int zoom = TileId.MAX_ZOOM_LEVEL; zoom >= 0; zoom--) {
+        if (hasTiles(zoom)) {
+          return Observable.just(zoom);
+        }
+      }
+      return Observable.empty();
+    });
+  }
+
+  @Override
+  public Observable<Integer> getMinZoomLevel() {
+    return Observable.defer(() -> {
+      for (int zoom = 0; zoom <= TileId.MAX_ZOOM_LEVEL; zoom++) {
+        if (hasTiles(zoom)) {
+          return Observable.just(zoom);
+        }
+      }
+      return Observable.empty();
+    });
+  }
+
+  private boolean hasTiles(int zoom) throws IOException {
+    final long toId = TileId.first(zoom + 1);
+    final List<Entry> batch = new ArrayList<>();
+    // a batch may be empty where staged deletions hide archived tiles
+    for (long cursor = TileId.first(zoom); cursor < toId && batch.isEmpty(); ) {
+      cursor = readBatch(cursor, toId, batch);
+    }
+    return !batch.isEmpty();
+  }
+
+  @Override
+  public void putEntries(Observable<Entry> entries) {
+    // waits for every entry, so a failure, of a tile or of the entries, is thrown here
+    entries.doOnNext(this::add).ignoreElements().blockingAwait();
+  }
+
+  @Override
+  public Observable<StorageResult> put(Observable<Entry> entries) {
+    return entries.map(entry -> {
+      try {
+        add(entry);
+        return new StorageResult(entry);
+      } catch (final IOException ex) {
+        return new StorageResult(entry, new IOException("cannot put entry", ex));
+      }
+    });
+  }
+
+  @Override
+  public Observable<StorageResult> delete(Observable<Entry> entries) {
+    return entries.map(entry -> {
+      try {
+        remove(entry);
+        return new StorageResult(entry);
+      } catch (final IOException ex) {
+        return new StorageResult(entry, new IOException("cannot delete entry", ex));
+      }
+    });
+  }
+
+  private void add(Entry entry) throws IOException {
+    final byte[] data = codec.encode(entry.getVector());
+    writeLock.readLock().lock();
+    try {
+      getStaging().put(TileId.of(entry.getZoomLevel(), entry.getColumn(), entry.getRow()),
+          data);
+    } finally {
+      writeLock.readLock().unlock();
+    }
+  }
+
+  private void remove(Entry entry) throws IOException {
+    writeLock.readLock().lock();
+    try {
+      getStaging().delete(TileId.of(entry.getZoomLevel(), entry.getColumn(), entry.getRow()));
+    } finally {
+      writeLock.readLock().unlock();
+    }
+  }
+
+  private synchronized Staging getStaging() throws IOException {
+    if (staging == null) {
+      staging = Staging.create(stagingFile);
+    }
+    return staging;
+  }
+
+  @Override
+  public Single<Metadata> generateDefault() {
+    return Single.zip(getMinZoomLevel().first(-1), getMaxZoomLevel().first(-1),
+        (min, max) -> min < 0 ? new Metadata.Builder().build()
+            : new Metadata.Builder().setMinZoom(min).setMaxZoom(max).build());
+  }
+
+  @Override
+  public Disposable putMetadata(Single<Metadata> metadata) {
+    return metadata.subscribe(m -> pendingMetadata = m,
+        throwable -> LOG.error("problem putting metadata", throwable));
+  }
+
+  @Override
+  public Observable<Metadata> getMetadata() {
+    return Observable.defer(() -> {
+      final Metadata pending = pendingMetadata;
+      if (pending != null) {
+        return Observable.just(pending);
+      }
+      final byte[] raw;
+      lock.readLock().lock();
+      try {
+        raw = archive.getMetadata();
+      } finally {
+        lock.readLock().unlock();
+      }
+      return raw.length == 0 ? Observable.empty() : Observable.just(new Metadata.Builder()
+          .setTileJson(new String(raw, StandardCharsets.UTF_8)).build());
+    });
+  }
+
+  /**
+   * Commit staged changes, and metadata, to a new archive that replaces the old.
+   *
+   * <p>Changes are blocked whilst the archive is rewritten, reads only whilst it is replaced.
+   *
+   * @throws IOException thrown if the archive cannot be written, when the changes remain staged
+   */
+  public void commit() throws IOException {
+    writeLock.writeLock().lock();
+    try {
+      final Staging current = staging;
+      final Metadata metadata = pendingMetadata;
+      if ((current == null || current.isEmpty()) && metadata == null) {
+        return;
+      }
+      final File writing = new File(file.getPath() + ".writing");
+      try (ArchiveWriter writer = new ArchiveWriter(writing, Header.compressionOf(codec))) {
+        merge(archive, current, writer);
+        writer.finish(metadata == null ? archive.getMetadata()
+            : metadata.getTileJson().toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(writing.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (final IOException ex) {
+        Files.deleteIfExists(writing.toPath());
+        throw ex;
+      }
+      final MappedArchive replacement = MappedArchive.open(file);
+      lock.writeLock().lock();
+      try {
+        archive = replacement;
+        staging = null;
+        pendingMetadata = null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+      if (current != null) {
+        current.close();
+      }
+      LOG.info(String.format("committed %d tiles to '%s'",
+          replacement.getHeader().addressedTiles, file));
+    } finally {
+      writeLock.writeLock().unlock();
+    }
+  }
+
+  private static void merge(MappedArchive archive, Staging staging, ArchiveWriter writer)
+      throws IOException {
+    final Iterator<Map.Entry<Long, Staging.Slot>> all = staging == null
+        ? Collections.<Map.Entry<Long, Staging.Slot>>emptyIterator()
+        : staging.range(0, Long.MAX_VALUE).entrySet().iterator();
+    final PeekingIterator<Map.Entry<Long, Staging.Slot>> changes =
+        Iterators.peekingIterator(all);
+    archive.forEach(0, Long.MAX_VALUE, (tileId, offset, length) -> {
+      while (changes.hasNext() && changes.peek().getKey() < tileId) {
+        write(staging, changes.next(), writer);
+      }
+      if (changes.hasNext() && changes.peek().getKey() == tileId) {
+        write(staging, changes.next(), writer);
+      } else {
+        writer.add(tileId, archive.read(offset, length));
+      }
+      return true;
+    });
+    while (changes.hasNext()) {
+      write(staging, changes.next(), writer);
+    }
+  }
+
+  private static void write(Staging staging, Map.Entry<Long, Staging.Slot> change,
+      ArchiveWriter writer) throws IOException {
+    if (!change.getValue().isDeleted()) {
+      writer.add(change.getKey(), staging.read(change.getValue()));
+    }
+  }
+
+  @Override
+  public void close() throws Exception {
+    commit();
+  }
+
+  public static final class Builder {
+
+    private final File file;
+    private boolean createIfNotExist;
+    private TileCodec codec = TileCodecs.gzip();
+
+    public Builder(String file) throws IOException {
+      this.file = new File(file);
+    }
+
+    public Builder(File file) throws IOException {
+      this.file = file;
+    }
+
+    public Builder createIfNotExist() {
+      createIfNotExist = true;
+      return this;
+    }
+
+    /**
+     * Set gzip compression.
+     *
+     * <p>An archive holding tiles keeps the compression it was written with.
+     *
+     * @param gzipEnabled set true if tiles should be gzipped, default.
+     * @return this builder
+     */
+    public Builder setGzipCompression(boolean gzipEnabled) {
+      this.codec = gzipEnabled ? TileCodecs.gzip() : TileCodecs.none();
+      return this;
+    }
+
+    /**
+     * Build the storage.
+     *
+     * @return the tile storage
+     * @throws IOException thrown if the archive does not exist, unless to be created, or cannot
+     *     be read
+     */
+    public StorageImpl build() throws IOException {
+      if (!file.exists()) {
+        if (!createIfNotExist) {
+          throw new IOException(String.format("no such archive: '%s'", file));
+        }
+        LOG.info(String.format("creating archive '%s'", file));
+        try (ArchiveWriter writer = new ArchiveWriter(file, Header.compressionOf(codec))) {
+          writer.finish(new byte[0]);
+        }
+      }
+      final MappedArchive archive = MappedArchive.open(file);
+      TileCodec resolved = codec;
+      final Header header = archive.getHeader();
+      if (header.addressedTiles > 0
+          && header.tileCompression != Header.compressionOf(codec)) {
+        resolved = Header.codecOf(header.tileCompression);
+        LOG.warn("ignoring codec '{}' - archive records '{}'", codec.getName(),
+            resolved.getName());
+      }
+      final StorageImpl storage = new StorageImpl(file, resolved, archive);
+      if (storage.stagingFile.exists()) {
+        LOG.warn(String.format("discarding uncommitted changes in '%s'", storage.stagingFile));
+        Files.delete(storage.stagingFile.toPath());
+      }
+      return storage;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+/**
+ * PMTiles tile ids, tiles numbered zoom level by zoom level along a Hilbert curve.
+ *
+ * <p>Tiles near one another on the map are near one another in id, so in the archive.
+ */
+final class TileId {
+
+  static final int MAX_ZOOM_LEVEL = 22;
+
+  private TileId() {}
+
+  /**
+   * The id of a tile.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row, in the Google tiling scheme
+   * @return the id
+   */
+  static long of(int zoom, int col, int row) {
+    long id = first(zoom);
+    long x = col;
+    long y = row;
+    for (long s = zoom == 0 ? 0 : 1L << zoom - 1; s > 0; s >>= 1) {
+      final long rx = (x & s) != 0 ? 1 : 0;
+      final long ry = (y & s) != 0 ? 1 : 0;
+      id += s * s * ((3 * rx) ^ ry);
+      // only the bits below s matter from here on
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        final long swap = x;
+        x = y;
+        y = swap;
+      }
+    }
+    return id;
+  }
+
+  /**
+   * The tile of an id.
+   *
+   * @param id the id
+   * @return the zoom level, column and row
+   */
+  static int[] toZxy(long id) {
+    int zoom = 0;
+    while (zoom < 31 && first(zoom + 1) <= id) {
+      zoom++;
+    }
+    long position = id - first(zoom);
+    long x = 0;
+    long y = 0;
+    for (long s = 1; s < 1L << zoom; s <<= 1) {
+      final long rx = 1 & position / 2;
+      final long ry = 1 & (position ^ rx);
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        final long swap = x;
+        x = y;
+        y = swap;
+      }
+      x += s * rx;
+      y += s * ry;
+      position /= 4;
+    }
+    return new int[] {zoom, (int) x, (int) y};
+  }
+
+  /**
+   * The id of the first tile of a zoom level.
+   *
+   * @param zoom the zoom level
+   * @return the id
+   */
+  static long first(int zoom) {
+    return ((1L << 2 * zoom) - 1) / 3;
+  }
+}
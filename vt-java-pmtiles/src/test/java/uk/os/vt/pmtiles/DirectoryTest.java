@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Test;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.common.TileCodecs;
+
+public class DirectoryTest {
+
+  private static final TileCodec CODEC = TileCodecs.gzip();
+
+  @Test
+  public void testRepeatedTilesShareAnEntry() {
+    final Directory.Builder builder = new Directory.Builder();
+    builder.addTile(10, 0, 100);
+    builder.addTile(11, 0, 100);
+    builder.addTile(12, 0, 100);
+    builder.addTile(14, 0, 100);
+    builder.addTile(15, 100, 50);
+    final Directory directory = builder.build();
+
+    assertEquals(3, directory.size());
+    assertEquals(3, directory.getRunLength(0));
+    assertEquals(0, directory.find(12));
+    assertEquals(-1, directory.find(13));
+    assertEquals(1, directory.find(14));
+    assertEquals(2, directory.find(15));
+    assertEquals(-1, directory.find(16));
+    assertEquals(-1, directory.find(9));
+  }
+
+  @Test
+  public void testLeafEntriesCoverUpToTheNextEntry() {
+    final Directory.Builder builder = new Directory.Builder();
+    builder.add(0, 0, 10, 0);
+    builder.add(1000, 10, 10, 0);
+    final Directory directory = builder.build();
+
+    assertEquals(0, directory.find(999));
+    assertTrue(directory.isLeaf(directory.find(999)));
+    assertEquals(1, directory.find(5000));
+  }
+
+  @Test
+  public void testSerializeRoundTrip() throws IOException {
+    final Directory.Builder builder = new Directory.Builder();
+    long offset = 0;
+    for (int i = 0; i < 5000; i++) {
+      // mostly contiguous, some repeats
+      final boolean isRepeat = i % 7 == 0 && i > 0;
+      final int length = 20 + i % 13;
+      builder.addTile(i * 3L, isRepeat ? 0 : offset, isRepeat ? 20 : length);
+      if (!isRepeat) {
+        offset += length;
+      }
+    }
+    final Directory expected = builder.build();
+    final Directory actual =
+        Directory.deserialize(expected.serialize(CODEC, 0, expected.size()), CODEC);
+
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.getTileId(i), actual.getTileId(i));
+      assertEquals(expected.getOffset(i), actual.getOffset(i));
+      assertEquals(expected.getLength(i), actual.getLength(i));
+      assertEquals(expected.getRunLength(i), actual.getRunLength(i));
+    }
+
+    final Directory part = Directory.deserialize(expected.serialize(CODEC, 100, 200), CODEC);
+    assertEquals(100, part.size());
+    assertEquals(expected.getTileId(100), part.getTileId(0));
+    assertEquals(expected.getOffset(100), part.getOffset(0));
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptDirectory() throws IOException {
+    Directory.deserialize(CODEC.encode(new byte[] {(byte) 0xFF, (byte) 0xFF, 0x7F}), CODEC);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TileIdTest {
+
+  @Test
+  public void testKnownIds() {
+    assertEquals(0, TileId.of(0, 0, 0));
+    assertEquals(1, TileId.of(1, 0, 0));
+    assertEquals(2, TileId.of(1, 0, 1));
+    assertEquals(3, TileId.of(1, 1, 1));
+    assertEquals(4, TileId.of(1, 1, 0));
+    assertEquals(5, TileId.of(2, 0, 0));
+    assertEquals(19078479, TileId.of(12, 3423, 1763));
+  }
+
+  @Test
+  public void testFirstIdOfZoomLevel() {
+    assertEquals(0, TileId.first(0));
+    assertEquals(1, TileId.first(1));
+    assertEquals(5, TileId.first(2));
+    assertEquals(21, TileId.first(3));
+  }
+
+  @Test
+  public void testRoundTrip() {
+    for (int zoom = 0; zoom <= 5; zoom++) {
+      for (int col = 0; col < 1 << zoom; col++) {
+        for (int row = 0; row < 1 << zoom; row++) {
+          assertArrayEquals(new int[] {zoom, col, row}, TileId.toZxy(TileId.of(zoom, col, row)));
+        }
+      }
+    }
+    final int max = (1 << TileId.MAX_ZOOM_LEVEL) - 1;
+    assertArrayEquals(new int[] {TileId.MAX_ZOOM_LEVEL, max, 0},
+        TileId.toZxy(TileId.of(TileId.MAX_ZOOM_LEVEL, max, 0)));
+  }
+
+  @Test
+  public void testIdsOfZoomLevelAreContiguous() {
+    final int zoom = 4;
+    final boolean[] seen = new boolean[1 << 2 * zoom];
+    for (int col = 0; col < 1 << zoom; col++) {
+      for (int row = 0; row < 1 << zoom; row++) {
+        seen[(int) (TileId.of(zoom, col, row) - TileId.first(zoom))] = true;
+      }
+    }
+    for (boolean isSeen : seen) {
+      assertEquals(true, isSeen);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.pmtiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+import uk.os.vt.Entry;
+import uk.os.vt.Metadata;
+import uk.os.vt.StorageResult;
+
+public class StorageImplTest {
+
+  @Test(expected = IOException.class)
+  public void testMissingArchive() throws IOException {
+    new StorageImpl.Builder(provideNonExistentTestFileOrBlow()).build();
+  }
+
+  @Test
+  public void testPutIsSeenBeforeAndAfterCommit() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final Entry in = new Entry(3, 4, 5, getGarbageBytes("test"));
+    try (StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build()) {
+      assertFalse(storage.getEntries().blockingIterable().iterator().hasNext());
+
+      final StorageResult result = storage.put(Observable.just(in)).blockingFirst();
+      assertTrue(result.isCompleted());
+      assertEquals(in, storage.getEntry(3, 4, 5).blockingFirst());
+
+      storage.commit();
+      assertEquals(in, storage.getEntry(3, 4, 5).blockingFirst());
+      assertEquals(in, storage.getEntries().blockingFirst());
+      assertFalse(new File(file.getPath() + ".staging").exists());
+    }
+
+    try (StorageImpl storage = new StorageImpl.Builder(file).build()) {
+      assertEquals(in, storage.getEntry(3, 4, 5).blockingFirst());
+      assertEquals(3, (int) storage.getMinZoomLevel().blockingFirst());
+      assertEquals(3, (int) storage.getMaxZoomLevel().blockingFirst());
+      assertTrue(storage.getEntry(3, 5, 4).isEmpty().blockingGet());
+      assertNull(storage.getTileBuffer(3, 5, 4));
+    }
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final Entry kept = new Entry(2, 1, 1, getGarbageBytes("kept"));
+    final Entry deleted = new Entry(4, 4, 5, getGarbageBytes("deleted"));
+    try (StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build()) {
+      storage.putEntries(Observable.just(kept, deleted));
+      storage.commit();
+
+      assertTrue(storage.delete(Observable.just(deleted)).blockingFirst().isCompleted());
+      // seen as deleted before the commit
+      assertTrue(storage.getEntry(4, 4, 5).isEmpty().blockingGet());
+      assertEquals(2, (int) storage.getMaxZoomLevel().blockingFirst());
+    }
+
+    try (StorageImpl storage = new StorageImpl.Builder(file).build()) {
+      assertTrue(storage.getEntry(4, 4, 5).isEmpty().blockingGet());
+      assertEquals(1, (long) storage.getEntries().count().blockingGet());
+      assertEquals(kept, storage.getEntries().blockingFirst());
+    }
+  }
+
+  @Test
+  public void testPutEntriesFailuresAreThrown() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final Entry written = new Entry(3, 4, 5, getGarbageBytes("written"));
+    try (StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build()) {
+      try {
+        storage.putEntries(Observable.just(written)
+            .concatWith(Observable.error(new IOException("source failed"))));
+        fail("the failure of the entries should be thrown");
+      } catch (final RuntimeException expected) {
+        assertTrue(expected.getCause() instanceof IOException);
+      }
+      assertEquals(written, storage.getEntry(3, 4, 5).blockingFirst());
+    }
+  }
+
+  @Test
+  public void testManyTilesAreSplitIntoLeafDirectories() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final int zoom = 8;
+    final List<Entry> entries = new ArrayList<>();
+    for (int col = 0; col < 1 << zoom; col++) {
+      for (int row = 0; row < 1 << zoom; row++) {
+        // every other tile is the same, so repeated tile data is stored once
+        final String data = (col + row) % 2 == 0 ? "sea" : col + "/" + row;
+        entries.add(new Entry(zoom, col, row, getGarbageBytes(data)));
+      }
+    }
+    try (StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build()) {
+      storage.putEntries(Observable.fromIterable(entries));
+    }
+
+    try (StorageImpl storage = new StorageImpl.Builder(file).build()) {
+      final Header header = MappedArchive.open(file).getHeader();
+      assertEquals(entries.size(), header.addressedTiles);
+      assertEquals(entries.size() / 2 + 1, header.tileContents);
+      assertTrue("expected leaf directories", header.leafLength > 0);
+      assertEquals(zoom, header.minZoom);
+      assertEquals(zoom, header.maxZoom);
+
+      for (Entry entry : entries) {
+        assertEquals(entry, storage.getEntry(entry.getZoomLevel(), entry.getColumn(),
+            entry.getRow()).blockingFirst());
+      }
+      final List<Entry> all = storage.getEntries(zoom).toList().blockingGet();
+      assertEquals(entries.size(), all.size());
+      long last = -1;
+      for (Entry entry : all) {
+        final long tileId = TileId.of(entry.getZoomLevel(), entry.getColumn(), entry.getRow());
+        assertTrue("expected tile id order", tileId > last);
+        last = tileId;
+      }
+      assertTrue(storage.getEntries(zoom + 1).isEmpty().blockingGet());
+
+      // a staged change among archived tiles
+      final Entry changed = new Entry(zoom, 7, 9, getGarbageBytes("changed"));
+      storage.putEntries(Observable.just(changed));
+      assertTrue(storage.getEntries().toList().blockingGet().contains(changed));
+      assertEquals(entries.size(), (long) storage.getEntries().count().blockingGet());
+    }
+  }
+
+  @Test
+  public void testTileBufferIsReadOnly() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    try (StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist()
+        .setGzipCompression(false).build()) {
+      storage.putEntries(Observable.just(new Entry(1, 1, 0, getGarbageBytes("test"))));
+      storage.commit();
+      final ByteBuffer buffer = storage.getTileBuffer(1, 1, 0);
+      assertTrue(buffer.isReadOnly());
+      final byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      assertEquals("test", new String(bytes, StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testMetadata() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    final Metadata metadata = new Metadata.Builder().setName("name").setMinZoom(2)
+        .setMaxZoom(3).build();
+    try (StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build()) {
+      assertTrue(storage.getMetadata().isEmpty().blockingGet());
+      storage.putMetadata(Single.just(metadata));
+    }
+
+    try (StorageImpl storage = new StorageImpl.Builder(file).build()) {
+      assertJsonEquals(metadata, storage.getMetadata().blockingFirst());
+    }
+  }
+
+  @Test
+  public void testGenerateDefault() throws Exception {
+    final File file = provideNonExistentTestFileOrBlow();
+    try (StorageImpl storage = new StorageImpl.Builder(file).createIfNotExist().build()) {
+      storage.putEntries(Observable.just(new Entry(2, 1, 1, getGarbageBytes("a")),
+          new Entry(5, 1, 1, getGarbageBytes("b"))));
+      final Metadata metadata = storage.generateDefault().blockingGet();
+      assertEquals(2, metadata.getMinZoom());
+      assertEquals(5, metadata.getMaxZoom());
+    }
+  }
+
+  private static void assertJsonEquals(Metadata expected, Metadata actual) throws JSONException {
+    JSONAssert.assertEquals(expected.getTileJson().toString(), actual.getTileJson().toString(),
+        true);
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    provideNonExistentTestFileOrBlow();
+  }
+
+  private static File provideNonExistentTestFileOrBlow() {
+    final File file = new File("testing.pmtiles");
+    for (File each : new File[] {file, new File(file.getPath() + ".staging")}) {
+      if (each.exists() && !each.delete()) {
+        throw new IllegalStateException(
+            "problem with integration test environment - dirty filesystem");
+      }
+    }
+    return file;
+  }
+
+  private static byte[] getGarbageBytes(String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -23,8 +23,12 @@ public class Entry {
   private static final int MAX_ZOOM_LEVEL = 22;
   private static final int MIN_ZOOM_LEVEL = 0;
 
-  private static final long KILOBYTE = 1024;
-  private static final long MAX_VECTOR_TILE_SIZE = KILOBYTE * 500;
+  private static final int KILOBYTE = 1024;
+
+  /**
+   * The largest vector tile held, in bytes uncompressed.
+   */
+  public static final int MAX_VECTOR_TILE_SIZE = KILOBYTE * 500;
 
   private final int zoomLevel;
   private final int column;
@@ -38,7 +42,8 @@ public class Entry {
    * @param vector uncompressed vector tile bytes - no gzip compression etc.
    */
   public Entry(int zoomLevel, int column, int row, byte[] vector) {
-    validate(zoomLevel, column, row, vector);
+    validate(zoomLevel, column, row);
+    validate(vector);
     this.zoomLevel = zoomLevel;
     this.column = column;
     this.row = row;
@@ -46,12 +51,28 @@ public class Entry {
     this.vector = vector.clone();
   }
 
+  /**
+   * For subclasses that provide the vector data on demand by overriding {@link #vector()}.
+   *
+   * @param zoomLevel The zoom level
+   * @param column The tile in x direction
+   * @param row The tile in y direction
+   */
+  Entry(int zoomLevel, int column, int row) {
+    validate(zoomLevel, column, row);
+    this.zoomLevel = zoomLevel;
+    this.column = column;
+    this.row = row;
+    this.vector = null;
+  }
+
   @Override
   public boolean equals(Object other) {
     if (this == other) {
       return true;
     }
-    if (other == null || getClass() != other.getClass()) {
+    // subclasses only differ in when the vector data is materialised
+    if (!(other instanceof Entry)) {
       return false;
     }
 
@@ -66,15 +87,23 @@ public class Entry {
     if (row != entry.row) {
       return false;
     }
-    return Arrays.equals(vector, entry.vector);
+    if (isStoredAs(entry)) {
+      return true;
+    }
+    // a tile that cannot be uncompressed is only equal to the same stored data
+    final byte[] mine = vectorIfReadable();
+    final byte[] theirs = entry.vectorIfReadable();
+    return mine != null && theirs != null && Arrays.equals(mine, theirs);
   }
 
+  /**
+   * Hashed by key alone, so a lazily uncompressed entry is never uncompressed to be hashed.
+   */
   @Override
   public int hashCode() {
     int result = zoomLevel;
     result = 31 * result + column;
     result = 31 * result + row;
-    result = 31 * result + Arrays.hashCode(vector);
     return result;
   }
 
@@ -93,20 +122,53 @@ public class Entry {
   /**
    * Get the uncompressed version of vector data.
    *
+   * <p>An entry read from storage may hold its data as stored, uncompressing it here on first
+   * use.  A corrupt or oversized tile therefore fails here rather than when read.
+   *
    * @return uncompressed version of vector data
+   * @throws IllegalStateException thrown if data held as stored cannot be uncompressed
+   * @throws IllegalArgumentException thrown if the uncompressed data exceeds 500kb
    */
   public final byte[] getVector() {
     // shallow copy (else consider serialization and deserialization)
-    return vector.clone();
+    return vector().clone();
+  }
+
+  /**
+   * Get the uncompressed vector data without copying.
+   *
+   * @return the uncompressed vector data, which must not be modified
+   */
+  byte[] vector() {
+    return vector;
+  }
+
+  /**
+   * Get the uncompressed vector data without copying, if it can be read.
+   *
+   * @return the uncompressed vector data, or null if it cannot be uncompressed
+   */
+  byte[] vectorIfReadable() {
+    return vector;
+  }
+
+  /**
+   * Whether another entry holds the same data in the same stored form, known without
+   * uncompressing either.
+   *
+   * @param other the other entry
+   * @return true if known to hold the same data
+   */
+  boolean isStoredAs(Entry other) {
+    return false;
   }
 
   @Override
   public String toString() {
-    return "Entry{" + "zoomLevel=" + zoomLevel + ", column=" + column + ", row=" + row + ", vector="
-        + (vector == null ? null : Arrays.hashCode(vector)) + '}';
+    return "Entry{" + "zoomLevel=" + zoomLevel + ", column=" + column + ", row=" + row + '}';
   }
 
-  private static void validate(int zoomLevel, int column, int row, byte[] vector) {
+  private static void validate(int zoomLevel, int column, int row) {
     final boolean isValidZoomLevel = MIN_ZOOM_LEVEL <= zoomLevel && zoomLevel <= MAX_ZOOM_LEVEL;
     if (!isValidZoomLevel) {
       throw new IllegalArgumentException(String.format("invalid tile zoom level %d", zoomLevel));
@@ -121,7 +183,9 @@ public class Entry {
           String.format("invalid tile coordinate: %d %d %d (z x y)", zoomLevel, column, row);
       throw new IllegalArgumentException(message);
     }
+  }
 
+  static void validate(byte[] vector) {
     final boolean isValidVtSize = vector.length <= MAX_VECTOR_TILE_SIZE;
     if (!isValidVtSize) {
       throw new IllegalArgumentException("Illegal vector tile - bytes exceeds 500kb!");
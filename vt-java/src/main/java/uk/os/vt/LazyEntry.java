@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import uk.os.vt.common.CompressUtil;
+import uk.os.vt.common.TileCodec;
+import uk.os.vt.fluent.MvtDecoder;
+import uk.os.vt.mvt.adapt.jts.model.JtsMvt;
+
+/**
+ * An {@link Entry} that defers work until it is needed.
+ *
+ * <p>The tile data is held as supplied, gzip compressed or not, and only uncompressed on first
+ * access, so a corrupt tile fails in {@link #getVector()} rather than when read.  Hashing and
+ * {@link #toString()} never uncompress, nor does comparing entries holding the same stored data.
+ * The decoded {@link JtsMvt} is softly referenced so repeated decodes of the same entry are
+ * avoided whilst memory allows.
+ */
+public final class LazyEntry extends Entry {
+
+  private final byte[] data;
+  private final TileCodec codec;
+  private volatile byte[] vector;
+  private volatile SoftReference<JtsMvt> mvt = new SoftReference<>(null);
+
+  /**
+   * @param zoomLevel The zoom level
+   * @param column The tile in x direction
+   * @param row The tile in y direction
+   * @param data vector tile bytes - gzip compressed or uncompressed
+   */
+  public LazyEntry(int zoomLevel, int column, int row, byte[] data) {
+    this(zoomLevel, column, row, data, null);
+  }
+
+  /**
+   * @param zoomLevel The zoom level
+   * @param column The tile in x direction
+   * @param row The tile in y direction
+   * @param data vector tile bytes as stored
+   * @param codec the codec the data was stored with, null to detect gzip compression
+   */
+  public LazyEntry(int zoomLevel, int column, int row, byte[] data, TileCodec codec) {
+    super(zoomLevel, column, row);
+    // shallow copy (else consider serialization and deserialization)
+    this.data = data.clone();
+    this.codec = codec;
+  }
+
+  /**
+   * Get the decoded vector tile.
+   *
+   * <p>The result is shared between callers and must not be modified.
+   *
+   * @return the decoded vector tile
+   * @throws IOException thrown if the vector tile cannot be decoded
+   */
+  public JtsMvt getMvt() throws IOException {
+    JtsMvt result = mvt.get();
+    if (result == null) {
+      result = MvtDecoder.decode(vector());
+      mvt = new SoftReference<>(result);
+    }
+    return result;
+  }
+
+  @Override
+  byte[] vector() {
+    byte[] result = vector;
+    if (result == null) {
+      synchronized (this) {
+        result = vector;
+        if (result == null) {
+          result = uncompress(data, codec);
+          validate(result);
+          vector = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  byte[] vectorIfReadable() {
+    try {
+      return vector();
+    } catch (final IllegalStateException | IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  @Override
+  boolean isStoredAs(Entry other) {
+    if (!(other instanceof LazyEntry)) {
+      return false;
+    }
+    final LazyEntry lazy = (LazyEntry) other;
+    return codec == lazy.codec && Arrays.equals(data, lazy.data);
+  }
+
+  private static byte[] uncompress(byte[] data, TileCodec codec) {
+    try {
+      if (codec != null) {
+        return codec.decode(data);
+      }
+      final boolean isCompressed = data.length > 1 && CompressUtil.isGzipStream(data);
+      return isCompressed ? CompressUtil.getUncompressedFromGzip(data) : data;
+    } catch (final IOException ex) {
+      throw new IllegalStateException("cannot uncompress vector tile", ex);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.os.vt;
+
+import io.reactivex.Flowable;
+
+/**
+ * A tileset that can be scanned in key order - by zoom level, column then row in the Google
+ * tiling scheme - so that scans of several tilesets merge join without holding their keys.
+ */
+public interface ScanProvider {
+
+  /**
+   * Scan tiles in key order.
+   *
+   * @param after the key to resume after, exclusive, or null to scan from the first tile
+   * @return the entries, emitted as requested
+   */
+  Flowable<Entry> scanEntries(Key after);
+
+  /**
+   * Scan the tiles of a zoom level in key order.
+   *
+   * @param zoom the zoom level
+   * @param after the key to resume after, exclusive, or null to scan from the first tile
+   * @return the entries, emitted as requested
+   */
+  Flowable<Entry> scanEntries(int zoom, Key after);
+}
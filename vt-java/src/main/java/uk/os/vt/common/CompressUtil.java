@@ -16,19 +16,12 @@
 
 package uk.os.vt.common;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 public final class CompressUtil {
 
-  private static final Logger LOG = LoggerFactory.getLogger(CompressUtil.class.getSimpleName());
-  private static final int KIBIBYTE = 1024;
+  private static final GzipCodec GZIP = new GzipCodec();
 
   private CompressUtil(){}
 
@@ -53,30 +46,24 @@ public final class CompressUtil {
    * @throws IOException if an I/O error has occurred
    */
   public static byte[] getUncompressedFromGzip(byte[] compressed) throws IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    GZIPInputStream gzipper = null;
-    try {
-      byte[] buffer = new byte[KIBIBYTE];
-      gzipper = new GZIPInputStream(new ByteArrayInputStream(compressed));
-
-      int len;
-      while ((len = gzipper.read(buffer)) > 0) {
-        out.write(buffer, 0, len);
-      }
+    return GZIP.decode(compressed);
+  }
 
-      gzipper.close();
-      out.close();
-      return out.toByteArray();
-    } finally {
-      if (gzipper != null) {
-        try {
-          gzipper.close();
-        } catch (IOException ioException) {
-          LOG.error("cannot close gzip stream after uncompression failure", ioException);
-        }
-      }
-    }
+  /**
+   * Uncompress GZIP bytes into a caller supplied buffer.
+   *
+   * <p>The required buffer size can be obtained with
+   * {@link GzipCodec#getUncompressedLength(byte[])}.
+   *
+   * @param compressed the input byte array
+   * @param destination the buffer to write uncompressed bytes to
+   * @param offset the position in the buffer to start writing at
+   * @return the number of uncompressed bytes written
+   * @throws IOException if an I/O error has occurred or the buffer is too small
+   */
+  public static int getUncompressedFromGzip(byte[] compressed, byte[] destination, int offset)
+      throws IOException {
+    return GZIP.decode(compressed, destination, offset);
   }
 
   /**
@@ -87,23 +74,6 @@ public final class CompressUtil {
    * @throws IOException if an I/O error has occurred
    */
   public static byte[] getCompressedAsGzip(byte[] uncompressed) throws IOException {
-    GZIPOutputStream gzipper = null;
-
-    try {
-      // closing a ByteArrayOutputStream has no effect, thus ignored.
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      gzipper = new GZIPOutputStream(out);
-      gzipper.write(uncompressed);
-      gzipper.close();
-      return out.toByteArray();
-    } finally {
-      if (gzipper != null) {
-        try {
-          gzipper.close();
-        } catch (IOException ioException) {
-          LOG.error("cannot close gzip stream after compression failure", ioException);
-        }
-      }
-    }
+    return GZIP.encode(uncompressed);
   }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import uk.os.vt.Entry;
+
+/**
+ * Raw deflate compression, without GZIP framing, optionally primed with a preset dictionary.
+ *
+ * <p>Vector tiles of a tileset repeat the same layer names, keys and values.  A dictionary
+ * holding those common strings, see {@link TileCodecs#trainDictionary(Iterable, int)}, lets even
+ * small tiles compress well.
+ *
+ * <p>Streams inflating past {@link Entry#MAX_VECTOR_TILE_SIZE} are rejected, so a corrupt tile
+ * cannot exhaust memory.
+ *
+ * <p>Each thread reuses its own {@link Inflater} and {@link Deflater}.  Instances are thread
+ * safe.
+ */
+public final class DeflateCodec implements TileCodec {
+
+  private static final int KIBIBYTE = 1024;
+
+  /**
+   * Deflate cannot reference further back than its 32 KiB window.
+   */
+  public static final int MAX_DICTIONARY_LENGTH = 32 * KIBIBYTE;
+
+  private final int level;
+  private final byte[] dictionary;
+  private final ThreadLocal<Deflater> deflater;
+  private final ThreadLocal<Inflater> inflater;
+
+  /**
+   * A codec compressing at the given level.
+   *
+   * @param level 1 (fastest) to 9 (smallest), or {@link Deflater#DEFAULT_COMPRESSION}
+   * @param dictionary the preset dictionary, empty if none
+   */
+  public DeflateCodec(int level, byte[] dictionary) {
+    if (dictionary.length > MAX_DICTIONARY_LENGTH) {
+      throw new IllegalArgumentException("dictionary exceeds 32KiB");
+    }
+    this.level = Deflation.checkLevel(level);
+    this.dictionary = dictionary.clone();
+    this.deflater = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(DeflateCodec.this.level, true);
+      }
+    };
+    this.inflater = new ThreadLocal<Inflater>() {
+      @Override
+      protected Inflater initialValue() {
+        return new Inflater(true);
+      }
+    };
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public String getName() {
+    return TileCodecs.DEFLATE;
+  }
+
+  @Override
+  public byte[] getDictionary() {
+    return dictionary.clone();
+  }
+
+  @Override
+  public byte[] encode(byte[] uncompressed) {
+    final Deflater deflater = this.deflater.get();
+    deflater.reset();
+    if (dictionary.length > 0) {
+      deflater.setDictionary(dictionary);
+    }
+    deflater.setInput(uncompressed, 0, uncompressed.length);
+    deflater.finish();
+
+    byte[] buffer = Deflation.scratch(Deflation.bound(uncompressed.length));
+    int position = 0;
+    while (!deflater.finished()) {
+      if (position == buffer.length) {
+        buffer = Deflation.grow(buffer);
+      }
+      position += deflater.deflate(buffer, position, buffer.length - position);
+    }
+    return Arrays.copyOf(buffer, position);
+  }
+
+  @Override
+  public byte[] decode(byte[] compressed) throws IOException {
+    final Inflater inflater = this.inflater.get();
+    inflater.reset();
+    if (dictionary.length > 0) {
+      // raw streams carry no dictionary id, so the dictionary is always applied up front
+      inflater.setDictionary(dictionary);
+    }
+    inflater.setInput(compressed, 0, compressed.length);
+
+    byte[] buffer = Deflation.scratch(
+        (int) Math.min(compressed.length * 4L, Entry.MAX_VECTOR_TILE_SIZE + 1));
+    int position = 0;
+    try {
+      while (!inflater.finished()) {
+        if (position == buffer.length) {
+          buffer = Deflation.grow(buffer);
+        }
+        final int count = inflater.inflate(buffer, position, buffer.length - position);
+        position += count;
+        if (position > Entry.MAX_VECTOR_TILE_SIZE) {
+          throw new ZipException(String.format("deflate stream exceeds %d bytes",
+              Entry.MAX_VECTOR_TILE_SIZE));
+        }
+        if (count == 0 && !inflater.finished() && inflater.needsInput()) {
+          throw new EOFException("truncated deflate stream");
+        }
+      }
+    } catch (final DataFormatException ex) {
+      throw new ZipException("invalid deflate stream: " + ex.getMessage());
+    }
+    return Arrays.copyOf(buffer, position);
+  }
+}
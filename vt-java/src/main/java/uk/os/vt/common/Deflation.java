@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.os.vt.common;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Helpers shared by the codecs built on {@link Deflater} and {@link java.util.zip.Inflater}.
+ */
+final class Deflation {
+
+  private static final int KIBIBYTE = 1024;
+  // larger buffers are used once, not kept for the life of the thread
+  private static final int MAX_SCRATCH_LENGTH = 1024 * KIBIBYTE;
+
+  // a buffer per thread, shared by every codec, grown to the largest tile seen
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[16 * KIBIBYTE];
+    }
+  };
+
+  private Deflation() {}
+
+  /**
+   * Check a compression level.
+   *
+   * @param level 1 (fastest) to 9 (smallest), or {@link Deflater#DEFAULT_COMPRESSION}
+   * @return the level
+   * @throws IllegalArgumentException thrown if the level is invalid
+   */
+  static int checkLevel(int level) {
+    final boolean isValidLevel = level == Deflater.DEFAULT_COMPRESSION
+        || (Deflater.BEST_SPEED <= level && level <= Deflater.BEST_COMPRESSION);
+    if (!isValidLevel) {
+      throw new IllegalArgumentException(String.format("invalid compression level %d", level));
+    }
+    return level;
+  }
+
+  /**
+   * The worst case size of raw deflate output, as zlib deflateBound.
+   */
+  static int bound(int length) {
+    return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+  }
+
+  /**
+   * The scratch buffer of this thread, at least the given length.
+   *
+   * <p>Its contents are only valid until the next call on the same thread.
+   */
+  static byte[] scratch(int length) {
+    byte[] buffer = SCRATCH.get();
+    if (buffer.length < length) {
+      buffer = new byte[length];
+      keep(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Double the scratch buffer of this thread, keeping its contents.
+   */
+  static byte[] grow(byte[] buffer) {
+    final byte[] result = Arrays.copyOf(buffer, buffer.length * 2);
+    keep(result);
+    return result;
+  }
+
+  private static void keep(byte[] buffer) {
+    if (buffer.length <= MAX_SCRATCH_LENGTH) {
+      SCRATCH.set(buffer);
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import uk.os.vt.Entry;
+
+/**
+ * GZIP compression working directly on byte arrays.
+ *
+ * <p>Each thread reuses its own {@link Inflater}, {@link Deflater} and {@link CRC32} rather than
+ * allocating native zlib state per tile.  Uncompressed output is sized from the ISIZE field of
+ * the GZIP trailer, so a single exactly sized array is produced without intermediate copies.
+ * Output larger than any vector tile grows as it is inflated instead.
+ *
+ * <p>Instances are thread safe.
+ *
+ * <p>Source: https://tools.ietf.org/html/rfc1952
+ */
+public final class GzipCodec implements TileCodec {
+
+  private static final int HEADER_LENGTH = 10;
+  private static final int TRAILER_LENGTH = 8;
+
+  private static final int FLAG_HCRC = 2;
+  private static final int FLAG_EXTRA = 4;
+  private static final int FLAG_NAME = 8;
+  private static final int FLAG_COMMENT = 16;
+
+  private static final byte DEFLATE = 8;
+  private static final byte UNKNOWN_OS = (byte) 255;
+
+  // the trailer is untrusted input, so no more is allocated up front than any tile needs
+  private static final int MAX_PRESIZED_LENGTH = Entry.MAX_VECTOR_TILE_SIZE;
+  private static final int KIBIBYTE = 1024;
+
+  private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+
+  private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {
+    @Override
+    protected CRC32 initialValue() {
+      return new CRC32();
+    }
+  };
+
+  private final int level;
+  private final ThreadLocal<Deflater> deflater;
+
+  /**
+   * A codec compressing at the default level.
+   */
+  public GzipCodec() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * A codec compressing at the given level.
+   *
+   * @param level 1 (fastest) to 9 (smallest), or {@link Deflater#DEFAULT_COMPRESSION}
+   */
+  public GzipCodec(int level) {
+    this.level = Deflation.checkLevel(level);
+    this.deflater = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(GzipCodec.this.level, true);
+      }
+    };
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public String getName() {
+    return TileCodecs.GZIP;
+  }
+
+  @Override
+  public byte[] getDictionary() {
+    return new byte[0];
+  }
+
+  /**
+   * Read the uncompressed length recorded in the GZIP trailer.
+   *
+   * <p>The value is only reliable for single member streams of less than 4 GiB.
+   *
+   * @param compressed the GZIP bytes
+   * @return the uncompressed length
+   * @throws IOException if the bytes are too short to be GZIP
+   */
+  public static int getUncompressedLength(byte[] compressed) throws IOException {
+    if (compressed.length < HEADER_LENGTH + TRAILER_LENGTH) {
+      throw new EOFException("truncated gzip stream");
+    }
+    return readIntLe(compressed, compressed.length - 4);
+  }
+
+  /**
+   * Uncompress GZIP bytes.
+   *
+   * @param compressed the GZIP bytes
+   * @return an exactly sized array of uncompressed bytes
+   * @throws IOException if the bytes are not valid GZIP
+   */
+  @Override
+  public byte[] decode(byte[] compressed) throws IOException {
+    final int length = getUncompressedLength(compressed);
+    final boolean isPresizable = 0 <= length && length <= MAX_PRESIZED_LENGTH;
+    if (isPresizable) {
+      final byte[] result = new byte[length];
+      final int actual = inflate(compressed, result, 0, length);
+      if (actual == length) {
+        return result;
+      }
+    }
+    // multiple members, an oversized or an unreliable trailer - take the slow but general route
+    return decodeStream(compressed);
+  }
+
+  /**
+   * Uncompress GZIP bytes into a caller supplied buffer.
+   *
+   * @param compressed the GZIP bytes
+   * @param destination the buffer to write uncompressed bytes to
+   * @param offset the position in the buffer to start writing at
+   * @return the number of uncompressed bytes written
+   * @throws IOException if the bytes are not valid single member GZIP or the buffer is too small
+   */
+  public int decode(byte[] compressed, byte[] destination, int offset) throws IOException {
+    final int actual = inflate(compressed, destination, offset, destination.length - offset);
+    if (actual < 0) {
+      throw new ZipException("unsupported gzip stream - multiple members or bad trailer");
+    }
+    return actual;
+  }
+
+  /**
+   * Compress bytes as GZIP.
+   *
+   * @param uncompressed the bytes to compress
+   * @return an exactly sized array of GZIP bytes
+   */
+  @Override
+  public byte[] encode(byte[] uncompressed) {
+    final Deflater deflater = this.deflater.get();
+    final CRC32 crc = CRC.get();
+    deflater.reset();
+    crc.reset();
+    crc.update(uncompressed, 0, uncompressed.length);
+
+    byte[] buffer = Deflation.scratch(HEADER_LENGTH + Deflation.bound(uncompressed.length)
+        + TRAILER_LENGTH);
+    buffer[0] = (byte) GZIPInputStream.GZIP_MAGIC;
+    buffer[1] = (byte) (GZIPInputStream.GZIP_MAGIC >> 8);
+    buffer[2] = DEFLATE;
+    Arrays.fill(buffer, 3, HEADER_LENGTH - 1, (byte) 0);
+    buffer[HEADER_LENGTH - 1] = UNKNOWN_OS;
+
+    deflater.setInput(uncompressed, 0, uncompressed.length);
+    deflater.finish();
+    int position = HEADER_LENGTH;
+    while (!deflater.finished()) {
+      if (position == buffer.length - TRAILER_LENGTH) {
+        buffer = Deflation.grow(buffer);
+      }
+      position += deflater.deflate(buffer, position, buffer.length - TRAILER_LENGTH - position);
+    }
+
+    writeIntLe(buffer, position, (int) crc.getValue());
+    writeIntLe(buffer, position + 4, uncompressed.length);
+    return Arrays.copyOf(buffer, position + TRAILER_LENGTH);
+  }
+
+  /**
+   * Inflate a single member GZIP stream.
+   *
+   * @return the number of bytes written, or -1 if the stream has further members or the trailer
+   *         does not match the data
+   */
+  private static int inflate(byte[] compressed, byte[] destination, int offset, int length)
+      throws IOException {
+    final int start = skipHeader(compressed);
+    final Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(compressed, start, compressed.length - start);
+
+    int written = 0;
+    try {
+      while (!inflater.finished()) {
+        final int count = inflater.inflate(destination, offset + written, length - written);
+        written += count;
+        if (count == 0 && !inflater.finished()) {
+          if (inflater.needsInput() || inflater.needsDictionary()) {
+            throw new EOFException("truncated gzip stream");
+          }
+          if (written == length) {
+            // the destination is full but there is more data
+            return -1;
+          }
+        }
+      }
+    } catch (final DataFormatException ex) {
+      throw new ZipException("invalid gzip stream: " + ex.getMessage());
+    }
+
+    if (inflater.getRemaining() != TRAILER_LENGTH) {
+      return -1;
+    }
+
+    final CRC32 crc = CRC.get();
+    crc.reset();
+    crc.update(destination, offset, written);
+    final int trailer = compressed.length - TRAILER_LENGTH;
+    if (readIntLe(compressed, trailer) != (int) crc.getValue()) {
+      throw new ZipException("corrupt gzip stream - crc mismatch");
+    }
+    return readIntLe(compressed, trailer + 4) == written ? written : -1;
+  }
+
+  private static int skipHeader(byte[] compressed) throws IOException {
+    if (compressed.length < HEADER_LENGTH + TRAILER_LENGTH) {
+      throw new EOFException("truncated gzip stream");
+    }
+    if (!CompressUtil.isGzipStream(compressed)) {
+      throw new ZipException("not in gzip format");
+    }
+    if (compressed[2] != DEFLATE) {
+      throw new ZipException("unsupported compression method");
+    }
+
+    final int flags = compressed[3] & 0xff;
+    int position = HEADER_LENGTH;
+    if ((flags & FLAG_EXTRA) != 0) {
+      position += 2 + ((compressed[position] & 0xff) | (compressed[position + 1] & 0xff) << 8);
+    }
+    if ((flags & FLAG_NAME) != 0) {
+      position = skipZeroTerminated(compressed, position);
+    }
+    if ((flags & FLAG_COMMENT) != 0) {
+      position = skipZeroTerminated(compressed, position);
+    }
+    if ((flags & FLAG_HCRC) != 0) {
+      position += 2;
+    }
+    if (position > compressed.length - TRAILER_LENGTH) {
+      throw new EOFException("truncated gzip header");
+    }
+    return position;
+  }
+
+  private static int skipZeroTerminated(byte[] bytes, int position) throws EOFException {
+    while (position < bytes.length) {
+      if (bytes[position++] == 0) {
+        return position;
+      }
+    }
+    throw new EOFException("truncated gzip header");
+  }
+
+  private static byte[] decodeStream(byte[] compressed) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+    try (GZIPInputStream gzipper = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      final byte[] buffer = new byte[KIBIBYTE * 4];
+      int len;
+      while ((len = gzipper.read(buffer)) > 0) {
+        out.write(buffer, 0, len);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static int readIntLe(byte[] bytes, int position) {
+    return (bytes[position] & 0xff)
+        | (bytes[position + 1] & 0xff) << 8
+        | (bytes[position + 2] & 0xff) << 16
+        | (bytes[position + 3] & 0xff) << 24;
+  }
+
+  private static void writeIntLe(byte[] bytes, int position, int value) {
+    bytes[position] = (byte) value;
+    bytes[position + 1] = (byte) (value >> 8);
+    bytes[position + 2] = (byte) (value >> 16);
+    bytes[position + 3] = (byte) (value >> 24);
+  }
+}
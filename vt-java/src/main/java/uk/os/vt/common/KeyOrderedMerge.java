@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.os.vt.common;
+
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.BiConsumer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import uk.os.vt.Entry;
+
+/**
+ * Merges key ordered scans, reading ahead a little from each, so that however large the
+ * sources only a few tiles of each are held.
+ */
+public final class KeyOrderedMerge {
+
+  /**
+   * Key order - by zoom level, column then row.
+   */
+  public static final Comparator<Entry> KEY_ORDER = Comparator
+      .comparingInt(Entry::getZoomLevel)
+      .thenComparingInt(Entry::getColumn)
+      .thenComparingInt(Entry::getRow);
+
+  private KeyOrderedMerge() {}
+
+  /**
+   * Merge key ordered sources into one key ordered source.
+   *
+   * @param sources the sources, each in key order
+   * @param prefetch the number of tiles read ahead from each source
+   * @return every entry of every source, in key order, tiles of equal keys in source order
+   */
+  public static Flowable<Entry> merge(List<Flowable<Entry>> sources, int prefetch) {
+    if (sources.size() == 1) {
+      return sources.get(0);
+    }
+    final BiConsumer<Heads, Emitter<Entry>> generator = (heads, emitter) -> {
+      final Head head = heads.poll();
+      if (head == null) {
+        emitter.onComplete();
+      } else {
+        emitter.onNext(head.entry);
+      }
+    };
+    return Flowable.generate(() -> new Heads(sources, prefetch), generator, Heads::close);
+  }
+
+  /**
+   * Merge key ordered sources, grouping the tiles of each key.
+   *
+   * @param sources the sources, each in key order
+   * @param prefetch the number of tiles read ahead from each source
+   * @return the tiles of each key, in key order, each group in source order
+   */
+  public static Flowable<List<Entry>> mergeByKey(List<Flowable<Entry>> sources, int prefetch) {
+    final BiConsumer<Heads, Emitter<List<Entry>>> generator = (heads, emitter) -> {
+      final Head first = heads.poll();
+      if (first == null) {
+        emitter.onComplete();
+        return;
+      }
+      List<Entry> group = Collections.singletonList(first.entry);
+      while (heads.isNext(first.entry)) {
+        if (group.size() == 1) {
+          group = new ArrayList<>(group);
+        }
+        group.add(heads.poll().entry);
+      }
+      emitter.onNext(group);
+    };
+    return Flowable.generate(() -> new Heads(sources, prefetch), generator, Heads::close);
+  }
+
+  /**
+   * The next tile of each source.
+   */
+  private static final class Heads {
+
+    private final List<Iterator<Entry>> iterators = new ArrayList<>();
+    // equal keys are taken in source order
+    private final PriorityQueue<Head> heads = new PriorityQueue<>(
+        Comparator.<Head, Entry>comparing(head -> head.entry, KEY_ORDER)
+            .thenComparingInt(head -> head.source));
+
+    Heads(List<Flowable<Entry>> sources, int prefetch) {
+      for (Flowable<Entry> source : sources) {
+        final Iterator<Entry> iterator = source.blockingIterable(prefetch).iterator();
+        iterators.add(iterator);
+        advance(iterators.size() - 1);
+      }
+    }
+
+    /**
+     * Take the next tile, reading the next of its source.
+     *
+     * @return the next tile, or null once every source is exhausted
+     */
+    Head poll() {
+      final Head head = heads.poll();
+      if (head != null) {
+        advance(head.source);
+      }
+      return head;
+    }
+
+    boolean isNext(Entry key) {
+      final Head head = heads.peek();
+      return head != null && KEY_ORDER.compare(head.entry, key) == 0;
+    }
+
+    void close() {
+      for (Iterator<Entry> iterator : iterators) {
+        if (iterator instanceof Disposable) {
+          ((Disposable) iterator).dispose();
+        }
+      }
+    }
+
+    private void advance(int source) {
+      final Iterator<Entry> iterator = iterators.get(source);
+      if (iterator.hasNext()) {
+        heads.add(new Head(iterator.next(), source));
+      }
+    }
+  }
+
+  private static final class Head {
+
+    private final Entry entry;
+    private final int source;
+
+    Head(Entry entry, int source) {
+      this.entry = entry;
+      this.source = source;
+    }
+  }
+}
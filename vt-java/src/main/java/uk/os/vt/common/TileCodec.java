@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.common;
+
+import java.io.IOException;
+
+/**
+ * Compression applied to vector tiles at rest.
+ *
+ * <p>Implementations must be thread safe.  See {@link TileCodecs} for the available codecs.
+ */
+public interface TileCodec {
+
+  /**
+   * The name recorded in tileset metadata so readers can select the codec.
+   *
+   * @return the codec name, e.g. gzip
+   */
+  String getName();
+
+  /**
+   * The preset dictionary, which must be recorded alongside the name.
+   *
+   * @return the dictionary, or an empty array if none is used
+   */
+  byte[] getDictionary();
+
+  /**
+   * Compress a vector tile.
+   *
+   * @param uncompressed the vector tile bytes
+   * @return the compressed bytes
+   * @throws IOException if an I/O error has occurred
+   */
+  byte[] encode(byte[] uncompressed) throws IOException;
+
+  /**
+   * Uncompress a vector tile.
+   *
+   * @param compressed the compressed bytes
+   * @return the vector tile bytes
+   * @throws IOException if the bytes cannot be uncompressed
+   */
+  byte[] decode(byte[] compressed) throws IOException;
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Factory methods for {@link TileCodec}s.
+ *
+ * <p>A store records the codec name under {@link #METADATA_COMPRESSION}, and any dictionary
+ * under {@link #METADATA_DICTIONARY}, so that readers can use {@link #forName(String, byte[])}
+ * to select the codec automatically.
+ *
+ * <p>Note: zstd was considered but requires a native library which would rule out Android.  A
+ * raw deflate stream primed with a trained dictionary gives most of the benefit for small
+ * repetitive tiles with the zlib shipped by every JVM.
+ */
+public final class TileCodecs {
+
+  public static final String METADATA_COMPRESSION = "compression";
+  public static final String METADATA_DICTIONARY = "compression_dictionary";
+
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  public static final String NONE = "none";
+
+  private static final int GRAM_LENGTH = 8;
+  private static final int SEGMENT_LENGTH = 32;
+
+  private static final TileCodec GZIP_DEFAULT = new GzipCodec();
+  private static final TileCodec IDENTITY = new TileCodec() {
+    @Override
+    public String getName() {
+      return NONE;
+    }
+
+    @Override
+    public byte[] getDictionary() {
+      return new byte[0];
+    }
+
+    @Override
+    public byte[] encode(byte[] uncompressed) {
+      return uncompressed.clone();
+    }
+
+    @Override
+    public byte[] decode(byte[] compressed) {
+      return compressed.clone();
+    }
+  };
+
+  private TileCodecs() {}
+
+  /**
+   * GZIP at the default level - the MBTiles convention for vector tiles.
+   *
+   * @return the codec
+   */
+  public static TileCodec gzip() {
+    return GZIP_DEFAULT;
+  }
+
+  /**
+   * GZIP at the given level.
+   *
+   * @param level 1 (fastest) to 9 (smallest)
+   * @return the codec
+   */
+  public static TileCodec gzip(int level) {
+    return new GzipCodec(level);
+  }
+
+  /**
+   * Raw deflate without a dictionary.
+   *
+   * @param level 1 (fastest) to 9 (smallest)
+   * @return the codec
+   */
+  public static TileCodec deflate(int level) {
+    return new DeflateCodec(level, new byte[0]);
+  }
+
+  /**
+   * Raw deflate primed with a preset dictionary.
+   *
+   * @param level 1 (fastest) to 9 (smallest)
+   * @param dictionary the dictionary, at most 32 KiB
+   * @return the codec
+   */
+  public static TileCodec deflate(int level, byte[] dictionary) {
+    return new DeflateCodec(level, dictionary);
+  }
+
+  /**
+   * No compression.
+   *
+   * @return the codec
+   */
+  public static TileCodec none() {
+    return IDENTITY;
+  }
+
+  /**
+   * Get the codec recorded in metadata.
+   *
+   * @param name the codec name
+   * @param dictionary the recorded dictionary, empty or null if none
+   * @return the codec, using the default level to compress
+   * @throws IllegalArgumentException if the codec is unknown
+   */
+  public static TileCodec forName(String name, byte[] dictionary) {
+    if (GZIP.equals(name)) {
+      return gzip();
+    } else if (DEFLATE.equals(name)) {
+      return deflate(Deflater.DEFAULT_COMPRESSION, dictionary == null ? new byte[0] : dictionary);
+    } else if (NONE.equals(name)) {
+      return none();
+    }
+    throw new IllegalArgumentException(String.format("unknown codec '%s'", name));
+  }
+
+  /**
+   * Train a preset dictionary on a sample of the tileset.
+   *
+   * <p>Samples are cut into segments, each scored by how many samples share its 8 byte
+   * substrings.  The best segments are kept, with the most valuable placed last where deflate
+   * can reference them most cheaply.
+   *
+   * @param samples uncompressed vector tiles representative of the tileset, iterated once
+   * @param maxLength the dictionary size, at most 32 KiB
+   * @return the dictionary
+   */
+  public static byte[] trainDictionary(Iterable<byte[]> samples, int maxLength) {
+    if (maxLength <= 0 || maxLength > DeflateCodec.MAX_DICTIONARY_LENGTH) {
+      throw new IllegalArgumentException("dictionary length must be between 1 and 32KiB");
+    }
+    // both passes need the samples, which may only be readable once
+    final List<byte[]> sampled = new ArrayList<>();
+    for (byte[] sample : samples) {
+      sampled.add(sample);
+    }
+
+    // document frequency of each substring - common to many tiles beats common to one tile
+    final Map<Long, Integer> frequencies = new HashMap<>();
+    for (byte[] sample : sampled) {
+      final Set<Long> seen = new HashSet<>();
+      for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+        final long gram = gram(sample, i);
+        if (seen.add(gram)) {
+          final Integer count = frequencies.get(gram);
+          frequencies.put(gram, count == null ? 1 : count + 1);
+        }
+      }
+    }
+
+    final List<Segment> segments = new ArrayList<>();
+    final Set<Long> chosen = new HashSet<>();
+    for (byte[] sample : sampled) {
+      for (int start = 0; start < sample.length; start += SEGMENT_LENGTH / 2) {
+        final int end = Math.min(sample.length, start + SEGMENT_LENGTH);
+        long score = 0;
+        for (int i = start; i + GRAM_LENGTH <= end; i++) {
+          final Integer count = frequencies.get(gram(sample, i));
+          // substrings found in only one sample are of no use to other tiles
+          score += count > 1 ? count : 0;
+        }
+        if (score > 0) {
+          segments.add(new Segment(Arrays.copyOfRange(sample, start, end), score));
+        }
+      }
+    }
+    // highest score first
+    Collections.sort(segments, (first, second) -> Long.compare(second.score, first.score));
+
+    final List<byte[]> selected = new ArrayList<>();
+    int length = 0;
+    for (Segment segment : segments) {
+      if (length + segment.bytes.length > maxLength) {
+        continue;
+      }
+      final long key = segment.bytes.length >= GRAM_LENGTH ? gram(segment.bytes, 0)
+          : Arrays.hashCode(segment.bytes);
+      if (chosen.add(key)) {
+        selected.add(segment.bytes);
+        length += segment.bytes.length;
+      }
+    }
+
+    // best segments last
+    final byte[] result = new byte[length];
+    int position = length;
+    for (byte[] bytes : selected) {
+      position -= bytes.length;
+      System.arraycopy(bytes, 0, result, position, bytes.length);
+    }
+    return result;
+  }
+
+  private static long gram(byte[] bytes, int offset) {
+    long result = 0;
+    for (int i = 0; i < GRAM_LENGTH; i++) {
+      result = result << 8 | (bytes[offset + i] & 0xff);
+    }
+    return result;
+  }
+
+  private static final class Segment {
+
+    private final byte[] bytes;
+    private final long score;
+
+    Segment(byte[] bytes, long score) {
+      this.bytes = bytes;
+      this.score = score;
+    }
+  }
+}
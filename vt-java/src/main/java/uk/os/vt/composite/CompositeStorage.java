@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.composite;
+
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.os.vt.Entry;
+import uk.os.vt.Key;
+import uk.os.vt.Metadata;
+import uk.os.vt.MetadataProvider;
+import uk.os.vt.ScanProvider;
+import uk.os.vt.Storage;
+import uk.os.vt.StorageResult;
+import uk.os.vt.common.KeyOrderedMerge;
+
+/**
+ * A read only {@link Storage} federating several tilesets.
+ *
+ * <p>A tile is fetched from every source covering its zoom level, in parallel, and the layers
+ * of each are merged into a single tile.  The merge works on the protobuf encoding, so features
+ * are not decoded.  Should more than one source provide a layer with the same name then the
+ * source added first wins.
+ *
+ * <p>Merged tiles are cached.  Call {@link #invalidate()} when an underlying tileset changes.
+ * A merge still running when invalidated is not cached.
+ *
+ * <p>Should a merged tile exceed {@link Entry#MAX_VECTOR_TILE_SIZE} it fails with an
+ * {@link IOException}.
+ */
+public final class CompositeStorage implements Storage, MetadataProvider {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompositeStorage.class);
+
+  private static final int MAX_ZOOM_LEVEL = 22;
+  private static final int MIN_ZOOM_LEVEL = 0;
+  private static final int DEFAULT_CACHE_SIZE = 1024;
+  private static final int SCAN_PREFETCH = 128;
+
+  public static final class Builder {
+
+    private final List<Source> sources = new ArrayList<>();
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private Scheduler scheduler = Schedulers.io();
+
+    public Builder() {}
+
+    /**
+     * Add a source covering all zoom levels.
+     *
+     * @param storage the source, in order of precedence
+     * @return this builder
+     */
+    public Builder addSource(Storage storage) {
+      return addSource(storage, MIN_ZOOM_LEVEL, MAX_ZOOM_LEVEL);
+    }
+
+    /**
+     * Add a source restricted to a zoom range.
+     *
+     * @param storage the source, in order of precedence
+     * @param minZoom the lowest zoom level, inclusive, the source contributes to
+     * @param maxZoom the highest zoom level, inclusive, the source contributes to
+     * @return this builder
+     */
+    public Builder addSource(Storage storage, int minZoom, int maxZoom) {
+      final boolean isValidZoom = MIN_ZOOM_LEVEL <= minZoom && minZoom <= maxZoom
+          && maxZoom <= MAX_ZOOM_LEVEL;
+      if (!isValidZoom) {
+        throw new IllegalArgumentException(
+            String.format("invalid zoom range: %d - %d", minZoom, maxZoom));
+      }
+      sources.add(new Source(storage, minZoom, maxZoom));
+      return this;
+    }
+
+    /**
+     * Set the number of merged tiles to cache.
+     *
+     * @param cacheSize the maximum number of tiles to hold, zero to disable caching
+     * @return this builder
+     */
+    public Builder setCacheSize(int cacheSize) {
+      if (cacheSize < 0) {
+        throw new IllegalArgumentException("cache size must not be negative");
+      }
+      this.cacheSize = cacheSize;
+      return this;
+    }
+
+    /**
+     * Set the scheduler the sources are queried on.
+     *
+     * @param scheduler defaults to {@link Schedulers#io()}
+     * @return this builder
+     */
+    public Builder setScheduler(Scheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Build the composite storage.
+     *
+     * @return the composite storage
+     */
+    public CompositeStorage build() {
+      if (sources.isEmpty()) {
+        throw new IllegalStateException("at least one source is required");
+      }
+      return new CompositeStorage(this);
+    }
+  }
+
+  private final List<Source> sources;
+  private final Scheduler scheduler;
+  private final TileCache cache;
+
+  private CompositeStorage(Builder builder) {
+    sources = Collections.unmodifiableList(new ArrayList<>(builder.sources));
+    scheduler = builder.scheduler;
+    cache = new TileCache(builder.cacheSize);
+  }
+
+  /**
+   * Discard all cached tiles, and any merge in progress from being cached.
+   */
+  public void invalidate() {
+    cache.clear();
+  }
+
+  /**
+   * Discard a cached tile, and any merge in progress from being cached.
+   *
+   * @param zoom the zoom level
+   * @param col the column
+   * @param row the row
+   */
+  public void invalidate(int zoom, int col, int row) {
+    cache.remove(new Key(zoom, col, row));
+  }
+
+  /**
+   * Closes every source.
+   *
+   * @throws Exception the first problem encountered closing a source
+   */
+  @Override
+  public void close() throws Exception {
+    Exception problem = null;
+    for (Source source : sources) {
+      try {
+        source.storage.close();
+      } catch (final Exception ex) {
+        LOG.error("problem closing source", ex);
+        if (problem == null) {
+          problem = ex;
+        }
+      }
+    }
+    cache.clear();
+    if (problem != null) {
+      throw problem;
+    }
+  }
+
+  /**
+   * Every tile, merged.
+   *
+   * <p>Where every source is a {@link ScanProvider} their key ordered scans are merged as they
+   * stream, the tiles of each key merged in place, so each tile is read once and only a few are
+   * held at a time.  Otherwise the keys of every source are collected, then each tile looked up.
+   *
+   * @return the merged tiles, in key order where every source is scannable
+   */
+  @Override
+  public Observable<Entry> getEntries() {
+    if (isScannable(sources)) {
+      final List<Flowable<Entry>> scans = new ArrayList<>(sources.size());
+      for (Source source : sources) {
+        scans.add(source.scan());
+      }
+      return mergeScans(scans);
+    }
+    return Observable.fromIterable(sources)
+        .concatMap(source -> source.storage.getEntries()
+            .filter(entry -> source.covers(entry.getZoomLevel())))
+        .map(entry -> new Key(entry.getZoomLevel(), entry.getColumn(), entry.getRow()))
+        .distinct()
+        .concatMap(key -> getEntry(key.getZ(), key.getX(), key.getY()));
+  }
+
+  /**
+   * Every tile of a zoom level, merged.
+   *
+   * @param zoom the zoom level
+   * @return the merged tiles
+   * @see #getEntries()
+   */
+  @Override
+  public Observable<Entry> getEntries(int zoom) {
+    final List<Source> covering = getSources(zoom);
+    if (isScannable(covering)) {
+      final List<Flowable<Entry>> scans = new ArrayList<>(covering.size());
+      for (Source source : covering) {
+        scans.add(((ScanProvider) source.storage).scanEntries(zoom, null));
+      }
+      return mergeScans(scans);
+    }
+    return Observable.fromIterable(covering)
+        .concatMap(source -> source.storage.getEntries(zoom))
+        .map(entry -> new Key(entry.getZoomLevel(), entry.getColumn(), entry.getRow()))
+        .distinct()
+        .concatMap(key -> getEntry(key.getZ(), key.getX(), key.getY()));
+  }
+
+  @Override
+  public Observable<Entry> getEntry(int zoom, int col, int row) {
+    return Observable.defer(() -> {
+      final Key key = new Key(zoom, col, row);
+      final byte[] cached = cache.get(key);
+      if (cached != null) {
+        return Observable.just(new Entry(zoom, col, row, cached));
+      }
+      // read before the sources are, so a merge overtaken by invalidation is not cached
+      final long generation = cache.getGeneration();
+
+      // eager concatenation queries every source at once yet preserves order of precedence
+      return Observable.fromIterable(getSources(zoom))
+          .concatMapEager(source -> source.storage.getEntry(zoom, col, row)
+              .subscribeOn(scheduler))
+          .map(Entry::getVector)
+          .toList()
+          .filter(tiles -> !tiles.isEmpty())
+          .map(tiles -> {
+            final Entry merged = toEntry(zoom, col, row, LayerMerger.merge(tiles));
+            cache.put(key, merged.getVector(), generation);
+            return merged;
+          })
+          .toObservable();
+    });
+  }
+
+  @Override
+  public Observable<Integer> getMaxZoomLevel() {
+    return Observable.fromIterable(sources)
+        .concatMap(source -> source.storage.getMaxZoomLevel()
+            .map(zoom -> Math.min(zoom, source.maxZoom))
+            .filter(zoom -> zoom >= source.minZoom))
+        .reduce(Math::max)
+        .toObservable();
+  }
+
+  @Override
+  public Observable<Integer> getMinZoomLevel() {
+    return Observable.fromIterable(sources)
+        .concatMap(source -> source.storage.getMinZoomLevel()
+            .map(zoom -> Math.max(zoom, source.minZoom))
+            .filter(zoom -> zoom <= source.maxZoom))
+        .reduce(Math::min)
+        .toObservable();
+  }
+
+  @Override
+  public void putEntries(Observable<Entry> entries) {
+    throw new UnsupportedOperationException("composite storage is read only");
+  }
+
+  @Override
+  public Observable<StorageResult> put(Observable<Entry> entries) {
+    return entries.map(entry -> new StorageResult(entry,
+        new UnsupportedOperationException("composite storage is read only")));
+  }
+
+  @Override
+  public Observable<StorageResult> delete(Observable<Entry> entries) {
+    return entries.map(entry -> new StorageResult(entry,
+        new UnsupportedOperationException("composite storage is read only")));
+  }
+
+  @Override
+  public Single<Metadata> generateDefault() {
+    return Observable.fromIterable(sources)
+        .concatMap(source -> source.storage.generateDefault().toObservable())
+        .toList()
+        .map(CompositeStorage::combine);
+  }
+
+  @Override
+  public Disposable putMetadata(Single<Metadata> metadata) {
+    throw new UnsupportedOperationException("composite storage is read only");
+  }
+
+  @Override
+  public Observable<Metadata> getMetadata() {
+    return Observable.fromIterable(sources)
+        .concatMap(source -> source.storage.getMetadata())
+        .toList()
+        .filter(metadata -> !metadata.isEmpty())
+        .map(CompositeStorage::combine)
+        .toObservable();
+  }
+
+  private static boolean isScannable(List<Source> sources) {
+    for (Source source : sources) {
+      if (!(source.storage instanceof ScanProvider)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Observable<Entry> mergeScans(List<Flowable<Entry>> scans) {
+    return KeyOrderedMerge.mergeByKey(scans, SCAN_PREFETCH)
+        .map(CompositeStorage::merge)
+        .toObservable();
+  }
+
+  private static Entry merge(List<Entry> tiles) throws IOException {
+    final Entry first = tiles.get(0);
+    if (tiles.size() == 1) {
+      return first;
+    }
+    final List<byte[]> vectors = new ArrayList<>(tiles.size());
+    for (Entry tile : tiles) {
+      vectors.add(tile.getVector());
+    }
+    return toEntry(first.getZoomLevel(), first.getColumn(), first.getRow(),
+        LayerMerger.merge(vectors));
+  }
+
+  private static Entry toEntry(int zoom, int col, int row, byte[] merged) throws IOException {
+    if (merged.length > Entry.MAX_VECTOR_TILE_SIZE) {
+      throw new IOException(String.format("merged tile %d %d %d (z x y) exceeds %d bytes", zoom,
+          col, row, Entry.MAX_VECTOR_TILE_SIZE));
+    }
+    return new Entry(zoom, col, row, merged);
+  }
+
+  private List<Source> getSources(int zoom) {
+    final List<Source> result = new ArrayList<>(sources.size());
+    for (Source source : sources) {
+      if (source.covers(zoom)) {
+        result.add(source);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Combine metadata, taking the TileJSON of the first and the vector layers of all.
+   */
+  private static Metadata combine(List<Metadata> metadata) {
+    if (metadata.isEmpty()) {
+      return new Metadata.Builder().build();
+    }
+
+    final Metadata first = metadata.get(0);
+    final Metadata.Builder builder = new Metadata.Builder(first);
+    final Set<String> layerIds = new HashSet<>();
+    for (Metadata.Layer layer : first.getLayers()) {
+      layerIds.add(layer.getId());
+    }
+    for (Metadata other : metadata.subList(1, metadata.size())) {
+      for (Metadata.Layer layer : other.getLayers()) {
+        if (layerIds.add(layer.getId())) {
+          builder.addLayer(layer);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  private static final class Source {
+
+    private final Storage storage;
+    private final int minZoom;
+    private final int maxZoom;
+
+    Source(Storage storage, int minZoom, int maxZoom) {
+      this.storage = storage;
+      this.minZoom = minZoom;
+      this.maxZoom = maxZoom;
+    }
+
+    boolean covers(int zoom) {
+      return minZoom <= zoom && zoom <= maxZoom;
+    }
+
+    /**
+     * Scan the zoom levels covered in key order, the source being a {@link ScanProvider}.
+     */
+    Flowable<Entry> scan() {
+      final ScanProvider scans = (ScanProvider) storage;
+      if (minZoom == MIN_ZOOM_LEVEL && maxZoom == MAX_ZOOM_LEVEL) {
+        return scans.scanEntries(null);
+      }
+      return Flowable.range(minZoom, maxZoom - minZoom + 1)
+          .concatMap(zoom -> scans.scanEntries(zoom, null));
+    }
+  }
+
+  /**
+   * A least recently used cache of merged tiles.
+   *
+   * <p>Each invalidation starts a new generation, and only tiles merged within the current
+   * generation are cached.
+   */
+  private static final class TileCache {
+
+    private final int capacity;
+    private final Map<Key, byte[]> tiles;
+    private long generation;
+
+    TileCache(int capacity) {
+      this.capacity = capacity;
+      this.tiles = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+          return size() > TileCache.this.capacity;
+        }
+      };
+    }
+
+    synchronized byte[] get(Key key) {
+      return tiles.get(key);
+    }
+
+    synchronized long getGeneration() {
+      return generation;
+    }
+
+    synchronized void put(Key key, byte[] tile, long generation) {
+      if (capacity > 0 && generation == this.generation) {
+        tiles.put(key, tile);
+      }
+    }
+
+    synchronized void remove(Key key) {
+      generation++;
+      tiles.remove(key);
+    }
+
+    synchronized void clear() {
+      generation++;
+      tiles.clear();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.composite;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.os.vt.mvt.VectorTile;
+
+/**
+ * Merge vector tiles at the protobuf wire level.
+ *
+ * <p>Layers are copied as opaque length-delimited records - only the layer name is read - so
+ * features are never decoded into JTS geometries and re-encoded.
+ */
+final class LayerMerger {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LayerMerger.class);
+
+  private static final int LAYERS_FIELD = VectorTile.Tile.LAYERS_FIELD_NUMBER;
+  private static final int LAYER_NAME_FIELD = VectorTile.Tile.Layer.NAME_FIELD_NUMBER;
+
+  private LayerMerger() {}
+
+  /**
+   * Merge the layers of the given tiles into a single tile.
+   *
+   * <p>The vector tile specification requires layer names to be unique within a tile.  Should
+   * more than one tile define a layer with the same name then the first one wins.
+   *
+   * @param tiles uncompressed vector tiles, in order of precedence
+   * @return the merged, uncompressed vector tile
+   * @throws IOException thrown if a tile is not a valid protobuf message
+   */
+  static byte[] merge(List<byte[]> tiles) throws IOException {
+    if (tiles.size() == 1) {
+      return tiles.get(0);
+    }
+
+    final Set<String> names = new HashSet<>();
+    final List<ByteString> layers = new ArrayList<>();
+    int size = 0;
+
+    for (byte[] tile : tiles) {
+      final CodedInputStream input = CodedInputStream.newInstance(tile);
+      int tag;
+      while ((tag = input.readTag()) != 0) {
+        final boolean isLayer = WireFormat.getTagFieldNumber(tag) == LAYERS_FIELD
+            && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+        if (!isLayer) {
+          // tile level extensions cannot be merged meaningfully
+          input.skipField(tag);
+          continue;
+        }
+
+        final ByteString layer = input.readBytes();
+        final String name = getLayerName(layer);
+        if (names.add(name)) {
+          layers.add(layer);
+          size += CodedOutputStream.computeBytesSize(LAYERS_FIELD, layer);
+        } else {
+          LOG.debug("ignoring duplicate layer '{}'", name);
+        }
+      }
+    }
+
+    final byte[] result = new byte[size];
+    final CodedOutputStream output = CodedOutputStream.newInstance(result);
+    for (ByteString layer : layers) {
+      output.writeBytes(LAYERS_FIELD, layer);
+    }
+    output.checkNoSpaceLeft();
+    return result;
+  }
+
+  private static String getLayerName(ByteString layer) throws IOException {
+    final CodedInputStream input = layer.newCodedInput();
+    int tag;
+    while ((tag = input.readTag()) != 0) {
+      if (WireFormat.getTagFieldNumber(tag) == LAYER_NAME_FIELD) {
+        return input.readString();
+      }
+      input.skipField(tag);
+    }
+    throw new IOException("layer has no name");
+  }
+}
@@ -192,14 +192,21 @@ public class DataSource {
           }
 
           try {
-            JtsMvt oldMvt = MvtDecoder.decode(oldEntry.getVector());
-            JtsMvt newMvt = MvtDecoder.decode(newEntry.getVector());
-            JtsMvt toReturn = new JtsMvt(oldMvt.getLayers());
+            JtsMvt oldMvt = MvtDecoder.decode(oldEntry);
+            JtsMvt newMvt = MvtDecoder.decode(newEntry);
+
+            // copy layers as decoded tiles may be shared
+            JtsMvt toReturn = new JtsMvt();
+            for (JtsLayer layer : oldMvt.getLayers()) {
+              toReturn.getLayersByName().put(layer.getName(),
+                  new JtsLayer(layer.getName(), new ArrayList<>(layer.getGeometries())));
+            }
 
             // apply new data
             for (JtsLayer layer : newMvt.getLayers()) {
               if (toReturn.getLayer(layer.getName()) == null) {
-                toReturn.getLayersByName().put(layer.getName(), layer);
+                toReturn.getLayersByName().put(layer.getName(),
+                    new JtsLayer(layer.getName(), new ArrayList<>(layer.getGeometries())));
               } else {
                 toReturn.getLayer(layer.getName()).getGeometries().addAll(layer.getGeometries());
               }
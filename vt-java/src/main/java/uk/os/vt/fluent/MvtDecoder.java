@@ -19,6 +19,8 @@ package uk.os.vt.fluent;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import org.locationtech.jts.geom.GeometryFactory;
+import uk.os.vt.Entry;
+import uk.os.vt.LazyEntry;
 import uk.os.vt.mvt.adapt.jts.MvtReader;
 import uk.os.vt.mvt.adapt.jts.TagKeyValueMapConverter;
 import uk.os.vt.mvt.adapt.jts.model.JtsMvt;
@@ -31,4 +33,20 @@ public class MvtDecoder {
     return MvtReader.loadMvt(new ByteArrayInputStream(bytes), GEOMETRY_FACTORY,
         new TagKeyValueMapConverter());
   }
+
+  /**
+   * Decode an entry, reusing the memoized result of a {@link LazyEntry}.
+   *
+   * <p>The result may be shared and must not be modified.
+   *
+   * @param entry the entry to decode
+   * @return the decoded vector tile
+   * @throws IOException thrown if the vector tile cannot be decoded
+   */
+  public static JtsMvt decode(Entry entry) throws IOException {
+    if (entry instanceof LazyEntry) {
+      return ((LazyEntry) entry).getMvt();
+    }
+    return decode(entry.getVector());
+  }
 }
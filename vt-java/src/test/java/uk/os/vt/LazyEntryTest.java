@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import uk.os.vt.common.CompressUtil;
+import uk.os.vt.common.TileCodecs;
+import uk.os.vt.mvt.adapt.jts.MvtEncoder;
+import uk.os.vt.mvt.adapt.jts.model.JtsLayer;
+import uk.os.vt.mvt.adapt.jts.model.JtsMvt;
+
+public class LazyEntryTest {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  @Test
+  public void testCompressedDataIsUncompressed() throws IOException {
+    final byte[] raw = getVectorTile();
+    final LazyEntry entry = new LazyEntry(3, 4, 5, CompressUtil.getCompressedAsGzip(raw));
+    assertArrayEquals(raw, entry.getVector());
+  }
+
+  @Test
+  public void testRawDataIsUnchanged() {
+    final byte[] raw = getVectorTile();
+    final LazyEntry entry = new LazyEntry(3, 4, 5, raw);
+    assertArrayEquals(raw, entry.getVector());
+  }
+
+  @Test
+  public void testEqualToEagerEntry() throws IOException {
+    final byte[] raw = getVectorTile();
+    final Entry eager = new Entry(3, 4, 5, raw);
+    final Entry lazy = new LazyEntry(3, 4, 5, CompressUtil.getCompressedAsGzip(raw));
+    assertEquals(eager, lazy);
+    assertEquals(lazy, eager);
+    assertEquals(eager.hashCode(), lazy.hashCode());
+  }
+
+  @Test
+  public void testCorruptTileFailsOnlyWhenItsVectorIsRead() {
+    final byte[] corrupt = {1, 2, 3, 4};
+    final LazyEntry entry = new LazyEntry(3, 4, 5, corrupt, TileCodecs.gzip());
+    final LazyEntry same = new LazyEntry(3, 4, 5, corrupt, TileCodecs.gzip());
+
+    // neither hashing, comparing nor printing uncompresses
+    assertEquals(1, new HashSet<>(Arrays.asList(entry, same)).size());
+    assertNotEquals(new Entry(3, 4, 5, corrupt), entry);
+    assertFalse(entry.toString().isEmpty());
+    try {
+      entry.getVector();
+      fail("a corrupt tile should fail once uncompressed");
+    } catch (final IllegalStateException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDecodedTileIsMemoized() throws IOException {
+    final LazyEntry entry = new LazyEntry(3, 4, 5, getVectorTile());
+    final JtsMvt first = entry.getMvt();
+    assertNotNull(first.getLayer("layer"));
+    assertSame(first, entry.getMvt());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCoordinatesFailEagerly() {
+    new LazyEntry(1, 2, 2, getVectorTile());
+  }
+
+  private static byte[] getVectorTile() {
+    final Point point = GEOMETRY_FACTORY.createPoint(new Coordinate(10, 10));
+    return MvtEncoder.encode(new JtsMvt(new JtsLayer("layer", Collections.singletonList(point))));
+  }
+}
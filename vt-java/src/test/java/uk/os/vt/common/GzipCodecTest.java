@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.junit.Test;
+import uk.os.vt.Entry;
+
+public class GzipCodecTest {
+
+  private final GzipCodec codec = new GzipCodec();
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    final byte[] raw = getBytes(100000);
+    final byte[] compressed = codec.encode(raw);
+    assertEquals(raw.length, GzipCodec.getUncompressedLength(compressed));
+    assertArrayEquals(raw, codec.decode(compressed));
+  }
+
+  @Test
+  public void testRoundTripEmpty() throws IOException {
+    assertArrayEquals(new byte[] {}, codec.decode(codec.encode(new byte[] {})));
+  }
+
+  @Test
+  public void testEncodedIsReadableByJdk() throws IOException {
+    final byte[] raw = getBytes(5000);
+    final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(codec.encode(raw)));
+    final byte[] actual = new byte[raw.length];
+    int read = 0;
+    int count;
+    while (read < actual.length && (count = in.read(actual, read, actual.length - read)) > 0) {
+      read += count;
+    }
+    assertArrayEquals(raw, actual);
+  }
+
+  @Test
+  public void testDecodesJdkOutput() throws IOException {
+    final byte[] raw = getBytes(5000);
+    assertArrayEquals(raw, codec.decode(jdkCompress(raw)));
+  }
+
+  @Test
+  public void testDecodesMultipleMembers() throws IOException {
+    final byte[] first = getBytes(300);
+    final byte[] second = getBytes(700);
+    final ByteArrayOutputStream both = new ByteArrayOutputStream();
+    both.write(codec.encode(first));
+    both.write(codec.encode(second));
+
+    final byte[] expected = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, expected, first.length, second.length);
+    assertArrayEquals(expected, codec.decode(both.toByteArray()));
+  }
+
+  @Test
+  public void testDecodeIntoBuffer() throws IOException {
+    final byte[] raw = getBytes(2000);
+    final byte[] buffer = new byte[raw.length + 10];
+    final int written = codec.decode(codec.encode(raw), buffer, 10);
+    assertEquals(raw.length, written);
+    assertArrayEquals(raw, Arrays.copyOfRange(buffer, 10, buffer.length));
+  }
+
+  @Test(expected = IOException.class)
+  public void testDecodeIntoBufferTooSmall() throws IOException {
+    final byte[] raw = getBytes(2000);
+    codec.decode(codec.encode(raw), new byte[1000], 0);
+  }
+
+  @Test(expected = ZipException.class)
+  public void testCorruptCrcIsDetected() throws IOException {
+    final byte[] compressed = codec.encode(getBytes(2000));
+    compressed[compressed.length - 8] ^= 1;
+    codec.decode(compressed);
+  }
+
+  @Test
+  public void testRoundTripBeyondTheTileLimit() throws IOException {
+    final byte[] raw = getBytes(3 * Entry.MAX_VECTOR_TILE_SIZE);
+    assertArrayEquals(raw, codec.decode(codec.encode(raw)));
+  }
+
+  @Test(expected = ZipException.class)
+  public void testForgedLengthIsDetected() throws IOException {
+    final byte[] compressed = codec.encode(getBytes(2000));
+    // claims over 16 MiB, which must not be trusted to size the output
+    compressed[compressed.length - 1] = 1;
+    codec.decode(compressed);
+  }
+
+  @Test
+  public void testCompressionLevels() throws IOException {
+    final byte[] raw = getBytes(50000);
+    for (int level = 1; level <= 9; level++) {
+      assertArrayEquals(raw, codec.decode(new GzipCodec(level).encode(raw)));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCompressionLevel() {
+    new GzipCodec(10);
+  }
+
+  private static byte[] jdkCompress(byte[] raw) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipper = new GZIPOutputStream(out)) {
+      gzipper.write(raw);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] getBytes(int length) {
+    // repetitive, like a vector tile, with some noise
+    final Random random = new Random(length);
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i % 64 == 0 ? random.nextInt() : i % 7);
+    }
+    return bytes;
+  }
+}
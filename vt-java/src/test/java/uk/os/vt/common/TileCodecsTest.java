@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipException;
+import org.junit.Test;
+import uk.os.vt.Entry;
+
+public class TileCodecsTest {
+
+  @Test
+  public void testDeflateRoundTrip() throws IOException {
+    final byte[] raw = getTile(1);
+    for (int level = 1; level <= 9; level++) {
+      final TileCodec codec = TileCodecs.deflate(level);
+      assertArrayEquals(raw, codec.decode(codec.encode(raw)));
+    }
+  }
+
+  @Test
+  public void testDeflateWithDictionaryRoundTrip() throws IOException {
+    final TileCodec codec = TileCodecs.deflate(9, getDictionary());
+    final byte[] raw = getTile(42);
+    assertArrayEquals(raw, codec.decode(codec.encode(raw)));
+  }
+
+  @Test
+  public void testDictionaryImprovesCompressionOfSmallTiles() throws IOException {
+    final byte[] raw = getTile(42);
+    final int without = TileCodecs.deflate(9).encode(raw).length;
+    final int with = TileCodecs.deflate(9, getDictionary()).encode(raw).length;
+    assertTrue(String.format("with %d, without %d", with, without), with < without);
+  }
+
+  @Test(expected = IOException.class)
+  public void testDeflateWithWrongDictionaryFails() throws IOException {
+    final byte[] compressed = TileCodecs.deflate(9, getDictionary()).encode(getTile(42));
+    TileCodecs.deflate(9).decode(compressed);
+  }
+
+  @Test
+  public void testDeflateDecodesTilesUpToTheLimit() throws IOException {
+    final TileCodec codec = TileCodecs.deflate(1);
+    final byte[] raw = new byte[Entry.MAX_VECTOR_TILE_SIZE];
+    assertArrayEquals(raw, codec.decode(codec.encode(raw)));
+  }
+
+  @Test(expected = ZipException.class)
+  public void testDeflateRejectsStreamsPastTheLimit() throws IOException {
+    // a few KiB inflating to far more than any tile
+    final TileCodec codec = TileCodecs.deflate(9);
+    codec.decode(codec.encode(new byte[64 * Entry.MAX_VECTOR_TILE_SIZE]));
+  }
+
+  @Test
+  public void testTrainedDictionaryRespectsLength() {
+    final List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      samples.add(getTile(i));
+    }
+    final byte[] dictionary = TileCodecs.trainDictionary(samples, 256);
+    assertTrue(dictionary.length > 0);
+    assertTrue(dictionary.length <= 256);
+  }
+
+  @Test
+  public void testSamplesAreReadOnce() {
+    final List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      samples.add(getTile(i));
+    }
+    final Iterator<byte[]> once = samples.iterator();
+    final Iterable<byte[]> singlePass = () -> once;
+    assertArrayEquals(TileCodecs.trainDictionary(samples, 256),
+        TileCodecs.trainDictionary(singlePass, 256));
+  }
+
+  @Test
+  public void testForName() throws IOException {
+    final byte[] raw = getTile(7);
+    for (String name : new String[] {TileCodecs.GZIP, TileCodecs.DEFLATE, TileCodecs.NONE}) {
+      final TileCodec codec = TileCodecs.forName(name, null);
+      assertEquals(name, codec.getName());
+      assertArrayEquals(raw, codec.decode(codec.encode(raw)));
+    }
+    final byte[] dictionary = getDictionary();
+    assertArrayEquals(dictionary,
+        TileCodecs.forName(TileCodecs.DEFLATE, dictionary).getDictionary());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testForUnknownName() {
+    TileCodecs.forName("zstd", null);
+  }
+
+  private static byte[] getDictionary() {
+    final List<byte[]> samples = new ArrayList<>();
+    for (int i = 100; i < 150; i++) {
+      samples.add(getTile(i));
+    }
+    return TileCodecs.trainDictionary(samples, 4096);
+  }
+
+  private static byte[] getTile(int seed) {
+    // shared layer names and keys with tile specific values, like a small vector tile
+    final Random random = new Random(seed);
+    final StringBuilder builder = new StringBuilder();
+    for (String layer : new String[] {"buildings", "roads", "water"}) {
+      builder.append(layer).append("\u0000extent\u00004096\u0000");
+      for (int i = 0; i < 5; i++) {
+        builder.append("class=").append(random.nextInt(4)).append(";name_en=")
+            .append(Integer.toHexString(random.nextInt())).append(';');
+      }
+    }
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
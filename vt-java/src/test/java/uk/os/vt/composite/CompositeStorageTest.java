@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Ordnance Survey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.os.vt.composite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.schedulers.Schedulers;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import uk.os.vt.Entry;
+import uk.os.vt.ScanProvider;
+import uk.os.vt.Storage;
+import uk.os.vt.StorageResult;
+import uk.os.vt.fluent.MvtDecoder;
+import uk.os.vt.mvt.adapt.jts.MvtEncoder;
+import uk.os.vt.mvt.adapt.jts.model.JtsLayer;
+import uk.os.vt.mvt.adapt.jts.model.JtsMvt;
+
+public class CompositeStorageTest {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  @Test
+  public void testLayersAreMerged() throws IOException {
+    final Storage base = storageWithLayer(5, 15, 10, "base", 100);
+    final Storage overlay = storageWithLayer(5, 15, 10, "cities", 100);
+
+    final CompositeStorage composite = newBuilder().addSource(base).addSource(overlay).build();
+
+    final JtsMvt mvt = MvtDecoder.decode(composite.getEntry(5, 15, 10).blockingFirst().getVector());
+    assertEquals(2, mvt.getLayers().size());
+    assertNotNull(mvt.getLayer("base"));
+    assertNotNull(mvt.getLayer("cities"));
+  }
+
+  @Test
+  public void testFirstSourceWinsForDuplicateLayer() throws IOException {
+    final Storage first = storageWithLayer(5, 15, 10, "cities", 100);
+    final Storage second = storageWithLayer(5, 15, 10, "cities", 200);
+
+    final CompositeStorage composite = newBuilder().addSource(first).addSource(second).build();
+
+    final JtsMvt mvt = MvtDecoder.decode(composite.getEntry(5, 15, 10).blockingFirst().getVector());
+    assertEquals(1, mvt.getLayers().size());
+    final Point point = (Point) mvt.getLayer("cities").getGeometries().iterator().next();
+    assertEquals(100, point.getX(), 0);
+  }
+
+  @Test
+  public void testSourceOutsideZoomRangeIsNotQueried() throws IOException {
+    final Storage base = storageWithLayer(5, 15, 10, "base", 100);
+    final Storage overlay = storageWithLayer(5, 15, 10, "cities", 100);
+
+    final CompositeStorage composite = newBuilder()
+        .addSource(base)
+        .addSource(overlay, 6, 14)
+        .build();
+
+    final JtsMvt mvt = MvtDecoder.decode(composite.getEntry(5, 15, 10).blockingFirst().getVector());
+    assertEquals(1, mvt.getLayers().size());
+    assertNotNull(mvt.getLayer("base"));
+    verify(overlay, never()).getEntry(anyInt(), anyInt(), anyInt());
+  }
+
+  @Test
+  public void testMissingTileIsEmpty() {
+    final Storage empty = mock(Storage.class);
+    when(empty.getEntry(anyInt(), anyInt(), anyInt())).thenReturn(Observable.empty());
+
+    final CompositeStorage composite = newBuilder().addSource(empty).build();
+    assertEquals(0L, (long) composite.getEntry(5, 15, 10).count().blockingGet());
+  }
+
+  @Test
+  public void testMergedTileIsCached() {
+    final Storage base = storageWithLayer(5, 15, 10, "base", 100);
+    final CompositeStorage composite = newBuilder().addSource(base).build();
+
+    final Entry first = composite.getEntry(5, 15, 10).blockingFirst();
+    final Entry second = composite.getEntry(5, 15, 10).blockingFirst();
+    assertEquals(first, second);
+    verify(base, times(1)).getEntry(5, 15, 10);
+
+    composite.invalidate(5, 15, 10);
+    composite.getEntry(5, 15, 10).blockingFirst();
+    verify(base, times(2)).getEntry(5, 15, 10);
+  }
+
+  @Test
+  public void testMergeOvertakenByInvalidationIsNotCached() {
+    final Entry entry = entryWithLayer(5, 15, 10, "base", 100);
+    final Storage base = mock(Storage.class);
+    final CompositeStorage composite = newBuilder().addSource(base).build();
+    // the tileset changes whilst the tile is read
+    when(base.getEntry(5, 15, 10)).thenReturn(Observable.fromCallable(() -> {
+      composite.invalidate(5, 15, 10);
+      return entry;
+    }));
+
+    assertEquals(entry, composite.getEntry(5, 15, 10).blockingFirst());
+    composite.getEntry(5, 15, 10).blockingFirst();
+    verify(base, times(2)).getEntry(5, 15, 10);
+  }
+
+  @Test
+  public void testOversizedMergeFails() {
+    final Storage base = storageWithLayer(5, 15, 10, largeName('a'), 100);
+    final Storage overlay = storageWithLayer(5, 15, 10, largeName('b'), 100);
+    final CompositeStorage composite = newBuilder().addSource(base).addSource(overlay).build();
+
+    composite.getEntry(5, 15, 10).test().assertError(IOException.class);
+    composite.getEntry(5, 15, 10).test().assertError(IOException.class);
+    verify(base, times(2)).getEntry(5, 15, 10);
+  }
+
+  @Test
+  public void testScannableSourcesAreMergedAsTheyStream() throws IOException {
+    final Storage base = scannableStorage(
+        entryWithLayer(5, 1, 1, "base", 100), entryWithLayer(5, 15, 10, "base", 100));
+    final Storage overlay = scannableStorage(
+        entryWithLayer(5, 15, 10, "cities", 100), entryWithLayer(6, 0, 0, "cities", 100));
+
+    final CompositeStorage composite = newBuilder().addSource(base).addSource(overlay).build();
+
+    final List<Entry> entries = composite.getEntries().toList().blockingGet();
+    assertEquals(3, entries.size());
+    assertEquals(1, entries.get(0).getColumn());
+    assertEquals(15, entries.get(1).getColumn());
+    assertEquals(6, entries.get(2).getZoomLevel());
+    final JtsMvt merged = MvtDecoder.decode(entries.get(1).getVector());
+    assertNotNull(merged.getLayer("base"));
+    assertNotNull(merged.getLayer("cities"));
+    // each tile is read once, by the scans
+    verify(base, never()).getEntry(anyInt(), anyInt(), anyInt());
+    verify(overlay, never()).getEntry(anyInt(), anyInt(), anyInt());
+  }
+
+  @Test
+  public void testPutIsRejected() {
+    final CompositeStorage composite =
+        newBuilder().addSource(storageWithLayer(5, 15, 10, "base", 100)).build();
+    final Entry entry = new Entry(5, 15, 10, new byte[] {});
+    final StorageResult result = composite.put(Observable.just(entry)).blockingFirst();
+    assertFalse(result.isCompleted());
+    assertTrue(result.getException() instanceof UnsupportedOperationException);
+  }
+
+  private static CompositeStorage.Builder newBuilder() {
+    return new CompositeStorage.Builder().setScheduler(Schedulers.trampoline());
+  }
+
+  private static String largeName(char letter) {
+    // over half the size of the largest tile, so two cannot be merged
+    final char[] name = new char[Entry.MAX_VECTOR_TILE_SIZE / 2 + 1];
+    Arrays.fill(name, letter);
+    return new String(name);
+  }
+
+  private static Storage scannableStorage(Entry... entries) {
+    final Storage storage = mock(Storage.class, withSettings().extraInterfaces(ScanProvider.class));
+    when(((ScanProvider) storage).scanEntries(null)).thenReturn(Flowable.fromArray(entries));
+    return storage;
+  }
+
+  private static Entry entryWithLayer(int zoom, int col, int row, String layer, double xy) {
+    final Point point = GEOMETRY_FACTORY.createPoint(new Coordinate(xy, xy));
+    return new Entry(zoom, col, row,
+        MvtEncoder.encode(new JtsMvt(new JtsLayer(layer, Collections.singletonList(point)))));
+  }
+
+  private static Storage storageWithLayer(int zoom, int col, int row, String layer, double xy) {
+    final Point point = GEOMETRY_FACTORY.createPoint(new Coordinate(xy, xy));
+
+    final byte[] bytes =
+        MvtEncoder.encode(new JtsMvt(new JtsLayer(layer, Collections.singletonList(point))));
+
+    final Storage storage = mock(Storage.class);
+    when(storage.getEntry(anyInt(), anyInt(), anyInt())).thenReturn(Observable.empty());
+    when(storage.getEntry(zoom, col, row))
+        .thenReturn(Observable.just(new Entry(zoom, col, row, bytes)));
+    return storage;
+  }
+}